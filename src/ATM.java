@@ -1,54 +1,175 @@
 import java.io.IOException;
-import java.math.BigDecimal;
-import java.math.RoundingMode;
 import java.util.InputMismatchException;
 import java.util.Scanner;
+import java.util.concurrent.atomic.LongAdder;
 
 public class ATM {
 
     private static Scanner in = new Scanner(System.in);
-    private CSVReader csvReader = new CSVReader();
+    private CSVReader csvReader = CSVReader.getInstance();
+
+    private static final LatencyHistogram WITHDRAW_LATENCY = Metrics.histogram("withdraw");
+    private static final LatencyHistogram DEPOSIT_LATENCY = Metrics.histogram("deposit");
+    private static final LatencyHistogram TRANSFER_LATENCY = Metrics.histogram("transfer");
+    private static final LongAdder REJECTED = Metrics.counter("atm.rejected");
+
+    /**
+     * Result of an operation on money which does not print anything.
+     */
+    public enum Result {
+        OK,
+        INVALID_AMOUNT,
+        INSUFFICIENT_FUNDS,
+        UNKNOWN_ACCOUNT,
+        SAME_ACCOUNT
+    }
 
     /**
      * Withdraw is the method used to withdraw money from a given account,
      * this method can be accessed through the ATM option in the main menu
      * @param accountID     ID of the account we want to withdraw money from
-     * @param amount        amount of money we want to withdraw from our account
+     * @param amount        amount of money in cents we want to withdraw from our account
      * @throws IOException
      */
+    public void withdraw(long accountID, long amount) throws IOException {
+        switch (tryWithdraw(accountID, amount)) {
+            case INVALID_AMOUNT:
+                System.out.println("You cannot withdraw negative or zero amount of money!");
+                break;
+            case INSUFFICIENT_FUNDS:
+                System.out.println("You cannot withdraw more money than you have!");
+                break;
+            case OK:
+                System.out.println("Amount of money you have withdrawn: " + Money.toString(amount) + ". New balance: " + Money.toString(csvReader.getAccountFromGivenAccountID(accountID).getBalance()));
+                break;
+            default:
+                System.out.println("Invalid account ID!");
+        }
+    }
 
+    /**
+     * This method withdraws money without printing anything. It is used by withdraw() and by the server mode.
+     * @param accountID     ID of the account we want to withdraw money from
+     * @param amount        amount of money in cents
+     * @return              result of the operation
+     * @throws IOException
+     */
+    public Result tryWithdraw(long accountID, long amount) throws IOException {
+        long start = System.nanoTime();
+        BankEvents.OperationEvent event = BankEvents.beginOperation("withdraw", accountID, 0, amount);
+        Result result = null;
+        try {
+            result = count(withdrawMoney(accountID, amount));
+            return result;
+        } finally {
+            BankEvents.endOperation(event, result);
+            WITHDRAW_LATENCY.recordSince(start);
+            Metrics.recordAccountOperation(accountID);
+        }
+    }
 
-    public void withdraw(int accountID, BigDecimal amount) throws IOException {
+    private Result withdrawMoney(long accountID, long amount) throws IOException {
         Account myAccount = csvReader.getAccountFromGivenAccountID(accountID);
-        if (amount.compareTo(myAccount.getBalance()) > 0) {
-            System.out.println("You cannot withdraw more money than you have!");
-        } else {
-            if (amount.compareTo(BigDecimal.valueOf(0)) <= 0) {
-                System.out.println("You cannot withdraw negative or zero amount of money!");
-            } else {
-                myAccount.setBalance(myAccount.getBalance().subtract(amount));
-                System.out.println("Amount of money you have withdrawn: " + amount + ". New balance: " + myAccount.getBalance());
-                csvReader.writeAccountsToCSV(csvReader.getAccounts());
+        if (myAccount == null) {
+            return Result.UNKNOWN_ACCOUNT;
+        }
+        if (amount <= 0) {
+            return Result.INVALID_AMOUNT;
+        }
+        long seq;
+        AccountLocks.lock(accountID);
+        try {
+            if (!isOpen(myAccount)) {
+                return Result.UNKNOWN_ACCOUNT;
+            }
+            if (amount > myAccount.getBalance()) {
+                return Result.INSUFFICIENT_FUNDS;
+            }
+            long balance = myAccount.getBalance();
+            myAccount.setBalance(Money.subtract(balance, amount));
+            try {
+                seq = csvReader.recordBalanceChange(myAccount, -amount);
+                TransactionLedger.getInstance().append(accountID, TransactionLedger.Type.WITHDRAW, -amount, 0, myAccount.getBalance());
+            } catch (IOException e) {
+                csvReader.restoreBalance(myAccount, balance, e);
+                throw e;
             }
+        } finally {
+            AccountLocks.unlock(accountID);
         }
+        csvReader.flushBalanceChanges(seq);
+        return Result.OK;
     }
+
     /**
      * Deposit is the method used to deposit money to a given account,
      * this method can be accessed through the ATM option in the main menu
      * @param accountID     ID of the account we want to deposit money to
-     * @param amount        amount of money we want to deposit from our account
+     * @param amount        amount of money in cents we want to deposit from our account
      * @throws IOException
      */
-    public void deposit(int accountID, BigDecimal amount) throws IOException {
-        Account myAccount = csvReader.getAccountFromGivenAccountID(accountID);
-        if (amount.compareTo(BigDecimal.valueOf(0)) <= 0) {
-            System.out.println("You cannot deposit negative or zero amount of money!");
-        } else {
+    public void deposit(long accountID, long amount) throws IOException {
+        switch (tryDeposit(accountID, amount)) {
+            case INVALID_AMOUNT:
+                System.out.println("You cannot deposit negative or zero amount of money!");
+                break;
+            case OK:
+                System.out.println("Amount of money you have deposited: " + Money.toString(amount) + ". New balance: " + Money.toString(csvReader.getAccountFromGivenAccountID(accountID).getBalance()));
+                break;
+            default:
+                System.out.println("Invalid account ID!");
+        }
+    }
+
+    /**
+     * This method deposits money without printing anything. It is used by deposit() and by the server mode.
+     * @param accountID     ID of the account we want to deposit money to
+     * @param amount        amount of money in cents
+     * @return              result of the operation
+     * @throws IOException
+     */
+    public Result tryDeposit(long accountID, long amount) throws IOException {
+        long start = System.nanoTime();
+        BankEvents.OperationEvent event = BankEvents.beginOperation("deposit", accountID, 0, amount);
+        Result result = null;
+        try {
+            result = count(depositMoney(accountID, amount));
+            return result;
+        } finally {
+            BankEvents.endOperation(event, result);
+            DEPOSIT_LATENCY.recordSince(start);
+            Metrics.recordAccountOperation(accountID);
+        }
+    }
 
-            myAccount.setBalance(myAccount.getBalance().add(amount));
-            System.out.println("Amount of money you have deposited: " + amount + ". New balance: " + myAccount.getBalance());
-            csvReader.writeAccountsToCSV(csvReader.getAccounts());
+    private Result depositMoney(long accountID, long amount) throws IOException {
+        Account myAccount = csvReader.getAccountFromGivenAccountID(accountID);
+        if (myAccount == null) {
+            return Result.UNKNOWN_ACCOUNT;
+        }
+        if (amount <= 0) {
+            return Result.INVALID_AMOUNT;
         }
+        long seq;
+        AccountLocks.lock(accountID);
+        try {
+            if (!isOpen(myAccount)) {
+                return Result.UNKNOWN_ACCOUNT;
+            }
+            long balance = myAccount.getBalance();
+            myAccount.setBalance(Money.add(balance, amount));
+            try {
+                seq = csvReader.recordBalanceChange(myAccount, amount);
+                TransactionLedger.getInstance().append(accountID, TransactionLedger.Type.DEPOSIT, amount, 0, myAccount.getBalance());
+            } catch (IOException e) {
+                csvReader.restoreBalance(myAccount, balance, e);
+                throw e;
+            }
+        } finally {
+            AccountLocks.unlock(accountID);
+        }
+        csvReader.flushBalanceChanges(seq);
+        return Result.OK;
     }
 
     /**
@@ -59,39 +180,135 @@ public class ATM {
      * @param otherAccountID    ID of the account we are sending money to
      * @throws IOException
      */
-    public void transfer(int myAccountID, int otherAccountID) throws IOException {
+    public void transfer(long myAccountID, long otherAccountID) throws IOException {
         outerloop:
         while (true) {
-            if (csvReader.getAccountIDs().contains(otherAccountID) && otherAccountID != myAccountID) {
-                Account myAccount = csvReader.getAccountFromGivenAccountID(myAccountID);
-                Account otherAccount = csvReader.getAccountFromGivenAccountID(otherAccountID);
+            if (csvReader.containsAccountID(otherAccountID) && otherAccountID != myAccountID) {
                 while (true) {
                     try {
                         System.out.println("Enter amount of money you want to transfer (use comma instead of dot):");
-                        BigDecimal transferMoney = in.nextBigDecimal();
-                        transferMoney = transferMoney.setScale(2, RoundingMode.FLOOR);
-                        if (transferMoney.compareTo(myAccount.getBalance()) > 0) {
+                        long transferMoney = Money.fromBigDecimal(in.nextBigDecimal());
+                        Result result = tryTransfer(myAccountID, otherAccountID, transferMoney);
+                        if (result == Result.OK) {
+                            System.out.println("You have transferred " + Money.toString(transferMoney) + " to account number " + otherAccountID);
+                            break outerloop;
+                        } else if (result == Result.INVALID_AMOUNT) {
+                            System.out.println("You cannot transfer negative or zero amount of money!");
+                        } else if (result == Result.INSUFFICIENT_FUNDS) {
                             System.out.println("You cannot transfer more money than you have!");
                         } else {
-                            if (transferMoney.compareTo(BigDecimal.valueOf(0)) <= 0) {
-                                System.out.println("You cannot transfer negative or zero amount of money!");
-                            } else {
-                                csvReader.getAccountFromGivenAccountID(myAccountID).setBalance(myAccount.getBalance().subtract(transferMoney));
-                                csvReader.getAccountFromGivenAccountID(otherAccountID).setBalance(otherAccount.getBalance().add(transferMoney));
-                                System.out.println("You have transferred " + transferMoney + " to account number " + otherAccountID);
-                                csvReader.writeAccountsToCSV(csvReader.getAccounts());
-                                break outerloop;
-                            }
+                            System.out.println("Invalid account ID!\n");
+                            break outerloop;
                         }
                     } catch (InputMismatchException e) {
                         System.out.println("Invalid input!");
                         break outerloop;
+                    } catch (ArithmeticException e) {
+                        System.out.println("Invalid amount!");
                     }
                 }
             } else {
+                count(otherAccountID == myAccountID ? Result.SAME_ACCOUNT : Result.UNKNOWN_ACCOUNT);
                 System.out.println("Invalid account ID!\n");
                 break;
             }
         }
     }
+
+    /**
+     * This method transfers money without asking for anything. It is used by the server mode.
+     * @param myAccountID       ID of the account we are sending money from
+     * @param otherAccountID    ID of the account we are sending money to
+     * @param amount            amount of money in cents
+     * @return                  result of the operation
+     * @throws IOException
+     */
+    public Result tryTransfer(long myAccountID, long otherAccountID, long amount) throws IOException {
+        Account myAccount = csvReader.getAccountFromGivenAccountID(myAccountID);
+        Account otherAccount = csvReader.getAccountFromGivenAccountID(otherAccountID);
+        if (myAccount == null || otherAccount == null) {
+            return count(Result.UNKNOWN_ACCOUNT);
+        }
+        if (myAccountID == otherAccountID) {
+            return count(Result.SAME_ACCOUNT);
+        }
+        if (amount <= 0) {
+            return count(Result.INVALID_AMOUNT);
+        }
+        return count(moveMoney(myAccount, otherAccount, amount));
+    }
+
+    private static Result count(Result result) {
+        if (result != Result.OK) {
+            REJECTED.increment();
+        }
+        return result;
+    }
+
+    /**
+     * This method tells whether the account has not been deleted. It has to be called while holding
+     * the lock of the account, because deleteAccount() removes accounts under the same lock.
+     */
+    private boolean isOpen(Account account) {
+        return csvReader.getAccountFromGivenAccountID(account.getAccountID()) == account;
+    }
+
+    /**
+     * This method moves money between two accounts while holding locks of both of them,
+     * so balance cannot change between the check and the update.
+     *
+     * @param from          account we are sending money from
+     * @param to            account we are sending money to
+     * @param amount        positive amount of money in cents
+     * @return              INSUFFICIENT_FUNDS if there is not enough money on the first account,
+     *                      UNKNOWN_ACCOUNT if one of the accounts has been deleted in the meantime
+     * @throws IOException
+     */
+    private Result moveMoney(Account from, Account to, long amount) throws IOException {
+        long start = System.nanoTime();
+        BankEvents.OperationEvent event = BankEvents.beginOperation("transfer", from.getAccountID(), to.getAccountID(), amount);
+        Result result = null;
+        try {
+            result = moveMoneyUnderLocks(from, to, amount);
+            return result;
+        } finally {
+            BankEvents.endOperation(event, result);
+            TRANSFER_LATENCY.recordSince(start);
+            Metrics.recordAccountOperation(from.getAccountID());
+            Metrics.recordAccountOperation(to.getAccountID());
+        }
+    }
+
+    private Result moveMoneyUnderLocks(Account from, Account to, long amount) throws IOException {
+        long seq;
+        AccountLocks.lockBoth(from.getAccountID(), to.getAccountID());
+        try {
+            if (!isOpen(from) || !isOpen(to)) {
+                return Result.UNKNOWN_ACCOUNT;
+            }
+            if (amount > from.getBalance()) {
+                return Result.INSUFFICIENT_FUNDS;
+            }
+            long fromBalance = from.getBalance();
+            long toBalance = to.getBalance();
+            long toBalanceAfter = Money.add(toBalance, amount);
+            from.setBalance(Money.subtract(fromBalance, amount));
+            to.setBalance(toBalanceAfter);
+            try {
+                seq = csvReader.recordBalanceChange(from, -amount);
+                seq = Math.max(seq, csvReader.recordBalanceChange(to, amount));
+                TransactionLedger ledger = TransactionLedger.getInstance();
+                ledger.append(from.getAccountID(), TransactionLedger.Type.TRANSFER_OUT, -amount, to.getAccountID(), from.getBalance());
+                ledger.append(to.getAccountID(), TransactionLedger.Type.TRANSFER_IN, amount, from.getAccountID(), to.getBalance());
+            } catch (IOException e) {
+                csvReader.restoreBalance(from, fromBalance, e);
+                csvReader.restoreBalance(to, toBalance, e);
+                throw e;
+            }
+        } finally {
+            AccountLocks.unlockBoth(from.getAccountID(), to.getAccountID());
+        }
+        csvReader.flushBalanceChanges(seq);
+        return Result.OK;
+    }
 }
@@ -1,10 +1,8 @@
-import java.math.BigDecimal;
-
 public class Account {
 
-    private int customerID;
-    private int accountID;
-    private BigDecimal balance;
+    private long customerID;
+    private long accountID;
+    private long balance;
     private String PIN;
 
     @Override
@@ -12,7 +10,7 @@ public class Account {
         return "Account{" +
                 "customerID=" + customerID +
                 ", accountID=" + accountID +
-                ", balance=" + balance +
+                ", balance=" + Money.toString(balance) +
                 ", PIN=" + PIN +
                 '}';
     }
@@ -21,29 +19,33 @@ public class Account {
         return "--- " +
                 "CustomerID = " + customerID +
                 ", accountID = " + accountID +
-                ", balance = " + balance;
+                ", balance = " + Money.toString(balance);
     }
 
-    public Account(int customerID, int accountID, BigDecimal balance, String PIN) {
+    public Account(long customerID, long accountID, long balance, String PIN) {
         this.customerID = customerID;
         this.accountID = accountID;
         this.balance = balance;
         this.PIN = PIN;
     }
 
-    public int getCustomerID() {
+    public long getCustomerID() {
         return customerID;
     }
 
-    public int getAccountID() {
+    public long getAccountID() {
         return accountID;
     }
 
-    public BigDecimal getBalance() {
+    /**
+     * Balance is kept as a number of cents, see Money.
+     * @return      balance of the account in cents
+     */
+    public long getBalance() {
         return balance;
     }
 
-    public void setBalance(BigDecimal balance) {
+    public void setBalance(long balance) {
         this.balance = balance;
     }
 
@@ -0,0 +1,147 @@
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Striped locks which protect balances of accounts. Every accountID is mapped to one of
+ * a fixed number of locks, so unrelated accounts can be changed at the same time without
+ * one global lock and without keeping a lock object per account.
+ *
+ * Operations on two accounts (transfer) always take their locks in the same order, so two
+ * transfers in opposite directions cannot deadlock. Number of stripes can be set
+ * with -Dbank.lockStripes (rounded up to a power of two, 1024 by default).
+ */
+public class AccountLocks {
+
+    private static final ReentrantLock[] LOCKS = createLocks(Integer.getInteger("bank.lockStripes", 1024));
+
+    private AccountLocks() {
+    }
+
+    private static ReentrantLock[] createLocks(int stripes) {
+        int size = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+        ReentrantLock[] locks = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        return locks;
+    }
+
+    /**
+     * This method chooses stripe of given account. IDs are mixed first (Fibonacci hashing),
+     * so accounts with neighbouring IDs do not end up on neighbouring stripes only, and time-ordered
+     * IDs, which differ mostly in their high bits, are spread over all stripes as well.
+     *
+     * @param accountID     ID of account
+     * @return              index of the lock which protects this account
+     */
+    static int stripe(long accountID) {
+        long h = accountID * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & (LOCKS.length - 1);
+    }
+
+    /**
+     * This method locks the account. It has to be followed by unlock() in a finally block.
+     *
+     * @param accountID     ID of account we want to change
+     */
+    public static void lock(long accountID) {
+        acquire(stripe(accountID), accountID);
+    }
+
+    public static void unlock(long accountID) {
+        LOCKS[stripe(accountID)].unlock();
+    }
+
+    /**
+     * This method locks two accounts. Locks are always taken from the lower stripe to the higher one,
+     * and if both accounts share a stripe it is locked only once.
+     *
+     * @param firstAccountID    ID of the first account
+     * @param secondAccountID   ID of the second account
+     */
+    public static void lockBoth(long firstAccountID, long secondAccountID) {
+        int first = stripe(firstAccountID);
+        int second = stripe(secondAccountID);
+        acquire(Math.min(first, second), first <= second ? firstAccountID : secondAccountID);
+        if (first != second) {
+            acquire(Math.max(first, second), first > second ? firstAccountID : secondAccountID);
+        }
+    }
+
+    public static void unlockBoth(long firstAccountID, long secondAccountID) {
+        int first = stripe(firstAccountID);
+        int second = stripe(secondAccountID);
+        if (first != second) {
+            LOCKS[Math.max(first, second)].unlock();
+        }
+        LOCKS[Math.min(first, second)].unlock();
+    }
+
+    /**
+     * This method locks any number of accounts, taking stripes in ascending order like lockBoth().
+     *
+     * @param accountIDs    IDs of accounts we want to change together
+     * @return              stripes which were locked, to be passed to unlockStripes()
+     */
+    public static int[] lockAll(long[] accountIDs) {
+        int[] stripes = new int[accountIDs.length];
+        for (int i = 0; i < accountIDs.length; i++) {
+            stripes[i] = stripe(accountIDs[i]);
+        }
+        int[] sorted = Arrays.stream(stripes).sorted().distinct().toArray();
+        for (int stripe : sorted) {
+            if (!LOCKS[stripe].tryLock()) {
+                int i = 0;
+                while (stripes[i] != stripe) {
+                    i++;
+                }
+                waitFor(stripe, accountIDs[i]);
+            }
+        }
+        return sorted;
+    }
+
+    /**
+     * This method locks all stripes, so no balance can change until unlockStripes() is called.
+     * It is used to copy balances of all accounts at one moment and should be held only briefly.
+     *
+     * @return              stripes which were locked, to be passed to unlockStripes()
+     */
+    public static int[] lockEverything() {
+        int[] stripes = new int[LOCKS.length];
+        for (int stripe = 0; stripe < LOCKS.length; stripe++) {
+            stripes[stripe] = stripe;
+            acquire(stripe, 0);
+        }
+        return stripes;
+    }
+
+    /**
+     * This method takes the lock of given stripe. If it is held by another thread,
+     * the wait is recorded as a bank.LockWait event.
+     */
+    private static void acquire(int stripe, long accountID) {
+        if (!LOCKS[stripe].tryLock()) {
+            waitFor(stripe, accountID);
+        }
+    }
+
+    private static void waitFor(int stripe, long accountID) {
+        BankEvents.LockWaitEvent event = new BankEvents.LockWaitEvent();
+        event.begin();
+        LOCKS[stripe].lock();
+        event.end();
+        if (event.shouldCommit()) {
+            event.operationID = BankEvents.currentOperationID();
+            event.accountID = accountID;
+            event.stripe = stripe;
+            event.commit();
+        }
+    }
+
+    public static void unlockStripes(int[] stripes) {
+        for (int i = stripes.length - 1; i >= 0; i--) {
+            LOCKS[stripes[i]].unlock();
+        }
+    }
+}
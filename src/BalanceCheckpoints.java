@@ -0,0 +1,542 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Balances of accounts as they were at a given moment ("balance as of T"), for audits and disputes.
+ * Every hour (-Dbank.checkpoint.seconds, 0 turns it off) balances of all accounts are written to
+ * the checkpoints directory together with the time of the checkpoint. Balance as of T is the balance
+ * from the newest checkpoint made before T, changed by operations from the transaction ledger made
+ * between the checkpoint and T, so a query replays at most one checkpoint interval of operations.
+ *
+ * Format of a checkpoint file (big-endian):
+ * <pre>
+ * header:    magic, version, time of the checkpoint, number of accounts
+ * accounts:  accountID, customerID, balance in cents of every account, sorted by accountID
+ * trailer:   CRC32 of everything before it
+ * </pre>
+ * Checkpoint is made while locks of all accounts (and of the data store, so no account is opened or
+ * deleted meanwhile) are held, only for the time of copying the balances, so it contains exactly the
+ * operations recorded in the ledger up to its time. Opening and deleting of accounts are recorded in
+ * the ledger too, so accounts deleted before T are left out and accounts which did not exist yet are unknown.
+ * A checkpoint with wrong checksum is skipped and the previous one is used instead. A query for one account
+ * reads only the entries its binary search visits, so checkpoints of any size can be queried.
+ *
+ * Checkpoints are kept forever by default, because they are needed to answer questions about old balances.
+ * With -Dbank.checkpoint.retainDays checkpoints older than that are deleted after a new one is written,
+ * except the newest of them, which is still needed for times at the start of the retained period.
+ */
+public class BalanceCheckpoints {
+
+    private static final long MAGIC = 0x42414E4B434B5054L; // "BANKCKPT"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+    private static final int ENTRY_SIZE = 24;
+    private static final String PREFIX = "checkpoint-";
+    private static final String SUFFIX = ".bin";
+    private static final long PERIOD_SECONDS = Long.getLong("bank.checkpoint.seconds", 3600);
+    private static final long RETAIN_MILLIS = Long.getLong("bank.checkpoint.retainDays", 0) * 24 * 3600 * 1000;
+    private static final LatencyHistogram WRITE_LATENCY = Metrics.histogram("checkpoint.write");
+    private static final LatencyHistogram QUERY_LATENCY = Metrics.histogram("checkpoint.balanceAsOf");
+
+    private static BalanceCheckpoints instance;
+
+    private final Path directory;
+    private final Object lock = new Object();
+    private final Set<Path> verified = ConcurrentHashMap.newKeySet();
+    private ScheduledExecutorService executor;
+
+    /**
+     * Balances of all accounts at one moment.
+     */
+    public static class BalanceSheet {
+        final long time;
+        final long checkpointTime;
+        final int replayedOperations;
+        final TreeMap<Long, long[]> accounts;
+
+        BalanceSheet(long time, long checkpointTime, int replayedOperations, TreeMap<Long, long[]> accounts) {
+            this.time = time;
+            this.checkpointTime = checkpointTime;
+            this.replayedOperations = replayedOperations;
+            this.accounts = accounts;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public long getCheckpointTime() {
+            return checkpointTime;
+        }
+
+        public int getReplayedOperations() {
+            return replayedOperations;
+        }
+
+        /**
+         * @return      accountID -> {customerID, balance in cents}, sorted by accountID
+         */
+        public TreeMap<Long, long[]> getAccounts() {
+            return accounts;
+        }
+
+        /**
+         * @return      sum of balances of all accounts in cents
+         */
+        public long getTotal() {
+            long total = 0;
+            for (long[] account : accounts.values()) {
+                total = Money.add(total, account[1]);
+            }
+            return total;
+        }
+    }
+
+    /**
+     * Opened checkpoint file whose header and checksum were checked. Entries are read from the file
+     * only when they are needed, so the file is never loaded into memory whole.
+     */
+    private static class Checkpoint implements Closeable {
+        final FileChannel channel;
+        final long time;
+        final int count;
+
+        Checkpoint(FileChannel channel, long time, int count) {
+            this.channel = channel;
+            this.time = time;
+            this.count = count;
+        }
+
+        /**
+         * This method finds an account with a binary search over the entries, which are sorted by accountID.
+         *
+         * @param accountID     ID of the account
+         * @return              {customerID, balance in cents} or null if the account is not in the checkpoint
+         * @throws IOException
+         */
+        long[] find(long accountID) throws IOException {
+            ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+            int low = 0;
+            int high = count - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                entry.clear();
+                readFully(channel, entry, HEADER_SIZE + (long) middle * ENTRY_SIZE);
+                long id = entry.getLong(0);
+                if (id < accountID) {
+                    low = middle + 1;
+                } else if (id > accountID) {
+                    high = middle - 1;
+                } else {
+                    return new long[]{entry.getLong(8), entry.getLong(16)};
+                }
+            }
+            return null;
+        }
+
+        /**
+         * This method reads all entries in the order of the file into the map.
+         *
+         * @param accounts      accountID -> {customerID, balance in cents}
+         * @throws IOException
+         */
+        void readAll(Map<Long, long[]> accounts) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(ENTRY_SIZE * 4096);
+            long position = HEADER_SIZE;
+            long end = HEADER_SIZE + (long) count * ENTRY_SIZE;
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                readFully(channel, buffer, position);
+                position += buffer.limit();
+                while (buffer.hasRemaining()) {
+                    accounts.put(buffer.getLong(), new long[]{buffer.getLong(), buffer.getLong()});
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * This method returns checkpoints shared by the whole process.
+     *
+     * @return      shared checkpoints
+     */
+    public static synchronized BalanceCheckpoints getInstance() {
+        if (instance == null) {
+            instance = new BalanceCheckpoints(Paths.get(System.getProperty("bank.checkpoint.dir", "checkpoints")));
+        }
+        return instance;
+    }
+
+    public static boolean isEnabled() {
+        return PERIOD_SECONDS > 0;
+    }
+
+    BalanceCheckpoints(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * This method starts background thread which makes checkpoints of given data store periodically.
+     * If there is no checkpoint yet, the first one is made right away, because balances before
+     * the first checkpoint cannot be reconstructed.
+     *
+     * @param reader        data store whose accounts are saved
+     */
+    public void start(CSVReader reader) {
+        synchronized (lock) {
+            if (executor != null) {
+                return;
+            }
+            executor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "balance-checkpoint");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long firstDelay = PERIOD_SECONDS;
+            try {
+                if (list().isEmpty()) {
+                    firstDelay = 0;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            executor.scheduleWithFixedDelay(() -> {
+                try {
+                    write(reader);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, firstDelay, PERIOD_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * This method writes checkpoint with balances of all accounts of the data store.
+     *
+     * @param reader        data store whose accounts are saved
+     * @return              written checkpoint file
+     * @throws IOException
+     */
+    public Path write(CSVReader reader) throws IOException {
+        synchronized (lock) {
+            long start = System.nanoTime();
+            Account[] accounts;
+            long[] balances;
+            long time;
+            synchronized (reader) {
+                accounts = reader.getAccounts().toArray(new Account[0]);
+                balances = new long[accounts.length];
+                int[] stripes = AccountLocks.lockEverything();
+                try {
+                    time = TransactionLedger.getInstance().cut();
+                    for (int i = 0; i < accounts.length; i++) {
+                        balances[i] = accounts[i].getBalance();
+                    }
+                } finally {
+                    AccountLocks.unlockStripes(stripes);
+                }
+            }
+            Integer[] order = new Integer[accounts.length];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (first, second) -> Long.compare(accounts[first].getAccountID(), accounts[second].getAccountID()));
+
+            Files.createDirectories(directory);
+            Path file = directory.resolve(String.format("%s%015d%s", PREFIX, time, SUFFIX));
+            Path temporary = directory.resolve(file.getFileName() + ".tmp");
+            try {
+                CRC32 crc = new CRC32();
+                FileOutputStream fos = new FileOutputStream(temporary.toFile());
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16))) {
+                    ByteBuffer buffer = ByteBuffer.allocate(Math.max(HEADER_SIZE, ENTRY_SIZE));
+                    buffer.putLong(MAGIC).putInt(VERSION).putLong(time).putInt(accounts.length);
+                    write(out, crc, buffer);
+                    for (int i : order) {
+                        buffer.clear();
+                        buffer.putLong(accounts[i].getAccountID()).putLong(accounts[i].getCustomerID()).putLong(balances[i]);
+                        write(out, crc, buffer);
+                    }
+                    out.writeLong(crc.getValue());
+                    out.flush();
+                    fos.getFD().sync();
+                }
+                Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporary);
+                WRITE_LATENCY.recordSince(start);
+            }
+            verified.add(file);
+            deleteExpired(time);
+            return file;
+        }
+    }
+
+    /**
+     * This method deletes checkpoints older than -Dbank.checkpoint.retainDays, except the newest of them,
+     * so balances as of any time in the retained period can still be computed.
+     *
+     * @param now       time of the newest checkpoint
+     * @throws IOException
+     */
+    private void deleteExpired(long now) throws IOException {
+        if (RETAIN_MILLIS <= 0) {
+            return;
+        }
+        boolean keptOne = false;
+        for (Path file : list()) {
+            if (timeOf(file) > now - RETAIN_MILLIS) {
+                continue;
+            }
+            if (!keptOne) {
+                keptOne = true;
+                continue;
+            }
+            Files.deleteIfExists(file);
+            verified.remove(file);
+        }
+    }
+
+    private static void write(DataOutputStream out, CRC32 crc, ByteBuffer buffer) throws IOException {
+        crc.update(buffer.array(), 0, buffer.position());
+        out.write(buffer.array(), 0, buffer.position());
+    }
+
+    /**
+     * This method returns checkpoint files, the newest first.
+     */
+    private List<Path> list() throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return Collections.emptyList();
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> {
+                        String name = path.getFileName().toString();
+                        return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+                    })
+                    .sorted(Collections.reverseOrder())
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static long timeOf(Path file) {
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    /**
+     * This method opens the newest valid checkpoint made at given time or before it.
+     * Checkpoints with wrong checksum are reported and skipped. The caller has to close the checkpoint.
+     *
+     * @param millis    time in milliseconds since 1970
+     * @return          checkpoint or null if there is no valid checkpoint that old
+     * @throws IOException
+     */
+    private Checkpoint checkpointAsOf(long millis) throws IOException {
+        for (Path file : list()) {
+            if (timeOf(file) > millis) {
+                continue;
+            }
+            try {
+                return open(file);
+            } catch (IOException e) {
+                Metrics.counter("checkpoint.corrupt").increment();
+                System.out.println("Checkpoint " + file + " cannot be used (" + e.getMessage() + "), trying an older one");
+            }
+        }
+        return null;
+    }
+
+    /**
+     * This method opens checkpoint file and checks its header and size. The checksum is computed
+     * only the first time the file is opened, reading the file in blocks.
+     */
+    private Checkpoint open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size < HEADER_SIZE + Long.BYTES) {
+                throw new IOException("file is too short");
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(channel, header, 0);
+            if (header.getLong(0) != MAGIC || header.getInt(8) != VERSION) {
+                throw new IOException("not a checkpoint file of version " + VERSION);
+            }
+            int count = header.getInt(20);
+            if (count < 0 || size != HEADER_SIZE + (long) count * ENTRY_SIZE + Long.BYTES) {
+                throw new IOException("wrong number of accounts");
+            }
+            if (!verified.contains(file)) {
+                ByteBuffer trailer = ByteBuffer.allocate(Long.BYTES);
+                readFully(channel, trailer, size - Long.BYTES);
+                if (checksum(channel, size - Long.BYTES) != trailer.getLong(0)) {
+                    throw new IOException("wrong checksum");
+                }
+                verified.add(file);
+            }
+            return new Checkpoint(channel, header.getLong(12), count);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static long checksum(FileChannel channel, long length) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        long position = 0;
+        while (position < length) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), length - position));
+            readFully(channel, buffer, position);
+            position += buffer.limit();
+            crc.update(buffer);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * This method fills the buffer from given position of the file and flips it for reading.
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("unexpected end of checkpoint file");
+            }
+            position += read;
+        }
+        buffer.flip();
+    }
+
+    /**
+     * This method returns balance the account had at given time.
+     *
+     * @param accountID     ID of the account
+     * @param millis        time in milliseconds since 1970
+     * @return              balance in cents, or null if the account did not exist at that time or its balance
+     *                      is not known (the time is before the first checkpoint and there is no operation
+     *                      on the account in the ledger before it)
+     * @throws IOException
+     */
+    public Long balanceAsOf(long accountID, long millis) throws IOException {
+        long start = System.nanoTime();
+        Checkpoint checkpoint = checkpointAsOf(millis);
+        try {
+            long checkpointTime = checkpoint == null ? Long.MIN_VALUE : checkpoint.time;
+            List<TransactionLedger.Entry> last = TransactionLedger.getInstance().history(accountID, checkpointTime + 1, millis, 0, 1);
+            if (!last.isEmpty()) {
+                return last.get(0).getType() == TransactionLedger.Type.CLOSED ? null : last.get(0).getBalance();
+            }
+            if (checkpoint == null) {
+                return null;
+            }
+            long[] account = checkpoint.find(accountID);
+            return account == null ? null : account[1];
+        } finally {
+            if (checkpoint != null) {
+                checkpoint.close();
+            }
+            QUERY_LATENCY.recordSince(start);
+        }
+    }
+
+    /**
+     * This method returns balances of all accounts at given time. Accounts which were opened after
+     * the checkpoint are included if they were opened before the given time, accounts deleted
+     * before it are left out.
+     *
+     * @param millis        time in milliseconds since 1970
+     * @return              balance sheet or null if there is no checkpoint that old
+     * @throws IOException
+     */
+    public BalanceSheet balanceSheetAsOf(long millis) throws IOException {
+        long start = System.nanoTime();
+        Checkpoint checkpoint = checkpointAsOf(millis);
+        try {
+            if (checkpoint == null) {
+                return null;
+            }
+            TreeMap<Long, long[]> accounts = new TreeMap<>();
+            checkpoint.readAll(accounts);
+            CSVReader reader = CSVReader.getInstance();
+            int[] replayed = new int[1];
+            TransactionLedger.getInstance().scan(checkpoint.time, millis, entry -> {
+                replayed[0]++;
+                if (entry.getType() == TransactionLedger.Type.CLOSED) {
+                    accounts.remove(entry.getAccountID());
+                    return;
+                }
+                if (entry.getType() == TransactionLedger.Type.OPENED) {
+                    accounts.put(entry.getAccountID(), new long[]{entry.getCounterpartyID(), entry.getBalance()});
+                    return;
+                }
+                long[] account = accounts.get(entry.getAccountID());
+                if (account == null) {
+                    Account current = reader.getAccountFromGivenAccountID(entry.getAccountID());
+                    account = new long[]{current == null ? 0 : current.getCustomerID(), 0};
+                    accounts.put(entry.getAccountID(), account);
+                }
+                account[1] = entry.getBalance();
+            });
+            return new BalanceSheet(millis, checkpoint.time, replayed[0], accounts);
+        } finally {
+            if (checkpoint != null) {
+                checkpoint.close();
+            }
+            QUERY_LATENCY.recordSince(start);
+        }
+    }
+
+    /**
+     * This method writes balance sheet to a CSV file, one account per line: customerID, accountID, balance.
+     *
+     * @param sheet     balance sheet
+     * @param file      path of the file
+     * @throws IOException
+     */
+    public static void writeBalanceSheet(BalanceSheet sheet, Path file) throws IOException {
+        try (BufferedWriter bw = Files.newBufferedWriter(file)) {
+            StringBuilder sb = new StringBuilder(64);
+            for (Map.Entry<Long, long[]> account : sheet.getAccounts().entrySet()) {
+                sb.setLength(0);
+                sb.append(account.getValue()[0]).append(", ").append(account.getKey()).append(", ");
+                Money.appendTo(sb, account.getValue()[1]);
+                bw.append(sb);
+                bw.newLine();
+            }
+        }
+    }
+}
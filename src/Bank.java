@@ -1,14 +1,27 @@
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.Scanner;
 
 public class Bank {
 
     private static final Scanner in = new Scanner(System.in);
     MenuData menu = new MenuData();
-    CSVReader csvReader = new CSVReader();
+    CSVReader csvReader = CSVReader.getInstance();
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0 && args[0].equals("--server")) {
+            BankServer.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--report")) {
+            BankReports.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--script")) {
+            ScriptDriver.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
         MenuData menu = new MenuData();
         System.out.println("Welcome in banking system!");
         String choice = "";
@@ -27,16 +40,12 @@ public class Bank {
         csvReader.newCustomer();
     }
 
-    public void displayUsers() {
-        for (Customer customer : csvReader.getCustomers()) {
-            System.out.println(customer);
-        }
+    public void displayUsers() throws IOException {
+        menu.displayCustomerListing();
     }
 
-    public void displayAccounts() {
-        for (Account account : csvReader.getAccounts()) {
-            System.out.println(account);
-        }
+    public void displayAccounts() throws IOException {
+        menu.displayAccountListing();
     }
 
     public void logIntoATM() throws NoSuchAlgorithmException, IOException {
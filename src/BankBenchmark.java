@@ -0,0 +1,252 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.SplittableRandom;
+
+/**
+ * Benchmarks of the hot paths of the bank: loading data files, looking up accounts, hashing
+ * and verifying passwords, writing accounts.csv and withdraw/deposit/transfer end to end (including
+ * the fsync of the transaction journal). All data is generated by DatasetGenerator.
+ *
+ * Verification is measured for legacy and sha256 hashes and for PBKDF2 with every work factor
+ * from bench.pbkdf2Iterations, and printed also as logins per second per core, so the cost of
+ * a stronger work factor can be compared with the login capacity it leaves.
+ *
+ * Every benchmark is first run for a few warmup iterations, so the JIT compiler can do its job,
+ * and then for measured iterations. Every iteration repeats the operation until it has run for at
+ * least bench.iterationMillis. Results are printed and written to a csv file:
+ * <pre>
+ * benchmark, param, score, error, unit, iterations
+ * readAccountsFromFile, 1000000, 812.4, 35.1, ms/op, 5
+ * withdraw, 100000, 1250.7, 80.2, us/op, 5
+ * </pre>
+ * where error is the standard deviation of iterations. When a results file of an earlier run is
+ * passed with -Dbench.baseline, change of every score against it is printed as well.
+ *
+ * CSVReader works on customers.csv and accounts.csv in the working directory, so the benchmark
+ * has to be started in an empty directory and refuses to run next to real data files.
+ * Settings (system properties):
+ * <pre>
+ * bench.sizes            rows of files for load benchmarks (10000,1000000), e.g. 10000,1000000,10000000
+ * bench.rows             rows of the data set used by the other benchmarks (100000)
+ * bench.pbkdf2Iterations work factors of PBKDF2 to verify with (10000,100000,300000)
+ * bench.warmup           warmup iterations (3)
+ * bench.iterations       measured iterations (5)
+ * bench.iterationMillis  minimal time of one iteration (1000)
+ * bench.results          results file (benchmark-results.csv)
+ * bench.baseline         results file of an earlier run to compare with
+ * </pre>
+ * Usage: {@code mkdir bench && cd bench && java -Xmx4g -cp .. BankBenchmark}
+ */
+public class BankBenchmark {
+
+    private static final String SEPARATOR = ", ";
+    private static final long SEED = 42;
+
+    private final int warmup = Integer.getInteger("bench.warmup", 3);
+    private final int iterations = Integer.getInteger("bench.iterations", 5);
+    private final long iterationNanos = Long.getLong("bench.iterationMillis", 1000) * 1_000_000;
+    private final ArrayList<String> results = new ArrayList<>();
+
+    /**
+     * Result of the benchmarked operation. It is accumulated in a field, so the JIT compiler
+     * cannot remove the operation as dead code.
+     */
+    private static volatile long sink;
+
+    /**
+     * One call of the benchmarked operation.
+     */
+    private interface Operation {
+        long run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (Files.exists(Paths.get("customers.csv")) || Files.exists(Paths.get("accounts.csv"))) {
+            System.out.println("Data files found in the working directory. Run the benchmark in an empty directory, it overwrites them.");
+            return;
+        }
+        new BankBenchmark().run();
+    }
+
+    private void run() throws Exception {
+        int rows = Integer.getInteger("bench.rows", 100_000);
+        DatasetGenerator generator = new DatasetGenerator(SEED);
+        generator.writeCustomers(Paths.get("customers.csv"), rows);
+        generator.writeAccounts(Paths.get("accounts.csv"), rows, rows);
+        CSVReader csvReader = CSVReader.getInstance();
+        ATM atm = new ATM();
+
+        for (String size : System.getProperty("bench.sizes", "10000,1000000").split(",")) {
+            int count = Integer.parseInt(size.trim());
+            generator.writeCustomers(Paths.get("customers.csv"), count);
+            generator.writeAccounts(Paths.get("accounts.csv"), count, count);
+            measure("readCustomersFromFile", count, () -> csvReader.readCustomersFromFile().size());
+            measure("readAccountsFromFile", count, () -> csvReader.readAccountsFromFile().size());
+        }
+        csvReader.writeUsersToCSV(csvReader.getCustomers());
+        csvReader.writeAccountsToCSV(csvReader.getAccounts());
+
+        long[] accountIDs = csvReader.getAccountIDs().stream().mapToLong(Long::longValue).toArray();
+        SplittableRandom random = new SplittableRandom(SEED);
+        measure("getAccountFromGivenAccountID", rows,
+                () -> csvReader.getAccountFromGivenAccountID(accountIDs[random.nextInt(accountIDs.length)]).getBalance());
+        measureCredentials(csvReader, random);
+
+        measure("deposit", rows, () -> atm.tryDeposit(accountIDs[random.nextInt(accountIDs.length)], 100).ordinal());
+        measure("withdraw", rows, () -> atm.tryWithdraw(accountIDs[random.nextInt(accountIDs.length)], 100).ordinal());
+        measure("transfer", rows, () -> atm.tryTransfer(accountIDs[random.nextInt(accountIDs.length)],
+                accountIDs[random.nextInt(accountIDs.length)], 100).ordinal());
+        measure("writeAccountsToCSV", rows, () -> {
+            csvReader.writeAccountsToCSV(csvReader.getAccounts());
+            return rows;
+        });
+
+        Path output = Paths.get(System.getProperty("bench.results", "benchmark-results.csv"));
+        writeResults(output);
+        System.out.println("Results written to " + output.toAbsolutePath());
+        String baseline = System.getProperty("bench.baseline");
+        if (baseline != null) {
+            compare(Paths.get(baseline));
+        }
+    }
+
+    /**
+     * This method measures hashing with the configured scheme and verification of every supported
+     * format of stored hashes. Every password is verified against its own hash, like a successful login.
+     */
+    private void measureCredentials(CSVReader csvReader, SplittableRandom random) throws Exception {
+        String[] passwords = new String[256];
+        for (int i = 0; i < passwords.length; i++) {
+            passwords[i] = "Password" + i;
+        }
+        measure("hash", passwords.length, () -> csvReader.hash(passwords[random.nextInt(passwords.length)]).length());
+
+        CredentialService sha256 = new CredentialService(CredentialService.SHA256, 1);
+        String[] legacyHashes = new String[passwords.length];
+        String[] sha256Hashes = new String[passwords.length];
+        for (int i = 0; i < passwords.length; i++) {
+            legacyHashes[i] = CredentialService.legacyHash(passwords[i]);
+            sha256Hashes[i] = sha256.hash(passwords[i]);
+        }
+        printLoginRate(measure("verify.legacy", 0, () -> verify(sha256, passwords, legacyHashes, random)));
+        printLoginRate(measure("verify.sha256", 0, () -> verify(sha256, passwords, sha256Hashes, random)));
+        for (String value : System.getProperty("bench.pbkdf2Iterations", "10000,100000,300000").split(",")) {
+            int iterations = Integer.parseInt(value.trim());
+            CredentialService pbkdf2 = new CredentialService(CredentialService.PBKDF2, iterations);
+            String[] hashes = new String[16];
+            for (int i = 0; i < hashes.length; i++) {
+                hashes[i] = pbkdf2.hash(passwords[i]);
+            }
+            printLoginRate(measure("verify.pbkdf2", iterations, () -> verify(pbkdf2, passwords, hashes, random)));
+        }
+    }
+
+    private static long verify(CredentialService service, String[] passwords, String[] hashes, SplittableRandom random) {
+        int i = random.nextInt(hashes.length);
+        if (!service.verify(passwords[i], hashes[i])) {
+            throw new IllegalStateException("Password " + i + " was not verified");
+        }
+        return i;
+    }
+
+    private static void printLoginRate(double nanosPerLogin) {
+        System.out.println("    = " + format(1_000_000_000 / nanosPerLogin) + " logins/s/core");
+    }
+
+    /**
+     * This method runs warmup and measured iterations of the operation and records mean time of one call.
+     * Time is given in the unit which suits the operation best (ns, us or ms per call).
+     *
+     * @param name          name of the benchmark
+     * @param param         size of the data the operation works on
+     * @param operation     benchmarked operation
+     * @return              mean time of one call in nanoseconds
+     * @throws Exception
+     */
+    private double measure(String name, int param, Operation operation) throws Exception {
+        double[] nanosPerOp = new double[iterations];
+        for (int i = -warmup; i < iterations; i++) {
+            long start = System.nanoTime();
+            long elapsed;
+            long ops = 0;
+            do {
+                sink += operation.run();
+                ops++;
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < iterationNanos);
+            if (i >= 0) {
+                nanosPerOp[i] = (double) elapsed / ops;
+            }
+        }
+        double mean = Arrays.stream(nanosPerOp).average().orElse(0);
+        double variance = Arrays.stream(nanosPerOp).map(x -> (x - mean) * (x - mean)).sum() / Math.max(1, iterations - 1);
+        double divisor = mean >= 1_000_000 ? 1_000_000 : mean >= 1_000 ? 1_000 : 1;
+        String unit = divisor == 1_000_000 ? "ms/op" : divisor == 1_000 ? "us/op" : "ns/op";
+        String line = name + SEPARATOR + param + SEPARATOR + format(mean / divisor) + SEPARATOR
+                + format(Math.sqrt(variance) / divisor) + SEPARATOR + unit + SEPARATOR + iterations;
+        results.add(line);
+        System.out.println(line);
+        return mean;
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    private void writeResults(Path output) throws IOException {
+        try (BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output.toFile()), StandardCharsets.UTF_8))) {
+            bw.write("benchmark" + SEPARATOR + "param" + SEPARATOR + "score" + SEPARATOR + "error" + SEPARATOR + "unit" + SEPARATOR + "iterations");
+            bw.newLine();
+            for (String line : results) {
+                bw.write(line);
+                bw.newLine();
+            }
+        }
+    }
+
+    /**
+     * This method prints change of every score against the results of an earlier run.
+     * Scores are times, so a positive change means the operation got slower.
+     *
+     * @param baseline      results file of an earlier run
+     * @throws IOException
+     */
+    private void compare(Path baseline) throws IOException {
+        HashMap<String, Double> earlier = new HashMap<>();
+        try (BufferedReader br = Files.newBufferedReader(baseline, StandardCharsets.UTF_8)) {
+            br.readLine();
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] data = line.split(SEPARATOR);
+                earlier.put(data[0] + SEPARATOR + data[1], toNanos(data[2], data[4]));
+            }
+        }
+        System.out.println("Change against " + baseline + ":");
+        for (String line : results) {
+            String[] data = line.split(SEPARATOR);
+            Double before = earlier.get(data[0] + SEPARATOR + data[1]);
+            if (before == null || before == 0) {
+                System.out.println(data[0] + SEPARATOR + data[1] + SEPARATOR + "no baseline");
+            } else {
+                double change = (toNanos(data[2], data[4]) - before) / before * 100;
+                System.out.println(data[0] + SEPARATOR + data[1] + SEPARATOR + (change > 0 ? "+" : "") + format(change) + "%");
+            }
+        }
+    }
+
+    private static double toNanos(String score, String unit) {
+        double value = Double.parseDouble(score);
+        return unit.equals("ms/op") ? value * 1_000_000 : unit.equals("us/op") ? value * 1_000 : value;
+    }
+}
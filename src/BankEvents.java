@@ -0,0 +1,193 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicLong;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Custom Java Flight Recorder events of the bank, so stalls can be matched with GC pauses
+ * and disk activity in the same recording:
+ * <pre>
+ * bank.Operation   withdraw, deposit or transfer with its operation ID
+ * bank.FileIO      read or write of customers.csv / accounts.csv or a snapshot with rows and bytes
+ * bank.Hash        hash or verification of a password or PIN
+ * bank.LockWait    wait for a contended lock of an account
+ * bank.FlushWait   wait until balance changes are on disk
+ * </pre>
+ * Events which happen during an operation carry its operation ID, so e.g. a long lock wait can be
+ * traced back to the transfer it delayed. Operation IDs are only assigned while bank.Operation
+ * is being recorded.
+ *
+ * When recording is off, JFR reports every event type as disabled and the JIT compiler removes
+ * the events together with their allocation, so they cost nothing. Fields are only filled in
+ * after shouldCommit() returns true.
+ *
+ * Recording example: {@code java -XX:StartFlightRecording=filename=bank.jfr Bank}
+ */
+public final class BankEvents {
+
+    private static final AtomicLong NEXT_OPERATION_ID = new AtomicLong();
+    private static final ThreadLocal<OperationEvent> CURRENT_OPERATION = new ThreadLocal<>();
+
+    private BankEvents() {
+    }
+
+    @Name("bank.Operation")
+    @Label("Account Operation")
+    @Category("Bank")
+    @Description("Withdraw, deposit or transfer")
+    static class OperationEvent extends Event {
+        @Label("Operation ID")
+        long operationID;
+
+        @Label("Operation")
+        String operation;
+
+        @Label("Account ID")
+        long accountID;
+
+        @Label("Other Account ID")
+        long otherAccountID;
+
+        @Label("Amount in Cents")
+        long amount;
+
+        @Label("Result")
+        String result;
+    }
+
+    @Name("bank.FileIO")
+    @Label("Data File I/O")
+    @Category("Bank")
+    @Description("Read or write of a whole data file")
+    static class FileIOEvent extends Event {
+        @Label("Operation")
+        String operation;
+
+        @Label("File")
+        String file;
+
+        @Label("Rows")
+        long rows;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("bank.Hash")
+    @Label("Credential Hash")
+    @Category("Bank")
+    @StackTrace(false)
+    static class HashEvent extends Event {
+        @Label("Operation ID")
+        long operationID;
+
+        @Label("Scheme")
+        String scheme;
+
+        @Label("Input Length")
+        int inputLength;
+    }
+
+    @Name("bank.LockWait")
+    @Label("Account Lock Wait")
+    @Category("Bank")
+    @Description("Wait for a lock of an account held by another thread")
+    static class LockWaitEvent extends Event {
+        @Label("Operation ID")
+        long operationID;
+
+        @Label("Account ID")
+        long accountID;
+
+        @Label("Stripe")
+        int stripe;
+    }
+
+    @Name("bank.FlushWait")
+    @Label("Persistence Flush Wait")
+    @Category("Bank")
+    @Description("Wait until recorded balance changes are on disk")
+    static class FlushWaitEvent extends Event {
+        @Label("Operation ID")
+        long operationID;
+
+        @Label("Sequence Number")
+        long seq;
+    }
+
+    /**
+     * This method starts event of an account operation. It has to be followed by endOperation() in a finally block.
+     *
+     * @param operation         name of the operation
+     * @param accountID         ID of the account
+     * @param otherAccountID    ID of the other account of a transfer, 0 otherwise
+     * @param amount            amount of money in cents
+     * @return                  started event
+     */
+    static OperationEvent beginOperation(String operation, long accountID, long otherAccountID, long amount) {
+        OperationEvent event = new OperationEvent();
+        if (event.isEnabled()) {
+            event.operationID = NEXT_OPERATION_ID.incrementAndGet();
+            event.operation = operation;
+            event.accountID = accountID;
+            event.otherAccountID = otherAccountID;
+            event.amount = amount;
+            CURRENT_OPERATION.set(event);
+            event.begin();
+        }
+        return event;
+    }
+
+    static void endOperation(OperationEvent event, ATM.Result result) {
+        if (event.operationID != 0) {
+            CURRENT_OPERATION.remove();
+            event.end();
+            if (event.shouldCommit()) {
+                event.result = result == null ? "ERROR" : result.name();
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * This method ends event of reading or writing a data file. Size of the file is only read
+     * when the event is going to be recorded.
+     *
+     * @param event         event started before the file was read or written
+     * @param operation     name of the method, e.g. "writeAccountsToCSV"
+     * @param file          name of the file
+     * @param rows          number of rows read or written
+     */
+    static void endFileIO(FileIOEvent event, String operation, String file, long rows) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.operation = operation;
+            event.file = file;
+            event.rows = rows;
+            try {
+                event.bytes = Files.size(Paths.get(file));
+            } catch (IOException e) {
+                event.bytes = -1;
+            }
+            event.commit();
+        }
+    }
+
+    /**
+     * This method returns ID of the operation running on the current thread.
+     *
+     * @return      operation ID or 0 if there is no operation or bank.Operation is not recorded
+     */
+    static long currentOperationID() {
+        OperationEvent operation = CURRENT_OPERATION.get();
+        return operation == null ? 0 : operation.operationID;
+    }
+}
@@ -0,0 +1,489 @@
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BinaryOperator;
+import java.util.function.Supplier;
+
+/**
+ * Reporting engine which computes bank-wide aggregates in one pass over all accounts:
+ * <pre>
+ * totals                number of customers and accounts, total deposits (sum of balances), mean, lowest and highest balance
+ * balance distribution  number of accounts and money in every decade of balance: 0.01-0.99, 1.00-9.99, 10.00-99.99, ...
+ * roles                 customers, accounts and money by role of the owner
+ * largest accounts      top N accounts by balance (N is -Dbank.report.top, 10 by default)
+ * net worth             sum of balances of every customer, written to net-worth-TIME.csv, the richest N are printed
+ * </pre>
+ * Accounts are split into parts which are reduced in parallel on the common fork/join pool. Every part
+ * fills its own Aggregate and aggregates are merged pairwise while tasks join, so there is no shared
+ * state and no lock during the pass.
+ *
+ * Data comes either from memory (CSVReader) or, for data sets too large to load, straight from
+ * customers.csv and accounts.csv. Files are split into byte ranges like in ParallelCSVLoader and rows
+ * are parsed into the aggregate without creating Customer or Account objects. Balances changed since
+ * accounts.csv was written are taken from the transaction journal. In that mode only the sums of
+ * customers are kept in memory, as primitive longs in an open addressing map.
+ *
+ * Started from the admin menu (in memory) or with {@code java Bank --report [--memory]}
+ * (from files, unless --memory is given or the binary or sharded account store is used).
+ */
+public class BankReports {
+
+    private static final String SEPARATOR = ", ";
+    private static final int TOP = Integer.getInteger("bank.report.top", 10);
+    private static final int LEAF_SIZE = 64 * 1024;
+    private static final long MIN_CHUNK_BYTES = 1024 * 1024;
+    private static final int BUCKETS = 20;
+    private static final String UNKNOWN_ROLE = "unknown";
+
+    /**
+     * Partial result of the pass over a part of the accounts. Two aggregates are merged into one
+     * when the tasks which made them join.
+     */
+    static class Aggregate {
+        long accounts;
+        long totalBalance;
+        long minBalance = Long.MAX_VALUE;
+        long maxBalance = Long.MIN_VALUE;
+        final long[] bucketAccounts = new long[BUCKETS];
+        final long[] bucketBalance = new long[BUCKETS];
+        final HashMap<String, long[]> roles = new HashMap<>();
+        final PriorityQueue<long[]> largest = new PriorityQueue<>(Comparator.comparingLong(account -> account[2]));
+        LongSumMap netWorth = new LongSumMap();
+
+        void add(long customerID, long accountID, long balance, String role) {
+            accounts++;
+            totalBalance = Math.addExact(totalBalance, balance);
+            minBalance = Math.min(minBalance, balance);
+            maxBalance = Math.max(maxBalance, balance);
+            int bucket = bucket(balance);
+            bucketAccounts[bucket]++;
+            bucketBalance[bucket] += balance;
+            long[] byRole = roles.computeIfAbsent(role, k -> new long[2]);
+            byRole[0]++;
+            byRole[1] += balance;
+            offer(largest, accountID, customerID, balance);
+            netWorth.add(customerID, balance);
+        }
+
+        Aggregate merge(Aggregate other) {
+            accounts += other.accounts;
+            totalBalance = Math.addExact(totalBalance, other.totalBalance);
+            minBalance = Math.min(minBalance, other.minBalance);
+            maxBalance = Math.max(maxBalance, other.maxBalance);
+            for (int i = 0; i < BUCKETS; i++) {
+                bucketAccounts[i] += other.bucketAccounts[i];
+                bucketBalance[i] += other.bucketBalance[i];
+            }
+            for (Map.Entry<String, long[]> entry : other.roles.entrySet()) {
+                long[] role = roles.computeIfAbsent(entry.getKey(), k -> new long[2]);
+                role[0] += entry.getValue()[0];
+                role[1] += entry.getValue()[1];
+            }
+            for (long[] account : other.largest) {
+                offer(largest, account[0], account[1], account[2]);
+            }
+            if (other.netWorth.size() > netWorth.size()) {
+                LongSumMap smaller = netWorth;
+                netWorth = other.netWorth;
+                netWorth.addAll(smaller);
+            } else {
+                netWorth.addAll(other.netWorth);
+            }
+            return this;
+        }
+    }
+
+    /**
+     * Number of customers of every role and IDs of customers whose role is not "customer",
+     * found in one pass over the customers.
+     */
+    static class Customers {
+        final TreeMap<String, Long> counts = new TreeMap<>();
+        final HashMap<Long, String> otherRoles = new HashMap<>();
+
+        void add(long customerID, String role) {
+            counts.merge(role, 1L, Long::sum);
+            if (!role.equals("customer")) {
+                otherRoles.put(customerID, role);
+            }
+        }
+
+        Customers merge(Customers other) {
+            other.counts.forEach((role, count) -> counts.merge(role, count, Long::sum));
+            otherRoles.putAll(other.otherRoles);
+            return this;
+        }
+
+        String roleOf(long customerID) {
+            return otherRoles.getOrDefault(customerID, "customer");
+        }
+    }
+
+    /**
+     * Reduction of one part of the data, part being a range of an array or of a file.
+     */
+    private interface Part<A> {
+        A reduce(int part) throws IOException;
+    }
+
+    /**
+     * Task which reduces parts from (inclusive) to (exclusive): it splits the range in half until
+     * one part is left and merges results of both halves.
+     */
+    private static class ReduceTask<A> extends RecursiveTask<A> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        private final transient Part<A> part;
+        private final transient BinaryOperator<A> merge;
+
+        ReduceTask(int from, int to, Part<A> part, BinaryOperator<A> merge) {
+            this.from = from;
+            this.to = to;
+            this.part = part;
+            this.merge = merge;
+        }
+
+        @Override
+        protected A compute() {
+            if (to - from == 1) {
+                try {
+                    return part.reduce(from);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            int middle = (from + to) >>> 1;
+            ReduceTask<A> left = new ReduceTask<>(from, middle, part, merge);
+            left.fork();
+            A right = new ReduceTask<>(middle, to, part, merge).compute();
+            return merge.apply(left.join(), right);
+        }
+    }
+
+    private final Customers customers;
+    private final Aggregate aggregate;
+    private final String source;
+
+    private BankReports(Customers customers, Aggregate aggregate, String source) {
+        this.customers = customers;
+        this.aggregate = aggregate;
+        this.source = source;
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean memory = Arrays.asList(args).contains("--memory") || BinaryAccountStore.isEnabled() || ShardedAccountStore.isEnabled();
+        long start = System.nanoTime();
+        BankReports reports = memory ? fromMemory(CSVReader.getInstance()) : fromFiles(Paths.get("customers.csv"), Paths.get("accounts.csv"));
+        reports.print(Paths.get("."), System.nanoTime() - start);
+    }
+
+    /**
+     * This method computes reports from customers and accounts loaded by CSVReader.
+     * Accounts are copied under the lock of the data store and balances are read without
+     * locks of accounts, so an operation running during the pass may or may not be included.
+     *
+     * @param csvReader     data store
+     * @return              computed reports
+     */
+    public static BankReports fromMemory(CSVReader csvReader) {
+        Customer[] customerRows;
+        Account[] accountRows;
+        synchronized (csvReader) {
+            customerRows = csvReader.getCustomers().toArray(new Customer[0]);
+            accountRows = csvReader.getAccounts().toArray(new Account[0]);
+        }
+        Customers customers = reduce(parts(customerRows.length), part -> {
+            Customers partial = new Customers();
+            for (int i = part * LEAF_SIZE; i < Math.min(customerRows.length, (part + 1) * LEAF_SIZE); i++) {
+                partial.add(customerRows[i].getCustomerID(), customerRows[i].getRole());
+            }
+            return partial;
+        }, Customers::merge, new Customers());
+        Aggregate aggregate = reduce(parts(accountRows.length), part -> {
+            Aggregate partial = new Aggregate();
+            for (int i = part * LEAF_SIZE; i < Math.min(accountRows.length, (part + 1) * LEAF_SIZE); i++) {
+                Account account = accountRows[i];
+                long customerID = account.getCustomerID();
+                partial.add(customerID, account.getAccountID(), account.getBalance(),
+                        csvReader.containsCustomerID(customerID) ? customers.roleOf(customerID) : UNKNOWN_ROLE);
+            }
+            return partial;
+        }, Aggregate::merge, new Aggregate());
+        return new BankReports(customers, aggregate, "memory");
+    }
+
+    /**
+     * This method computes reports straight from the data files, without loading them.
+     *
+     * @param customersFile     customers.csv
+     * @param accountsFile      accounts.csv, the transaction journal next to it is applied too (it is only read)
+     * @return                  computed reports
+     * @throws IOException
+     */
+    public static BankReports fromFiles(Path customersFile, Path accountsFile) throws IOException {
+        HashMap<Long, Long> journal = TransactionJournal.readLatestBalances(accountsFile.resolveSibling(TransactionJournal.JOURNAL_FILE));
+        Customers customers = reduceFile(customersFile, (partial, parser) -> {
+            parser.expectFields(7);
+            partial.add(parser.longField(0), parser.stringField(6, "customer", "admin"));
+        }, Customers::new, Customers::merge);
+        Aggregate aggregate = reduceFile(accountsFile, (partial, parser) -> {
+            parser.expectFields(4);
+            long customerID = parser.longField(0);
+            long accountID = parser.longField(1);
+            Long balance = journal.get(accountID);
+            partial.add(customerID, accountID, balance != null ? balance : parser.centsField(2), customers.roleOf(customerID));
+        }, Aggregate::new, Aggregate::merge);
+        return new BankReports(customers, aggregate, customersFile + " and " + accountsFile);
+    }
+
+    /**
+     * Addition of a row of the file to a partial result.
+     */
+    private interface RowReducer<A> {
+        void add(A partial, CSVParser parser) throws CSVParser.CSVFormatException;
+    }
+
+    private static <A> A reduceFile(Path path, RowReducer<A> reducer, Supplier<A> create, BinaryOperator<A> merge) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            int chunks = (int) Math.max(1, Math.min(4L * ForkJoinPool.commonPool().getParallelism(), size / MIN_CHUNK_BYTES));
+            long[] boundaries = ParallelCSVLoader.findBoundaries(channel, size, chunks);
+            String fileName = path.getFileName().toString();
+            long[] malformed = new long[chunks];
+            A result;
+            try {
+                result = reduce(chunks, part -> {
+                    A partial = create.get();
+                    CSVParser parser = new CSVParser(channel, fileName, boundaries[part], boundaries[part + 1], 1);
+                    ArrayList<CSVParser.CSVFormatException> errors = new ArrayList<>();
+                    parser.collectErrors(errors);
+                    parser.parseAll(p -> reducer.add(partial, p));
+                    malformed[part] = errors.size();
+                    return partial;
+                }, merge, create.get());
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            long skipped = Arrays.stream(malformed).sum();
+            if (skipped > 0) {
+                System.out.println("Skipped " + skipped + " malformed rows of " + fileName);
+            }
+            return result;
+        }
+    }
+
+    private static int parts(int rows) {
+        return (rows + LEAF_SIZE - 1) / LEAF_SIZE;
+    }
+
+    private static <A> A reduce(int parts, Part<A> part, BinaryOperator<A> merge, A empty) {
+        if (parts == 0) {
+            return empty;
+        }
+        return ForkJoinPool.commonPool().invoke(new ReduceTask<>(0, parts, part, merge));
+    }
+
+    /**
+     * This method keeps row {id, owner, value} in the queue if it is one of the TOP highest values.
+     * Row is only allocated when it gets in.
+     */
+    private static void offer(PriorityQueue<long[]> top, long id, long owner, long value) {
+        if (top.size() < TOP) {
+            top.add(new long[]{id, owner, value});
+        } else if (TOP > 0 && top.peek()[2] < value) {
+            top.poll();
+            top.add(new long[]{id, owner, value});
+        }
+    }
+
+    /**
+     * This method returns bucket of the balance distribution: 0 for zero or less, 1 for 0.01-0.99,
+     * 2 for 1.00-9.99, 3 for 10.00-99.99 and so on.
+     */
+    static int bucket(long cents) {
+        if (cents <= 0) {
+            return 0;
+        }
+        int digits = 1;
+        for (long value = cents; value >= 10; value /= 10) {
+            digits++;
+        }
+        return Math.min(BUCKETS - 1, Math.max(1, digits - 1));
+    }
+
+    private static String bucketLabel(int bucket) {
+        if (bucket == 0) {
+            return "0.00 and less";
+        }
+        if (bucket == 1) {
+            return "0.01 - 0.99";
+        }
+        long from = 1;
+        for (int i = 2; i < bucket; i++) {
+            from *= 10;
+        }
+        return Money.toString(from * 100) + " - " + Money.toString(from * 1000 - 1);
+    }
+
+    /**
+     * This method prints all reports and writes net worth of every customer to a csv file.
+     *
+     * @param directory         directory of the net worth file
+     * @param elapsedNanos      time the pass took
+     * @throws IOException
+     */
+    public void print(Path directory, long elapsedNanos) throws IOException {
+        Aggregate a = aggregate;
+        long customerCount = customers.counts.values().stream().mapToLong(Long::longValue).sum();
+        System.out.println("Reports from " + source + ", computed in " + elapsedNanos / 1_000_000 + " ms on "
+                + ForkJoinPool.commonPool().getParallelism() + " threads");
+        System.out.println("\nTotals:");
+        System.out.println("  customers: " + customerCount + ", accounts: " + a.accounts);
+        System.out.println("  total deposits: " + Money.toString(a.totalBalance));
+        if (a.accounts > 0) {
+            System.out.println("  mean balance: " + Money.toString(a.totalBalance / a.accounts)
+                    + ", lowest: " + Money.toString(a.minBalance) + ", highest: " + Money.toString(a.maxBalance));
+        }
+        System.out.println("\nBalance distribution:");
+        for (int i = 0; i < BUCKETS; i++) {
+            if (a.bucketAccounts[i] > 0) {
+                System.out.println(String.format(Locale.ROOT, "  %-30s %12d accounts %8.2f%% %24s", bucketLabel(i), a.bucketAccounts[i],
+                        100.0 * a.bucketAccounts[i] / a.accounts, Money.toString(a.bucketBalance[i])));
+            }
+        }
+        System.out.println("\nRoles:");
+        TreeMap<String, Long> roles = new TreeMap<>(customers.counts);
+        for (String role : a.roles.keySet()) {
+            roles.putIfAbsent(role, 0L);
+        }
+        for (Map.Entry<String, Long> role : roles.entrySet()) {
+            long[] accounts = a.roles.getOrDefault(role.getKey(), new long[2]);
+            System.out.println("  " + role.getKey() + ": " + role.getValue() + " customers, " + accounts[0] + " accounts, "
+                    + Money.toString(accounts[1]));
+        }
+        System.out.println("\nLargest accounts:");
+        List<long[]> largest = new ArrayList<>(a.largest);
+        largest.sort(Comparator.comparingLong((long[] account) -> account[2]).reversed());
+        for (long[] account : largest) {
+            System.out.println("  account " + account[0] + " of customer " + account[1] + ": " + Money.toString(account[2]));
+        }
+        PriorityQueue<long[]> richest = new PriorityQueue<>(Comparator.comparingLong(customer -> customer[2]));
+        Path file = directory.resolve("net-worth-" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")) + ".csv");
+        try (BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file.toFile()), StandardCharsets.UTF_8), 1 << 16)) {
+            bw.write("customerID" + SEPARATOR + "netWorth");
+            bw.newLine();
+            StringBuilder sb = new StringBuilder(48);
+            a.netWorth.forEach((customerID, netWorth) -> {
+                offer(richest, customerID, 0, netWorth);
+                sb.setLength(0);
+                sb.append(customerID).append(SEPARATOR);
+                Money.appendTo(sb, netWorth);
+                try {
+                    bw.append(sb);
+                    bw.newLine();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        System.out.println("\nRichest customers:");
+        List<long[]> sorted = new ArrayList<>(richest);
+        sorted.sort(Comparator.comparingLong((long[] customer) -> customer[2]).reversed());
+        for (long[] customer : sorted) {
+            System.out.println("  customer " + customer[0] + ": " + Money.toString(customer[2]));
+        }
+        System.out.println("\nNet worth of " + a.netWorth.size() + " customers was written to " + file);
+    }
+
+    /**
+     * Map of long keys to sums of long values which keeps both in primitive arrays (open addressing
+     * with linear probing), so a sum takes 16 bytes instead of two boxed objects and an entry.
+     */
+    static class LongSumMap {
+
+        /**
+         * Consumer of one key and its sum.
+         */
+        interface Consumer {
+            void accept(long key, long sum);
+        }
+
+        private long[] keys = new long[16];
+        private long[] sums = new long[16];
+        private boolean[] used = new boolean[16];
+        private int size;
+
+        void add(long key, long value) {
+            if (2 * (size + 1) > keys.length) {
+                grow();
+            }
+            int mask = keys.length - 1;
+            int i = (int) ((key * 0x9E3779B97F4A7C15L) >>> 33) & mask;
+            while (used[i] && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            if (!used[i]) {
+                used[i] = true;
+                keys[i] = key;
+                size++;
+            }
+            sums[i] = Math.addExact(sums[i], value);
+        }
+
+        void addAll(LongSumMap other) {
+            other.forEach(this::add);
+        }
+
+        void forEach(Consumer consumer) {
+            for (int i = 0; i < keys.length; i++) {
+                if (used[i]) {
+                    consumer.accept(keys[i], sums[i]);
+                }
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            long[] oldSums = sums;
+            boolean[] oldUsed = used;
+            keys = new long[oldKeys.length * 2];
+            sums = new long[oldKeys.length * 2];
+            used = new boolean[oldKeys.length * 2];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldUsed[i]) {
+                    add(oldKeys[i], oldSums[i]);
+                }
+            }
+        }
+    }
+}
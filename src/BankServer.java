@@ -0,0 +1,593 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server mode of the bank. It exposes the same operations as the console menu over HTTP with
+ * JSON responses, using the HTTP server built into the JDK and listening on localhost only.
+ * All requests work on the shared CSVReader and ATM, so the console and the server see the same data.
+ *
+ * Every request is handled on its own virtual thread when the JVM supports them (Java 21+),
+ * so thousands of waiting clients do not need thousands of platform threads. On older JVMs
+ * a bounded thread pool is used instead (-Dbank.server.threads, -Dbank.server.queue); when its queue
+ * is full the accepting thread handles the request itself, so no more connections are accepted meanwhile.
+ *
+ * After -Dbank.server.maxFailures failed logins of one account or customer (or
+ * -Dbank.server.maxClientFailures failed logins from one client address) logins are refused
+ * with 429 for -Dbank.server.lockoutSeconds. Sessions expire after -Dbank.server.sessionMinutes
+ * without a request.
+ *
+ * Endpoints (parameters are sent as a form body or query string, session token as
+ * "Authorization: Bearer token" header):
+ * <pre>
+ * POST /login/account     accountID, pin           -> token of ATM session
+ * POST /login/customer    customerID, password     -> token of customer or admin session
+ * POST /logout                                     -> ends the session
+ * GET  /balance                                    -> balance of the account of ATM session
+ * POST /withdraw          amount
+ * POST /deposit           amount
+ * POST /transfer          toAccountID, amount
+ * GET  /admin/customers   offset, limit
+ * POST /admin/customers   name, surname, sex, phoneNumber, password, role
+ *                                                  -> new customer (and its account with PIN if role is customer)
+ * POST /admin/customers/password  customerID, password
+ * GET  /admin/accounts    offset, limit
+ * POST /admin/accounts    customerID               -> new account with its PIN
+ * POST /admin/accounts/delete  accountID
+ * POST /admin/accounts/pin     accountID, pin
+ * </pre>
+ * Started with {@code java Bank --server [port]}.
+ */
+public class BankServer {
+
+    private static final int DEFAULT_PORT = 8080;
+    private static final int MAX_PAGE = 1000;
+    private static final LatencyHistogram CUSTOMER_LOGIN_LATENCY = Metrics.histogram("login.customer");
+    private static final LatencyHistogram ACCOUNT_LOGIN_LATENCY = Metrics.histogram("login.account");
+    private static final LongAdder FAILED_LOGINS = Metrics.counter("login.failed");
+    private static final LongAdder LOCKED_LOGINS = Metrics.counter("login.locked");
+    private static final int MAX_FAILURES = Integer.getInteger("bank.server.maxFailures", 5);
+    private static final int MAX_CLIENT_FAILURES = Integer.getInteger("bank.server.maxClientFailures", 50);
+    private static final long LOCKOUT_MILLIS = Long.getLong("bank.server.lockoutSeconds", 300) * 1000;
+    private static final long SESSION_MILLIS = Long.getLong("bank.server.sessionMinutes", 15) * 60_000;
+    private static final int THREADS = Integer.getInteger("bank.server.threads", 200);
+    private static final int QUEUE = Integer.getInteger("bank.server.queue", 1000);
+
+    private final CSVReader csvReader = CSVReader.getInstance();
+    private final ATM atm = new ATM();
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Failures> failures = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private final HashMap<String, HashMap<String, Handler>> routes = new HashMap<>();
+    private HttpServer server;
+    private ScheduledExecutorService evictor;
+
+    /**
+     * Logged in client: either an account (ATM session) or a customer.
+     */
+    private static class Session {
+        final long accountID;
+        final long customerID;
+        final boolean admin;
+        volatile long lastUsed = System.currentTimeMillis();
+
+        Session(long accountID, long customerID, boolean admin) {
+            this.accountID = accountID;
+            this.customerID = customerID;
+            this.admin = admin;
+        }
+
+        boolean isExpired(long now) {
+            return now - lastUsed > SESSION_MILLIS;
+        }
+    }
+
+    /**
+     * Failed logins of one account, customer or client address. Failures older than
+     * the lockout are forgotten.
+     */
+    private static class Failures {
+        int count;
+        long lastFailure;
+        long lockedUntil;
+
+        boolean isStale(long now) {
+            return lockedUntil <= now && now - lastFailure > LOCKOUT_MILLIS;
+        }
+    }
+
+    /**
+     * Error which is sent to the client with given HTTP status.
+     */
+    private static class HttpError extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        HttpError(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    private interface Handler {
+        String handle(HttpExchange exchange, Map<String, String> params) throws Exception;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        new BankServer().start(port);
+    }
+
+    /**
+     * This method starts the server on localhost.
+     *
+     * @param port      port to listen on
+     * @throws IOException
+     */
+    public void start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+        server.setExecutor(createExecutor());
+        route("POST", "/login/account", this::loginAccount);
+        route("POST", "/login/customer", this::loginCustomer);
+        route("POST", "/logout", this::logout);
+        route("GET", "/balance", this::balance);
+        route("POST", "/withdraw", this::withdraw);
+        route("POST", "/deposit", this::deposit);
+        route("POST", "/transfer", this::transfer);
+        route("GET", "/admin/customers", this::listCustomers);
+        route("POST", "/admin/customers", this::addCustomer);
+        route("POST", "/admin/customers/password", this::changePassword);
+        route("GET", "/admin/accounts", this::listAccounts);
+        route("POST", "/admin/accounts", this::openAccount);
+        route("POST", "/admin/accounts/delete", this::deleteAccount);
+        route("POST", "/admin/accounts/pin", this::changePIN);
+        for (Map.Entry<String, HashMap<String, Handler>> entry : routes.entrySet()) {
+            server.createContext(entry.getKey(), exchange -> dispatch(exchange, entry.getKey(), entry.getValue()));
+        }
+        evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "session-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        evictor.scheduleWithFixedDelay(this::evictExpired, 1, 1, TimeUnit.MINUTES);
+        server.start();
+        System.out.println("Bank server is listening on http://localhost:" + server.getAddress().getPort());
+    }
+
+    public void stop() {
+        server.stop(0);
+        evictor.shutdownNow();
+    }
+
+    /**
+     * This method creates executor with one virtual thread per task if the JVM has virtual threads.
+     * It is looked up by reflection, so the program still runs on older JVMs, which get a bounded pool.
+     *
+     * @return      executor for requests
+     */
+    static ExecutorService createExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(QUEUE), new ThreadPoolExecutor.CallerRunsPolicy());
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
+    }
+
+    /**
+     * This method removes expired sessions and forgotten login failures. It runs every minute,
+     * so tokens of clients which never log out do not stay in memory.
+     */
+    private void evictExpired() {
+        long now = System.currentTimeMillis();
+        sessions.values().removeIf(session -> session.isExpired(now));
+        failures.values().removeIf(entry -> {
+            synchronized (entry) {
+                return entry.isStale(now);
+            }
+        });
+    }
+
+    /**
+     * This method adds handler of given method and path. Latency of every request is recorded
+     * in histogram named after the route, e.g. "http POST /withdraw".
+     */
+    private void route(String method, String path, Handler handler) {
+        LatencyHistogram latency = Metrics.histogram("http " + method + " " + path);
+        routes.computeIfAbsent(path, k -> new HashMap<>()).put(method, (exchange, params) -> {
+            long start = System.nanoTime();
+            try {
+                return handler.handle(exchange, params);
+            } finally {
+                latency.recordSince(start);
+            }
+        });
+    }
+
+    private void dispatch(HttpExchange exchange, String path, HashMap<String, Handler> handlers) throws IOException {
+        int status = 200;
+        String body;
+        try {
+            if (!exchange.getRequestURI().getPath().equals(path)) {
+                throw new HttpError(404, "Not found");
+            }
+            Handler handler = handlers.get(exchange.getRequestMethod());
+            if (handler == null) {
+                throw new HttpError(405, "Use " + String.join(" or ", handlers.keySet()));
+            }
+            body = handler.handle(exchange, readParams(exchange));
+        } catch (HttpError e) {
+            status = e.status;
+            body = "{\"error\":" + quote(e.getMessage()) + "}";
+        } catch (NumberFormatException e) {
+            status = 400;
+            body = "{\"error\":\"Invalid number\"}";
+        } catch (ArithmeticException e) {
+            status = 422;
+            body = "{\"error\":\"Invalid amount\"}";
+        } catch (Exception e) {
+            status = 500;
+            body = "{\"error\":" + quote(String.valueOf(e.getMessage())) + "}";
+        }
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    private static Map<String, String> readParams(HttpExchange exchange) throws IOException {
+        HashMap<String, String> params = new HashMap<>();
+        parseForm(exchange.getRequestURI().getRawQuery(), params);
+        try (InputStream is = exchange.getRequestBody()) {
+            parseForm(new String(is.readAllBytes(), StandardCharsets.UTF_8), params);
+        }
+        return params;
+    }
+
+    private static void parseForm(String form, Map<String, String> params) {
+        if (form == null || form.isEmpty()) {
+            return;
+        }
+        for (String pair : form.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, equals), StandardCharsets.UTF_8),
+                        URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    private static String required(Map<String, String> params, String name) throws HttpError {
+        String value = params.get(name);
+        if (value == null) {
+            throw new HttpError(400, "Missing parameter " + name);
+        }
+        return value;
+    }
+
+    private static String token(HttpExchange exchange) {
+        String header = exchange.getRequestHeaders().getFirst("Authorization");
+        return header != null && header.startsWith("Bearer ") ? header.substring(7) : null;
+    }
+
+    private Session session(HttpExchange exchange) throws HttpError {
+        String token = token(exchange);
+        Session session = token != null ? sessions.get(token) : null;
+        if (session == null) {
+            throw new HttpError(401, "Not logged in");
+        }
+        long now = System.currentTimeMillis();
+        if (session.isExpired(now)) {
+            sessions.remove(token, session);
+            throw new HttpError(401, "Session expired");
+        }
+        session.lastUsed = now;
+        return session;
+    }
+
+    private Session accountSession(HttpExchange exchange) throws HttpError {
+        Session session = session(exchange);
+        if (session.accountID == 0) {
+            throw new HttpError(403, "Log into an account first");
+        }
+        return session;
+    }
+
+    private void adminSession(HttpExchange exchange) throws HttpError {
+        if (!session(exchange).admin) {
+            throw new HttpError(403, "Only admin can do this");
+        }
+    }
+
+    private String newToken(Session session) {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        StringBuilder token = new StringBuilder(32);
+        for (byte b : bytes) {
+            token.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        sessions.put(token.toString(), session);
+        return token.toString();
+    }
+
+    /**
+     * This method refuses the login if one of given keys is locked out after too many failed logins.
+     * It is checked before the PIN or password, so a locked out client learns nothing from guessing.
+     */
+    private void checkLockout(String... keys) throws HttpError {
+        long now = System.currentTimeMillis();
+        for (String key : keys) {
+            Failures entry = failures.get(key);
+            if (entry != null) {
+                synchronized (entry) {
+                    if (entry.lockedUntil > now) {
+                        LOCKED_LOGINS.increment();
+                        throw new HttpError(429, "Too many failed logins, try again in "
+                                + ((entry.lockedUntil - now) / 1000 + 1) + " seconds");
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * This method counts a failed login of given key and locks the key out when it has failed
+     * given number of times in a row.
+     */
+    private void loginFailed(String key, int maxFailures) {
+        long now = System.currentTimeMillis();
+        Failures entry = failures.computeIfAbsent(key, k -> new Failures());
+        synchronized (entry) {
+            if (now - entry.lastFailure > LOCKOUT_MILLIS) {
+                entry.count = 0;
+            }
+            entry.lastFailure = now;
+            if (++entry.count >= maxFailures) {
+                entry.count = 0;
+                entry.lockedUntil = now + LOCKOUT_MILLIS;
+            }
+        }
+    }
+
+    private static String clientKey(HttpExchange exchange) {
+        return "client:" + exchange.getRemoteAddress().getAddress().getHostAddress();
+    }
+
+    private String loginAccount(HttpExchange exchange, Map<String, String> params) throws HttpError {
+        long accountID = Long.parseLong(required(params, "accountID"));
+        String pin = required(params, "pin");
+        String key = "account:" + accountID;
+        String client = clientKey(exchange);
+        checkLockout(key, client);
+        Account account = csvReader.getAccountFromGivenAccountID(accountID);
+        long start = System.nanoTime();
+        boolean valid = account != null && csvReader.verify(pin, account.getPIN());
+        ACCOUNT_LOGIN_LATENCY.recordSince(start);
+        if (!valid) {
+            FAILED_LOGINS.increment();
+            loginFailed(key, MAX_FAILURES);
+            loginFailed(client, MAX_CLIENT_FAILURES);
+            throw new HttpError(401, "Invalid account ID or PIN");
+        }
+        failures.remove(key);
+        return "{\"token\":" + quote(newToken(new Session(accountID, account.getCustomerID(), false))) + "}";
+    }
+
+    private String loginCustomer(HttpExchange exchange, Map<String, String> params) throws HttpError {
+        long customerID = Long.parseLong(required(params, "customerID"));
+        String password = required(params, "password");
+        String key = "customer:" + customerID;
+        String client = clientKey(exchange);
+        checkLockout(key, client);
+        Customer customer = csvReader.getCustomerFromGivenCustomerID(customerID);
+        long start = System.nanoTime();
+        boolean valid = customer != null && csvReader.verify(password, customer.getPassword());
+        CUSTOMER_LOGIN_LATENCY.recordSince(start);
+        if (!valid) {
+            FAILED_LOGINS.increment();
+            loginFailed(key, MAX_FAILURES);
+            loginFailed(client, MAX_CLIENT_FAILURES);
+            throw new HttpError(401, "Invalid customer ID or password");
+        }
+        failures.remove(key);
+        boolean admin = !customer.getRole().equals("customer");
+        return "{\"token\":" + quote(newToken(new Session(0, customerID, admin))) + ",\"role\":" + quote(customer.getRole()) + "}";
+    }
+
+    private String logout(HttpExchange exchange, Map<String, String> params) throws HttpError {
+        session(exchange);
+        sessions.remove(token(exchange));
+        return "{\"loggedOut\":true}";
+    }
+
+    private String balance(HttpExchange exchange, Map<String, String> params) throws HttpError {
+        Session session = accountSession(exchange);
+        return accountJson(existingAccount(session.accountID));
+    }
+
+    private Account existingAccount(long accountID) throws HttpError {
+        Account account = csvReader.getAccountFromGivenAccountID(accountID);
+        if (account == null) {
+            throw new HttpError(404, ATM.Result.UNKNOWN_ACCOUNT.name());
+        }
+        return account;
+    }
+
+    private String withdraw(HttpExchange exchange, Map<String, String> params) throws Exception {
+        Session session = accountSession(exchange);
+        return result(atm.tryWithdraw(session.accountID, Money.parse(required(params, "amount"))), session.accountID);
+    }
+
+    private String deposit(HttpExchange exchange, Map<String, String> params) throws Exception {
+        Session session = accountSession(exchange);
+        return result(atm.tryDeposit(session.accountID, Money.parse(required(params, "amount"))), session.accountID);
+    }
+
+    private String transfer(HttpExchange exchange, Map<String, String> params) throws Exception {
+        Session session = accountSession(exchange);
+        long toAccountID = Long.parseLong(required(params, "toAccountID"));
+        return result(atm.tryTransfer(session.accountID, toAccountID, Money.parse(required(params, "amount"))), session.accountID);
+    }
+
+    private String result(ATM.Result result, long accountID) throws HttpError {
+        if (result != ATM.Result.OK) {
+            throw new HttpError(result == ATM.Result.UNKNOWN_ACCOUNT ? 404 : 422, result.name());
+        }
+        return accountJson(existingAccount(accountID));
+    }
+
+    private String listCustomers(HttpExchange exchange, Map<String, String> params) throws HttpError {
+        adminSession(exchange);
+        int offset = Math.max(0, Integer.parseInt(params.getOrDefault("offset", "0")));
+        int limit = Math.min(MAX_PAGE, Integer.parseInt(params.getOrDefault("limit", "100")));
+        ArrayList<Customer> page = new ArrayList<>();
+        // new customers are appended under the lock of the reader, so the list is copied under it too
+        synchronized (csvReader) {
+            ArrayList<Customer> customers = csvReader.getCustomers();
+            int end = (int) Math.min(customers.size(), (long) offset + limit);
+            for (int i = offset; i < end; i++) {
+                page.add(customers.get(i));
+            }
+        }
+        StringBuilder sb = new StringBuilder("[");
+        for (Customer customer : page) {
+            if (sb.length() > 1) {
+                sb.append(',');
+            }
+            sb.append("{\"customerID\":").append(customer.getCustomerID())
+                    .append(",\"name\":").append(quote(customer.getName()))
+                    .append(",\"surname\":").append(quote(customer.getSurname()))
+                    .append(",\"role\":").append(quote(customer.getRole())).append('}');
+        }
+        return sb.append(']').toString();
+    }
+
+    private String addCustomer(HttpExchange exchange, Map<String, String> params) throws Exception {
+        adminSession(exchange);
+        String role = params.getOrDefault("role", "customer");
+        Customer customer = csvReader.registerCustomer(required(params, "name"), required(params, "surname"), required(params, "sex"),
+                Long.parseLong(required(params, "phoneNumber")), required(params, "password"), role);
+        if (customer == null) {
+            throw new HttpError(422, "Invalid phone number, password or role, or the phone number is already registered");
+        }
+        StringBuilder sb = new StringBuilder("{\"customerID\":").append(customer.getCustomerID());
+        if (role.equals("customer")) {
+            String pin = csvReader.generatePIN();
+            Account account = csvReader.openAccount(customer.getCustomerID(), pin);
+            sb.append(",\"accountID\":").append(account.getAccountID()).append(",\"pin\":").append(quote(pin));
+        }
+        return sb.append('}').toString();
+    }
+
+    private String changePassword(HttpExchange exchange, Map<String, String> params) throws Exception {
+        adminSession(exchange);
+        long customerID = Long.parseLong(required(params, "customerID"));
+        Customer customer = csvReader.getCustomerFromGivenCustomerID(customerID);
+        if (customer == null) {
+            throw new HttpError(404, "There is no customer with given ID");
+        }
+        if (!customer.getRole().equals("customer")) {
+            throw new HttpError(403, "You cannot change the password of admin");
+        }
+        if (!csvReader.changePassword(customerID, required(params, "password"))) {
+            throw new HttpError(422, "This is not a valid password");
+        }
+        return "{\"customerID\":" + customerID + "}";
+    }
+
+    private String listAccounts(HttpExchange exchange, Map<String, String> params) throws HttpError {
+        adminSession(exchange);
+        ArrayList<Account> accounts = csvReader.getAccounts();
+        StringBuilder sb = new StringBuilder("[");
+        int offset = Integer.parseInt(params.getOrDefault("offset", "0"));
+        int end = (int) Math.min(accounts.size(), (long) offset + Math.min(MAX_PAGE, Integer.parseInt(params.getOrDefault("limit", "100"))));
+        for (int i = Math.max(0, offset); i < end; i++) {
+            if (sb.length() > 1) {
+                sb.append(',');
+            }
+            sb.append(accountJson(accounts.get(i)));
+        }
+        return sb.append(']').toString();
+    }
+
+    private String openAccount(HttpExchange exchange, Map<String, String> params) throws Exception {
+        adminSession(exchange);
+        long customerID = Long.parseLong(required(params, "customerID"));
+        String pin = csvReader.generatePIN();
+        Account account = csvReader.openAccount(customerID, pin);
+        if (account == null) {
+            throw new HttpError(404, "There is no customer with given ID");
+        }
+        return "{\"accountID\":" + account.getAccountID() + ",\"pin\":" + quote(pin) + "}";
+    }
+
+    private String deleteAccount(HttpExchange exchange, Map<String, String> params) throws Exception {
+        adminSession(exchange);
+        long accountID = Long.parseLong(required(params, "accountID"));
+        if (!csvReader.deleteAccount(accountID)) {
+            if (!csvReader.containsAccountID(accountID)) {
+                throw new HttpError(404, "There is no account with given ID");
+            }
+            throw new HttpError(422, "Balance of account is not zero");
+        }
+        return "{\"deleted\":" + accountID + "}";
+    }
+
+    private String changePIN(HttpExchange exchange, Map<String, String> params) throws Exception {
+        adminSession(exchange);
+        long accountID = Long.parseLong(required(params, "accountID"));
+        existingAccount(accountID);
+        if (!csvReader.changePIN(accountID, required(params, "pin"))) {
+            throw new HttpError(422, "This is not a valid PIN");
+        }
+        return "{\"accountID\":" + accountID + "}";
+    }
+
+    private static String accountJson(Account account) {
+        StringBuilder sb = new StringBuilder(96);
+        sb.append("{\"customerID\":").append(account.getCustomerID())
+                .append(",\"accountID\":").append(account.getAccountID())
+                .append(",\"balance\":\"");
+        return Money.appendTo(sb, account.getBalance()).append("\"}").toString();
+    }
+
+    private static String quote(String text) {
+        StringBuilder sb = new StringBuilder(text.length() + 2).append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
@@ -0,0 +1,100 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * End-to-end throughput simulation on synthetic data sets of growing size. For every size a directory
+ * sim-SIZE is filled by DatasetGenerator with SIZE accounts (owned by 2/3 as many customers) and a Zipfian
+ * workload, and the workload is replayed by ScriptDriver in a new JVM started in that directory.
+ * Every size gets its own process, so the data store starts empty and heap use belongs to one size only.
+ *
+ * Every run appends one row to the results file: sustained operations per second, latency percentiles
+ * and heap after load and at peak, next to the number of accounts (see ScriptDriver).
+ * All -Dbank.* properties are passed on to the child JVMs, e.g. -Dbank.credentials.scheme=sha256 makes
+ * the generated data and the logins of the workload cheap, -Dbank.writeBehind=true turns on write-behind.
+ * Settings (system properties):
+ * <pre>
+ * sim.sizes          numbers of accounts (100000,1000000), e.g. 1000000,10000000,100000000
+ * sim.operations     operations of the workload of every size (1000000)
+ * sim.sessionLength  operations of one session between login and logout (50)
+ * sim.zipf           skew of activity of accounts (0.99)
+ * sim.sessions       concurrent sessions (2 per processor)
+ * sim.heap           maximal heap of child JVMs (4g)
+ * sim.results        results file (simulation-results.csv)
+ * </pre>
+ * Directories of earlier runs are not overwritten, the simulation refuses to start instead.
+ * Usage: {@code java -cp . BankSimulation}
+ */
+public class BankSimulation {
+
+    private static final long SEED = 42;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        long operations = Long.getLong("sim.operations", 1_000_000);
+        int sessionLength = Integer.getInteger("sim.sessionLength", 50);
+        double zipf = Double.parseDouble(System.getProperty("sim.zipf", "0.99"));
+        int sessions = Integer.getInteger("sim.sessions", 2 * Runtime.getRuntime().availableProcessors());
+        String heap = System.getProperty("sim.heap", "4g");
+        Path results = Paths.get(System.getProperty("sim.results", "simulation-results.csv")).toAbsolutePath();
+        String[] sizes = System.getProperty("sim.sizes", "100000,1000000").split(",");
+        for (String size : sizes) {
+            if (Files.exists(Paths.get("sim-" + size.trim()))) {
+                System.out.println("Directory sim-" + size.trim() + " already exists. Remove it or run the simulation in another directory.");
+                return;
+            }
+        }
+        DatasetGenerator generator = new DatasetGenerator(SEED);
+        for (String size : sizes) {
+            int accounts = Integer.parseInt(size.trim());
+            int customers = Math.max(1, (int) (accounts * 2L / 3));
+            Path directory = Files.createDirectories(Paths.get("sim-" + accounts));
+            long start = System.nanoTime();
+            generator.writeCustomers(directory.resolve("customers.csv"), customers);
+            generator.writeAccounts(directory.resolve("accounts.csv"), accounts, customers);
+            generator.writeWorkload(directory.resolve("workload.txt"), operations, accounts, sessionLength, zipf);
+            System.out.println("Generated " + accounts + " accounts and " + operations + " operations in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms.");
+
+            ArrayList<String> command = new ArrayList<>();
+            command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+            command.add("-Xmx" + heap);
+            for (Map.Entry<Object, Object> property : System.getProperties().entrySet()) {
+                String name = property.getKey().toString();
+                if (name.startsWith("bank.")) {
+                    command.add("-D" + name + "=" + property.getValue());
+                }
+            }
+            command.add("-Dbank.script.sessions=" + sessions);
+            command.add("-Dbank.script.results=" + results);
+            command.add("-cp");
+            command.add(classPath());
+            command.add("ScriptDriver");
+            command.add("workload.txt");
+            System.out.println("Running workload on " + accounts + " accounts:");
+            int exitCode = new ProcessBuilder(command).directory(directory.toFile()).inheritIO().start().waitFor();
+            if (exitCode != 0) {
+                System.out.println("Simulation of " + accounts + " accounts failed with exit code " + exitCode);
+                return;
+            }
+        }
+        System.out.println("Results written to " + results);
+    }
+
+    /**
+     * This method returns class path of this JVM with absolute paths, because child JVMs run in other directories.
+     */
+    private static String classPath() {
+        StringBuilder sb = new StringBuilder();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            if (sb.length() > 0) {
+                sb.append(File.pathSeparatorChar);
+            }
+            sb.append(Paths.get(entry).toAbsolutePath());
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,298 @@
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bulk transfer job (payroll, batch payments). It reads a file of transfer instructions:
+ * <pre>
+ * fromAccountID, toAccountID, amount, reference[, group]
+ * </pre>
+ * validates them and applies them all at once. Instructions which share a group
+ * (for example one payroll paid from one account to many employees) are applied atomically:
+ * either all of them succeed or none of them is applied.
+ *
+ * Instructions are partitioned by accounts they touch. Partitions without common accounts are
+ * executed in parallel, inside a partition instructions keep the order from the file.
+ * Balance changes are only appended to the journal and flushed once for the whole batch.
+ * Every instruction is recorded in the transaction ledger of both accounts.
+ * Result of every line is written to a file with ".results" added to the name of the input.
+ *
+ * Usage: {@code java BatchTransfer payments.csv}
+ */
+public class BatchTransfer {
+
+    private static final String SEPARATOR = ", ";
+
+    private final CSVReader csvReader = CSVReader.getInstance();
+    private final AtomicLong lastSeq = new AtomicLong();
+
+    /**
+     * One line of the input file.
+     */
+    private static class Instruction {
+        long lineNumber;
+        long fromAccountID;
+        long toAccountID;
+        long amount;
+        String reference;
+        String result;
+    }
+
+    /**
+     * Instructions which have to be applied together: a group from the file or a single instruction.
+     */
+    private static class Unit {
+        final List<Instruction> instructions = new ArrayList<>();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: java BatchTransfer <instructions file> [results file]");
+            return;
+        }
+        Path input = Paths.get(args[0]);
+        Path output = Paths.get(args.length > 1 ? args[1] : args[0] + ".results");
+        new BatchTransfer().run(input, output);
+    }
+
+    /**
+     * This method executes the whole batch and writes results of all lines.
+     *
+     * @param input         file with transfer instructions
+     * @param output        file for results
+     * @throws IOException
+     */
+    public void run(Path input, Path output) throws IOException {
+        long start = System.nanoTime();
+        ArrayList<Instruction> instructions = new ArrayList<>();
+        LinkedHashMap<String, Unit> units = new LinkedHashMap<>();
+        readInstructions(input, instructions, units);
+
+        List<List<Unit>> partitions = partition(units.values());
+        partitions.parallelStream().forEach(this::execute);
+        if (lastSeq.get() > 0 || BinaryAccountStore.isEnabled()) {
+            // partitions were applied by several threads, so every shard and pending write has to be synced
+            csvReader.drainPendingWrites();
+        }
+
+        int applied = 0;
+        try (BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output.toFile()), StandardCharsets.UTF_8))) {
+            for (Instruction instruction : instructions) {
+                if (instruction.result == null) {
+                    instruction.result = "OK";
+                }
+                if (instruction.result.equals("OK")) {
+                    applied++;
+                }
+                bw.write(instruction.lineNumber + SEPARATOR + (instruction.reference == null ? "" : instruction.reference) + SEPARATOR + instruction.result);
+                bw.newLine();
+            }
+        }
+        System.out.println("Applied " + applied + " of " + instructions.size() + " transfers in "
+                + partitions.size() + " partitions in " + (System.nanoTime() - start) / 1_000_000 + " ms. Results: " + output);
+    }
+
+    /**
+     * This method reads and validates instructions. Every line joins its group (or a unit of its own)
+     * even if it is invalid, and when the whole file is read a group with an invalid line is rejected
+     * as a whole, so a payroll is never applied without one of its lines.
+     */
+    private void readInstructions(Path input, ArrayList<Instruction> instructions, LinkedHashMap<String, Unit> units) throws IOException {
+        CSVParser.parse(input, parser -> {
+            Instruction instruction = new Instruction();
+            instruction.lineNumber = parser.getLineNumber();
+            instructions.add(instruction);
+            String group = parser.getFieldCount() >= 5 && parser.stringField(4).length() > 0
+                    ? "group:" + parser.stringField(4)
+                    : "line:" + instruction.lineNumber;
+            units.computeIfAbsent(group, k -> new Unit()).instructions.add(instruction);
+            if (parser.getFieldCount() != 4 && parser.getFieldCount() != 5) {
+                instruction.result = "REJECTED" + SEPARATOR + "expected 4 or 5 fields";
+                return;
+            }
+            instruction.reference = parser.stringField(3);
+            try {
+                instruction.fromAccountID = parser.longField(0);
+                instruction.toAccountID = parser.longField(1);
+                instruction.amount = parser.centsField(2);
+            } catch (CSVParser.CSVFormatException e) {
+                instruction.result = "REJECTED" + SEPARATOR + "invalid number";
+                return;
+            }
+            instruction.result = validate(instruction);
+        });
+        units.values().removeIf(unit -> {
+            for (Instruction instruction : unit.instructions) {
+                if (instruction.result != null) {
+                    for (Instruction member : unit.instructions) {
+                        if (member.result == null) {
+                            member.result = "REJECTED" + SEPARATOR + "group rejected at line " + instruction.lineNumber;
+                        }
+                    }
+                    return true;
+                }
+            }
+            return false;
+        });
+    }
+
+    private String validate(Instruction instruction) {
+        if (!csvReader.containsAccountID(instruction.fromAccountID)) {
+            return "REJECTED" + SEPARATOR + "unknown account " + instruction.fromAccountID;
+        }
+        if (!csvReader.containsAccountID(instruction.toAccountID)) {
+            return "REJECTED" + SEPARATOR + "unknown account " + instruction.toAccountID;
+        }
+        if (instruction.fromAccountID == instruction.toAccountID) {
+            return "REJECTED" + SEPARATOR + "same account";
+        }
+        if (instruction.amount <= 0) {
+            return "REJECTED" + SEPARATOR + "amount must be positive";
+        }
+        return null;
+    }
+
+    /**
+     * This method joins units which touch common accounts (union-find over accountIDs),
+     * so every partition can be executed independently from the others.
+     *
+     * @param units     units in the order of the file
+     * @return          partitions, each with units in the order of the file
+     */
+    private List<List<Unit>> partition(Iterable<Unit> units) {
+        HashMap<Long, Long> parent = new HashMap<>();
+        for (Unit unit : units) {
+            long first = unit.instructions.get(0).fromAccountID;
+            for (Instruction instruction : unit.instructions) {
+                union(parent, first, instruction.fromAccountID);
+                union(parent, first, instruction.toAccountID);
+            }
+        }
+        LinkedHashMap<Long, List<Unit>> partitions = new LinkedHashMap<>();
+        for (Unit unit : units) {
+            long root = find(parent, unit.instructions.get(0).fromAccountID);
+            partitions.computeIfAbsent(root, k -> new ArrayList<>()).add(unit);
+        }
+        return new ArrayList<>(partitions.values());
+    }
+
+    private static long find(HashMap<Long, Long> parent, long accountID) {
+        long root = accountID;
+        Long next;
+        while ((next = parent.get(root)) != null && next != root) {
+            root = next;
+        }
+        long current = accountID;
+        while (current != root) {
+            long following = parent.get(current);
+            parent.put(current, root);
+            current = following;
+        }
+        return root;
+    }
+
+    private static void union(HashMap<Long, Long> parent, long first, long second) {
+        long firstRoot = find(parent, first);
+        long secondRoot = find(parent, second);
+        if (firstRoot != secondRoot) {
+            parent.put(secondRoot, firstRoot);
+        }
+    }
+
+    private void execute(List<Unit> partition) {
+        for (Unit unit : partition) {
+            try {
+                apply(unit);
+            } catch (IOException | ArithmeticException e) {
+                for (Instruction instruction : unit.instructions) {
+                    instruction.result = "FAILED" + SEPARATOR + e.getMessage();
+                }
+            }
+        }
+    }
+
+    /**
+     * This method applies all instructions of the unit or none of them. Balances are first
+     * computed on the side while all accounts of the unit are locked, and only if no account
+     * would go below zero they are written to accounts and recorded in the journal. If recording fails,
+     * balances of all accounts of the unit are put back before the exception is rethrown.
+     *
+     * @param unit      instructions which have to be applied together
+     * @throws IOException
+     */
+    private void apply(Unit unit) throws IOException {
+        long[] accountIDs = new long[unit.instructions.size() * 2];
+        for (int i = 0; i < unit.instructions.size(); i++) {
+            accountIDs[2 * i] = unit.instructions.get(i).fromAccountID;
+            accountIDs[2 * i + 1] = unit.instructions.get(i).toAccountID;
+        }
+        int[] stripes = AccountLocks.lockAll(accountIDs);
+        try {
+            LinkedHashMap<Account, Long> balances = new LinkedHashMap<>();
+            long[] balancesAfter = new long[unit.instructions.size() * 2];
+            for (int i = 0; i < unit.instructions.size(); i++) {
+                Instruction instruction = unit.instructions.get(i);
+                Account from = csvReader.getAccountFromGivenAccountID(instruction.fromAccountID);
+                Account to = csvReader.getAccountFromGivenAccountID(instruction.toAccountID);
+                if (from == null || to == null) {
+                    reject(unit, instruction, "account was removed");
+                    return;
+                }
+                long fromBalance = Money.subtract(balances.getOrDefault(from, from.getBalance()), instruction.amount);
+                if (fromBalance < 0) {
+                    reject(unit, instruction, "insufficient funds");
+                    return;
+                }
+                balances.put(from, fromBalance);
+                balances.put(to, Money.add(balances.getOrDefault(to, to.getBalance()), instruction.amount));
+                balancesAfter[2 * i] = fromBalance;
+                balancesAfter[2 * i + 1] = balances.get(to);
+            }
+            HashMap<Account, Long> balancesBefore = new HashMap<>();
+            for (Account account : balances.keySet()) {
+                balancesBefore.put(account, account.getBalance());
+            }
+            long seq = 0;
+            try {
+                for (Map.Entry<Account, Long> entry : balances.entrySet()) {
+                    Account account = entry.getKey();
+                    long delta = entry.getValue() - account.getBalance();
+                    account.setBalance(entry.getValue());
+                    seq = Math.max(seq, csvReader.recordBalanceChange(account, delta));
+                }
+                TransactionLedger ledger = TransactionLedger.getInstance();
+                for (int i = 0; i < unit.instructions.size(); i++) {
+                    Instruction instruction = unit.instructions.get(i);
+                    ledger.append(instruction.fromAccountID, TransactionLedger.Type.TRANSFER_OUT, -instruction.amount, instruction.toAccountID, balancesAfter[2 * i]);
+                    ledger.append(instruction.toAccountID, TransactionLedger.Type.TRANSFER_IN, instruction.amount, instruction.fromAccountID, balancesAfter[2 * i + 1]);
+                }
+            } catch (IOException e) {
+                // the unit is reported FAILED as a whole, so none of its changes may stay in memory
+                for (Map.Entry<Account, Long> entry : balancesBefore.entrySet()) {
+                    csvReader.restoreBalance(entry.getKey(), entry.getValue(), e);
+                }
+                throw e;
+            } finally {
+                lastSeq.accumulateAndGet(seq, Math::max);
+            }
+        } finally {
+            AccountLocks.unlockStripes(stripes);
+        }
+    }
+
+    private static void reject(Unit unit, Instruction failed, String reason) {
+        for (Instruction instruction : unit.instructions) {
+            instruction.result = "REJECTED" + SEPARATOR + (instruction == failed ? reason : "group rejected at line " + failed.lineNumber);
+        }
+    }
+}
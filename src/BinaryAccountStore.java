@@ -0,0 +1,344 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Alternative account store which keeps every account in a fixed-width binary slot
+ * of a memory-mapped file. Because every slot has the same size, withdraw or deposit
+ * only writes the 8 bytes of balance in the slot of changed account.
+ *
+ * Layout of the file (big endian):
+ * <pre>
+ * header (64 bytes):  magic, version, slot size, number of slots
+ * slot   (112 bytes): flags, PIN length, customerID, accountID, balance in cents, PIN hash
+ * </pre>
+ * A new account, a deleted account or a changed PIN writes only the slot of that account; slots of deleted
+ * accounts are reused by new ones. Only regions with changed slots are forced to disk.
+ * Version 2 keeps customerID and accountID as 64-bit numbers. Files of version 1, with 32-bit IDs
+ * in 96-byte slots, are converted to version 2 when they are opened.
+ * It is turned on with -Dbank.accountStore=binary. Existing accounts.csv can be converted with
+ * {@code java BinaryAccountStore accounts.csv accounts.dat}.
+ */
+public class BinaryAccountStore {
+
+    public static final String ACCOUNTS_FILE = "accounts.dat";
+
+    private static final long MAGIC = 0x42414e4b41434354L; // "BANKACCT"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 112;
+    private static final int PIN_SIZE = 80;
+    private static final int SLOTS_PER_REGION = 1 << 20;
+    private static final long REGION_SIZE = (long) SLOTS_PER_REGION * SLOT_SIZE;
+
+    private static final int OFFSET_FLAGS = 0;
+    private static final int OFFSET_PIN_LENGTH = 1;
+    private static final int OFFSET_CUSTOMER_ID = 8;
+    private static final int OFFSET_ACCOUNT_ID = 16;
+    private static final int OFFSET_BALANCE = 24;
+    private static final int OFFSET_PIN = 32;
+    private static final byte FLAG_LIVE = 1;
+
+    private static final int VERSION_1 = 1;
+    private static final int VERSION_1_SLOT_SIZE = 96;
+    private static final int VERSION_1_OFFSET_CUSTOMER_ID = 4;
+    private static final int VERSION_1_OFFSET_ACCOUNT_ID = 8;
+    private static final int VERSION_1_OFFSET_BALANCE = 12;
+    private static final int VERSION_1_OFFSET_PIN = 20;
+
+    private static BinaryAccountStore instance;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private final ArrayList<MappedByteBuffer> regions = new ArrayList<>();
+    private final HashMap<Long, Integer> slotsByAccountID = new HashMap<>();
+    private final ArrayDeque<Integer> freeSlots = new ArrayDeque<>();
+    private final BitSet dirtyRegions = new BitSet();
+    private int slotCount;
+
+    /**
+     * This method checks if accounts should be kept in accounts.dat instead of accounts.csv.
+     *
+     * @return      true if binary store is turned on
+     */
+    public static boolean isEnabled() {
+        return "binary".equals(System.getProperty("bank.accountStore"));
+    }
+
+    /**
+     * This method returns store shared by the whole process. It is opened on the first call.
+     *
+     * @return      shared binary account store
+     */
+    public static synchronized BinaryAccountStore getInstance() {
+        if (instance == null) {
+            try {
+                instance = new BinaryAccountStore(Paths.get(ACCOUNTS_FILE));
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot open " + ACCOUNTS_FILE, e);
+            }
+        }
+        return instance;
+    }
+
+    BinaryAccountStore(Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        boolean created = channel.size() == 0;
+        this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        header.order(ByteOrder.BIG_ENDIAN);
+        if (created) {
+            header.putLong(0, MAGIC);
+            header.putInt(8, VERSION);
+            header.putInt(12, SLOT_SIZE);
+            header.putInt(16, 0);
+            header.force();
+        } else {
+            if (header.getLong(0) != MAGIC) {
+                throw new IOException(path + " is not a binary account file");
+            }
+            if (header.getInt(8) == VERSION_1 && header.getInt(12) == VERSION_1_SLOT_SIZE) {
+                convertVersion1(path);
+                return;
+            }
+            if (header.getInt(8) != VERSION || header.getInt(12) != SLOT_SIZE) {
+                throw new IOException("Unsupported version " + header.getInt(8) + " of " + path);
+            }
+        }
+        slotCount = header.getInt(16);
+        for (int slot = 0; slot < slotCount; slot++) {
+            MappedByteBuffer region = region(slot);
+            int offset = slotOffset(slot);
+            if (region.get(offset + OFFSET_FLAGS) == FLAG_LIVE) {
+                slotsByAccountID.put(region.getLong(offset + OFFSET_ACCOUNT_ID), slot);
+            } else {
+                freeSlots.add(slot);
+            }
+        }
+    }
+
+    /**
+     * This method reads all accounts from a file of version 1 and writes them back in version 2.
+     * Old content is copied to a file with ".v1" added to the name first, so nothing is lost
+     * if the conversion is interrupted.
+     *
+     * @param path      path of the opened file
+     * @throws IOException
+     */
+    private void convertVersion1(Path path) throws IOException {
+        int oldSlotCount = header.getInt(16);
+        ArrayList<Account> accounts = new ArrayList<>(oldSlotCount);
+        ByteBuffer slot = ByteBuffer.allocate(VERSION_1_SLOT_SIZE).order(ByteOrder.BIG_ENDIAN);
+        for (int i = 0; i < oldSlotCount; i++) {
+            slot.clear();
+            channel.read(slot, HEADER_SIZE + (long) i * VERSION_1_SLOT_SIZE);
+            if (slot.get(OFFSET_FLAGS) != FLAG_LIVE) {
+                continue;
+            }
+            int pinLength = slot.get(OFFSET_PIN_LENGTH) & 0xFF;
+            accounts.add(new Account(
+                    slot.getInt(VERSION_1_OFFSET_CUSTOMER_ID),
+                    slot.getInt(VERSION_1_OFFSET_ACCOUNT_ID),
+                    slot.getLong(VERSION_1_OFFSET_BALANCE),
+                    new String(slot.array(), VERSION_1_OFFSET_PIN, pinLength, StandardCharsets.US_ASCII)));
+        }
+        Files.copy(path, Paths.get(path + ".v1"), StandardCopyOption.REPLACE_EXISTING);
+        header.putInt(8, VERSION);
+        header.putInt(12, SLOT_SIZE);
+        header.putInt(16, 0);
+        slotCount = 0;
+        dirtyRegions.set(0);
+        writeAccounts(accounts);
+        System.out.println("Converted " + accounts.size() + " accounts in " + path + " to version " + VERSION);
+    }
+
+    private MappedByteBuffer region(int slot) throws IOException {
+        int index = slot / SLOTS_PER_REGION;
+        while (regions.size() <= index) {
+            MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + regions.size() * REGION_SIZE, REGION_SIZE);
+            region.order(ByteOrder.BIG_ENDIAN);
+            regions.add(region);
+        }
+        return regions.get(index);
+    }
+
+    private static int slotOffset(int slot) {
+        return (slot % SLOTS_PER_REGION) * SLOT_SIZE;
+    }
+
+    /**
+     * This method reads all live slots and creates list of accounts from them.
+     *
+     * @return      list of accounts kept in the file
+     * @throws IOException
+     */
+    public synchronized ArrayList<Account> readAccounts() throws IOException {
+        ArrayList<Account> accounts = new ArrayList<>(slotsByAccountID.size());
+        byte[] pin = new byte[PIN_SIZE];
+        for (int slot = 0; slot < slotCount; slot++) {
+            MappedByteBuffer region = region(slot);
+            int offset = slotOffset(slot);
+            if (region.get(offset + OFFSET_FLAGS) != FLAG_LIVE) {
+                continue;
+            }
+            int pinLength = region.get(offset + OFFSET_PIN_LENGTH) & 0xFF;
+            region.get(offset + OFFSET_PIN, pin, 0, pinLength);
+            accounts.add(new Account(
+                    region.getLong(offset + OFFSET_CUSTOMER_ID),
+                    region.getLong(offset + OFFSET_ACCOUNT_ID),
+                    region.getLong(offset + OFFSET_BALANCE),
+                    new String(pin, 0, pinLength, StandardCharsets.US_ASCII)));
+        }
+        return accounts;
+    }
+
+    /**
+     * This method writes new balance of the account into its slot. Only this slot is touched.
+     *
+     * @param account       account with changed balance
+     * @throws IOException
+     */
+    public synchronized void writeBalance(Account account) throws IOException {
+        Integer slot = slotsByAccountID.get(account.getAccountID());
+        if (slot == null) {
+            writeAccount(account);
+            return;
+        }
+        region(slot).putLong(slotOffset(slot) + OFFSET_BALANCE, account.getBalance());
+        dirtyRegions.set(slot / SLOTS_PER_REGION);
+    }
+
+    /**
+     * This method writes all fields of the account into its slot, or into a new slot if the account
+     * is not stored yet. A slot of a deleted account is reused before the file grows.
+     *
+     * @param account       account we want to store
+     * @throws IOException
+     */
+    public synchronized void writeAccount(Account account) throws IOException {
+        Integer slot = slotsByAccountID.get(account.getAccountID());
+        if (slot == null) {
+            slot = freeSlots.poll();
+            if (slot == null) {
+                slot = slotCount++;
+                header.putInt(16, slotCount);
+            }
+            slotsByAccountID.put(account.getAccountID(), slot);
+        }
+        writeSlot(slot, account);
+    }
+
+    /**
+     * This method marks the slot of a deleted account as free. Only this slot is touched.
+     *
+     * @param accountID     ID of the deleted account
+     * @throws IOException
+     */
+    public synchronized void deleteAccount(long accountID) throws IOException {
+        Integer slot = slotsByAccountID.remove(accountID);
+        if (slot != null) {
+            freeSlot(slot);
+        }
+    }
+
+    private void freeSlot(int slot) throws IOException {
+        region(slot).put(slotOffset(slot) + OFFSET_FLAGS, (byte) 0);
+        dirtyRegions.set(slot / SLOTS_PER_REGION);
+        freeSlots.add(slot);
+    }
+
+    private void writeSlot(int slot, Account account) throws IOException {
+        byte[] pin = account.getPIN().getBytes(StandardCharsets.US_ASCII);
+        if (pin.length > PIN_SIZE) {
+            throw new IOException("PIN hash of account " + account.getAccountID() + " is too long");
+        }
+        MappedByteBuffer region = region(slot);
+        int offset = slotOffset(slot);
+        region.put(offset + OFFSET_PIN_LENGTH, (byte) pin.length);
+        region.putLong(offset + OFFSET_CUSTOMER_ID, account.getCustomerID());
+        region.putLong(offset + OFFSET_ACCOUNT_ID, account.getAccountID());
+        region.putLong(offset + OFFSET_BALANCE, account.getBalance());
+        region.put(offset + OFFSET_PIN, pin);
+        region.put(offset + OFFSET_FLAGS, FLAG_LIVE);
+        dirtyRegions.set(slot / SLOTS_PER_REGION);
+    }
+
+    /**
+     * This method replaces content of the whole store with given accounts.
+     * Slots of accounts which are not on the list are marked as deleted.
+     *
+     * @param accounts      list of all accounts
+     * @throws IOException
+     */
+    public synchronized void writeAccounts(ArrayList<Account> accounts) throws IOException {
+        HashMap<Long, Integer> oldSlots = new HashMap<>(slotsByAccountID);
+        for (Account account : accounts) {
+            oldSlots.remove(account.getAccountID());
+        }
+        for (Map.Entry<Long, Integer> entry : oldSlots.entrySet()) {
+            slotsByAccountID.remove(entry.getKey());
+            freeSlot(entry.getValue());
+        }
+        for (Account account : accounts) {
+            writeAccount(account);
+        }
+        force();
+    }
+
+    /**
+     * This method makes sure that all changed slots and header are on disk.
+     * Regions without changes since the last call are skipped.
+     */
+    public synchronized void force() {
+        for (int index = dirtyRegions.nextSetBit(0); index >= 0 && index < regions.size(); index = dirtyRegions.nextSetBit(index + 1)) {
+            regions.get(index).force();
+        }
+        dirtyRegions.clear();
+        header.force();
+    }
+
+    /**
+     * One-shot converter from accounts.csv format to binary account file.
+     * If the source is accounts.csv of this program, pending changes from
+     * the transaction journal are included as well.
+     *
+     * @param args      path of csv file and path of binary file we want to create
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        String source = args.length > 0 ? args[0] : "accounts.csv";
+        Path target = Paths.get(args.length > 1 ? args[1] : ACCOUNTS_FILE);
+        ArrayList<Account> accounts = new ArrayList<>();
+        try (BufferedReader br = new BufferedReader(new FileReader(source))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] data = line.split(", ");
+                accounts.add(new Account(Long.parseLong(data[0]), Long.parseLong(data[1]), Money.parse(data[2]), data[3]));
+            }
+        }
+        if (Paths.get(source).toAbsolutePath().equals(Paths.get("accounts.csv").toAbsolutePath())) {
+            TransactionJournal.getInstance().replay(accounts);
+        }
+        Path temporary = Paths.get(target + ".tmp");
+        Files.deleteIfExists(temporary);
+        BinaryAccountStore store = new BinaryAccountStore(temporary);
+        store.writeAccounts(accounts);
+        store.channel.close();
+        Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        System.out.println("Converted " + accounts.size() + " accounts from " + source + " to " + target);
+    }
+}
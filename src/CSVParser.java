@@ -0,0 +1,398 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Streaming parser of customers.csv and accounts.csv which works directly on bytes.
+ * File is read through one reusable buffer and every row is only split into field offsets,
+ * so numbers are decoded without creating any String, array or regex on the way.
+ * Only text fields which are really needed (name, surname, hashes) become Strings.
+ *
+ * Rows with wrong number of fields or with invalid numbers are reported with their
+ * line number and skipped instead of stopping the whole load.
+ */
+public class CSVParser {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_FIELDS = 16;
+
+    private final FileChannel channel;
+    private final String fileName;
+    private final long end;
+    private long position;
+    private long lineNumber;
+    private int malformedRows;
+    private List<CSVFormatException> errors;
+
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    private int bufferStart;
+    private int bufferEnd;
+    private boolean endOfInput;
+
+    private final int[] fieldStart = new int[MAX_FIELDS];
+    private final int[] fieldEnd = new int[MAX_FIELDS];
+    private int fieldCount;
+
+    /**
+     * Callback which is called for every row of the file. Fields of the row are
+     * accessed through the parser and are valid only until the method returns.
+     */
+    public interface RowHandler {
+        void row(CSVParser parser) throws CSVFormatException;
+    }
+
+    /**
+     * Exception which describes malformed row of the file.
+     */
+    public static class CSVFormatException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String fileName;
+        private final long lineNumber;
+        private final String reason;
+
+        public CSVFormatException(String fileName, long lineNumber, String reason) {
+            super(fileName + ":" + lineNumber + ": " + reason);
+            this.fileName = fileName;
+            this.lineNumber = lineNumber;
+            this.reason = reason;
+        }
+
+        public long getLineNumber() {
+            return lineNumber;
+        }
+
+        /**
+         * This method creates the same error moved by given number of lines. It is used when
+         * a part of file was parsed separately and we only later learn where the part begins.
+         *
+         * @param lines     number of lines before the part of file
+         * @return          error with absolute line number
+         */
+        public CSVFormatException shiftLines(long lines) {
+            return new CSVFormatException(fileName, lineNumber + lines, reason);
+        }
+    }
+
+    /**
+     * Creates parser of bytes from start (inclusive) to end (exclusive) of opened file.
+     * Start has to be the beginning of a line.
+     *
+     * @param channel           opened file
+     * @param fileName          name of the file used in error messages
+     * @param start             first byte which belongs to this parser
+     * @param end               first byte which does not belong to this parser
+     * @param firstLineNumber   number of the line which begins at start
+     */
+    public CSVParser(FileChannel channel, String fileName, long start, long end, long firstLineNumber) {
+        this.channel = channel;
+        this.fileName = fileName;
+        this.position = start;
+        this.end = end;
+        this.lineNumber = firstLineNumber - 1;
+    }
+
+    /**
+     * This method parses the whole file and passes every row to the handler.
+     *
+     * @param path          file we want to parse
+     * @param handler       handler which creates objects from rows
+     * @return              number of malformed rows which were skipped
+     * @throws IOException
+     */
+    public static int parse(Path path, RowHandler handler) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            CSVParser parser = new CSVParser(channel, path.getFileName().toString(), 0, channel.size(), 1);
+            parser.parseAll(handler);
+            return parser.getMalformedRows();
+        }
+    }
+
+    /**
+     * This method parses all rows of its range and passes them to the handler.
+     * Malformed rows are printed to the error stream (or collected, see collectErrors()) and skipped.
+     *
+     * @param handler       handler which creates objects from rows
+     * @throws IOException
+     */
+    public void parseAll(RowHandler handler) throws IOException {
+        while (nextRow()) {
+            if (fieldCount == 0) {
+                continue;
+            }
+            try {
+                handler.row(this);
+            } catch (CSVFormatException e) {
+                malformedRows++;
+                if (errors != null) {
+                    errors.add(e);
+                } else {
+                    System.err.println("Skipping malformed row " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * This method moves parser to the next row and splits it into fields.
+     *
+     * @return      false if there are no more rows
+     * @throws IOException
+     */
+    private boolean nextRow() throws IOException {
+        int lineEnd = findLineEnd();
+        if (lineEnd < 0) {
+            return false;
+        }
+        lineNumber++;
+        int rowEnd = lineEnd;
+        if (rowEnd > bufferStart && buffer[rowEnd - 1] == '\r') {
+            rowEnd--;
+        }
+        fieldCount = 0;
+        if (rowEnd > bufferStart) {
+            int start = bufferStart;
+            for (int i = bufferStart; i <= rowEnd; i++) {
+                if (i == rowEnd || buffer[i] == ',') {
+                    if (fieldCount == MAX_FIELDS) {
+                        break;
+                    }
+                    int fieldFirst = start;
+                    while (fieldFirst < i && buffer[fieldFirst] == ' ') {
+                        fieldFirst++;
+                    }
+                    fieldStart[fieldCount] = fieldFirst;
+                    fieldEnd[fieldCount] = i;
+                    fieldCount++;
+                    start = i + 1;
+                }
+            }
+        }
+        bufferStart = lineEnd + 1;
+        return true;
+    }
+
+    /**
+     * This method finds end of the current line in the buffer, reading more bytes if needed.
+     * The last line does not have to end with a new line character.
+     *
+     * @return      index of '\n' (or of the end of data) or -1 if there is nothing left
+     * @throws IOException
+     */
+    private int findLineEnd() throws IOException {
+        int searchFrom = bufferStart;
+        while (true) {
+            for (int i = searchFrom; i < bufferEnd; i++) {
+                if (buffer[i] == '\n') {
+                    return i;
+                }
+            }
+            searchFrom = bufferEnd;
+            if (endOfInput) {
+                return bufferEnd > bufferStart ? bufferEnd : -1;
+            }
+            searchFrom -= bufferStart;
+            fill();
+        }
+    }
+
+    private void fill() throws IOException {
+        int remaining = bufferEnd - bufferStart;
+        if (remaining == buffer.length) {
+            byte[] bigger = new byte[buffer.length * 2];
+            System.arraycopy(buffer, bufferStart, bigger, 0, remaining);
+            buffer = bigger;
+        } else {
+            System.arraycopy(buffer, bufferStart, buffer, 0, remaining);
+        }
+        bufferStart = 0;
+        bufferEnd = remaining;
+        int toRead = (int) Math.min(buffer.length - bufferEnd, end - position);
+        if (toRead <= 0) {
+            endOfInput = true;
+            return;
+        }
+        int read = channel.read(ByteBuffer.wrap(buffer, bufferEnd, toRead), position);
+        if (read < 0) {
+            endOfInput = true;
+            return;
+        }
+        position += read;
+        bufferEnd += read;
+    }
+
+    /**
+     * This method makes parser collect errors of malformed rows in given list instead of printing them.
+     *
+     * @param errors    list for errors of malformed rows
+     */
+    public void collectErrors(List<CSVFormatException> errors) {
+        this.errors = errors;
+    }
+
+    public int getFieldCount() {
+        return fieldCount;
+    }
+
+    public long getLineNumber() {
+        return lineNumber;
+    }
+
+    public int getMalformedRows() {
+        return malformedRows;
+    }
+
+    /**
+     * This method checks that current row has expected number of fields.
+     *
+     * @param expected      number of fields the row should have
+     * @throws CSVFormatException
+     */
+    public void expectFields(int expected) throws CSVFormatException {
+        if (fieldCount != expected) {
+            throw error("expected " + expected + " fields but found " + fieldCount);
+        }
+    }
+
+    /**
+     * This method decodes field as a long number straight from the buffer.
+     *
+     * @param field     index of the field
+     * @return          decoded number
+     * @throws CSVFormatException
+     */
+    public long longField(int field) throws CSVFormatException {
+        int i = fieldStart[field];
+        int last = fieldEnd[field];
+        boolean negative = i < last && buffer[i] == '-';
+        if (negative) {
+            i++;
+        }
+        if (i == last) {
+            throw error("field " + (field + 1) + " is not a number");
+        }
+        long value = 0;
+        for (; i < last; i++) {
+            int digit = buffer[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw error("field " + (field + 1) + " is not a number");
+            }
+            if (value > (Long.MAX_VALUE - digit) / 10) {
+                throw error("field " + (field + 1) + " is too big");
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * This method decodes field as an int number straight from the buffer.
+     *
+     * @param field     index of the field
+     * @return          decoded number
+     * @throws CSVFormatException
+     */
+    public int intField(int field) throws CSVFormatException {
+        long value = longField(field);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw error("field " + (field + 1) + " is too big");
+        }
+        return (int) value;
+    }
+
+    /**
+     * This method decodes decimal field (like 32112.32) as number of hundredths.
+     * Digits after the second decimal place are not allowed.
+     *
+     * @param field     index of the field
+     * @return          decoded amount in hundredths
+     * @throws CSVFormatException
+     */
+    public long centsField(int field) throws CSVFormatException {
+        int i = fieldStart[field];
+        int last = fieldEnd[field];
+        boolean negative = i < last && buffer[i] == '-';
+        if (negative) {
+            i++;
+        }
+        long value = 0;
+        int digits = 0;
+        int decimals = -1;
+        for (; i < last; i++) {
+            byte b = buffer[i];
+            if (b == '.' && decimals < 0) {
+                decimals = 0;
+                continue;
+            }
+            int digit = b - '0';
+            if (digit < 0 || digit > 9 || decimals == 2) {
+                throw error("field " + (field + 1) + " is not a valid amount");
+            }
+            if (value > (Long.MAX_VALUE - digit) / 10) {
+                throw error("field " + (field + 1) + " is too big");
+            }
+            value = value * 10 + digit;
+            digits++;
+            if (decimals >= 0) {
+                decimals++;
+            }
+        }
+        if (digits == 0) {
+            throw error("field " + (field + 1) + " is not a valid amount");
+        }
+        for (int d = Math.max(decimals, 0); d < 2; d++) {
+            if (value > Long.MAX_VALUE / 10) {
+                throw error("field " + (field + 1) + " is too big");
+            }
+            value *= 10;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * This method returns field as a String.
+     *
+     * @param field     index of the field
+     * @return          text of the field
+     */
+    public String stringField(int field) {
+        return new String(buffer, fieldStart[field], fieldEnd[field] - fieldStart[field], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * This method returns field as one of known constant Strings if it is equal to one of them,
+     * so repeating values like role or sex do not create new String for every row.
+     *
+     * @param field     index of the field
+     * @param known     constants which are likely to appear in the field
+     * @return          text of the field
+     */
+    public String stringField(int field, String... known) {
+        int length = fieldEnd[field] - fieldStart[field];
+        for (String constant : known) {
+            if (constant.length() == length && matches(field, constant)) {
+                return constant;
+            }
+        }
+        return stringField(field);
+    }
+
+    private boolean matches(int field, String constant) {
+        int start = fieldStart[field];
+        for (int i = 0; i < constant.length(); i++) {
+            if (buffer[start + i] != constant.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public CSVFormatException error(String message) {
+        return new CSVFormatException(fileName, lineNumber, message);
+    }
+}
@@ -1,28 +1,104 @@
 import java.io.*;
-import java.math.BigDecimal;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Random;
 import java.util.Scanner;
-import java.util.stream.Collectors;
 
 public class CSVReader {
 
     private static final String SEPARATOR = ", ";
     private static final Scanner in = new Scanner(System.in);
-    private ArrayList<Customer> customers = readCustomersFromFile();
-    private ArrayList<Account> accounts = readAccountsFromFile();
-    private ArrayList<Integer> customerIDs = readCustomerIDsFromFile();
-    private ArrayList<Integer> accountIDs = readAccountIDsFromFile();
+    private static final LatencyHistogram READ_CUSTOMERS_LATENCY = Metrics.histogram("file.readCustomers");
+    private static final LatencyHistogram READ_ACCOUNTS_LATENCY = Metrics.histogram("file.readAccounts");
+    private static final LatencyHistogram WRITE_CUSTOMERS_LATENCY = Metrics.histogram("file.writeCustomers");
+    private static final LatencyHistogram WRITE_ACCOUNTS_LATENCY = Metrics.histogram("file.writeAccounts");
+    private static final LatencyHistogram FLUSH_LATENCY = Metrics.histogram("file.flushBalanceChanges");
+    private ArrayList<Customer> customers;
+    private ArrayList<Account> accounts;
+    private ArrayList<Long> customerIDs;
+    private ArrayList<Long> accountIDs;
 
-    public ArrayList<Integer> getAccountIDs() {
+    private final ConcurrentLongMap<Customer> customersByID = new ConcurrentLongMap<>();
+    private final ConcurrentLongMap<Account> accountsByID = new ConcurrentLongMap<>();
+    private final ConcurrentLongMap<List<Account>> accountsByCustomerID = new ConcurrentLongMap<>();
+    private volatile CustomerSearchIndex searchIndex;
+
+    /**
+     * Holder of the only instance of CSVReader. The class is initialized (and data files are read)
+     * when getInstance() is called for the first time, and the JVM guarantees it happens exactly once.
+     */
+    private static class Holder {
+        private static final CSVReader INSTANCE = new CSVReader();
+    }
+
+    /**
+     * This method returns data store shared by the whole program. Data files are read
+     * on the first call, so Bank, MenuData and ATM always work on the same objects.
+     *
+     * @return      the only instance of CSVReader
+     */
+    public static CSVReader getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    private CSVReader() {
+        long start = System.nanoTime();
+        SnapshotStore.Snapshot snapshot = SnapshotStore.isEnabled() ? SnapshotStore.getInstance().loadLatest() : null;
+        customers = snapshot != null && snapshot.customers != null ? snapshot.customers : readCustomersFromFile();
+        accounts = snapshot != null && snapshot.accounts != null ? snapshot.accounts : readAccountsFromFile();
+        IdGenerator idGenerator = IdGenerator.getInstance();
+        customerIDs = new ArrayList<>(customers.size());
+        for (Customer customer : customers) {
+            customerIDs.add(customer.getCustomerID());
+            idGenerator.observe(customer.getCustomerID());
+        }
+        accountIDs = new ArrayList<>(accounts.size());
+        for (Account account : accounts) {
+            accountIDs.add(account.getAccountID());
+            idGenerator.observe(account.getAccountID());
+        }
+        indexCustomers();
+        indexAccounts();
+        if (ShardedAccountStore.isEnabled()) {
+            ShardedAccountStore.getInstance().setCompactors();
+        } else {
+            TransactionJournal.getInstance().setCompactor(() -> {
+                synchronized (this) {
+                    TransactionJournal.getInstance().rewriteBase(() -> writeAccountsFile(accounts));
+                }
+            });
+        }
+        if (SnapshotStore.isEnabled()) {
+            SnapshotStore.getInstance().start(this);
+        }
+        if (BalanceCheckpoints.isEnabled()) {
+            BalanceCheckpoints.getInstance().start(this);
+        }
+        if (Boolean.getBoolean("bank.loadStats")) {
+            Runtime runtime = Runtime.getRuntime();
+            System.out.println("Loaded " + customers.size() + " customers and " + accounts.size() + " accounts in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms, heap used: "
+                    + (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024) + " MB"
+                    + (snapshot == null ? "" : ", snapshot: " + snapshot.file.getFileName()
+                    + (snapshot.customers != null ? " (customers)" : "") + (snapshot.accounts != null ? " (accounts)" : "")));
+        }
+    }
+
+    public ArrayList<Long> getAccountIDs() {
         return accountIDs;
     }
 
-    public ArrayList<Integer> getCustomerIDs() {
+    public ArrayList<Long> getCustomerIDs() {
         return customerIDs;
     }
 
@@ -35,20 +111,62 @@ public class CSVReader {
     }
 
     /**
-     * This method returns all accountIDs which are assigned to customerID.
+     * This method returns all customers from the customerID index. It can be iterated without the lock
+     * of this data store: a customer which exists during the whole iteration is seen exactly once.
+     *
+     * @return      unmodifiable view of all customers
+     */
+    public Collection<Customer> getCustomersView() {
+        return Collections.unmodifiableCollection(customersByID.values());
+    }
+
+    /**
+     * This method returns all accounts from the accountID index. It can be iterated without the lock
+     * of this data store: an account which exists during the whole iteration is seen exactly once.
+     *
+     * @return      unmodifiable view of all accounts
+     */
+    public Collection<Account> getAccountsView() {
+        return Collections.unmodifiableCollection(accountsByID.values());
+    }
+
+    /**
+     * This method checks in the customerID index if customer with given ID exists.
+     *
+     * @param customerID    ID of customer we look for
+     * @return              true if there is a customer with given ID
+     */
+    public boolean containsCustomerID(long customerID) {
+        return customersByID.containsKey(customerID);
+    }
+
+    /**
+     * This method checks in the accountID index if account with given ID exists.
+     *
+     * @param accountID     ID of account we look for
+     * @return              true if there is an account with given ID
+     */
+    public boolean containsAccountID(long accountID) {
+        return accountsByID.containsKey(accountID);
+    }
+
+    /**
+     * This method checks if account is assigned to customerID.
      * It is used when customer wants to log into his account and it needs to be checked
-     * if account he wants to log into belongs to him.
+     * if account he wants to log into belongs to him. It only reads the list of accounts
+     * of the customer from the index, so it neither locks nor allocates.
      *
-     * @param customerID    ID of user we check to get list of accountIDs
-     * @return              list of accounts assigned to specific customerID
+     * @param customerID    ID of user who wants to log into the account
+     * @param accountID     ID of the account
+     * @return              true if the account belongs to the customer
      */
-    public ArrayList<Integer> getAccountIDsFromGivenCustomerID(int customerID) {
-        ArrayList<Account> accounts = getAccountsFromGivenCustomerID(customerID);
-        ArrayList<Integer> accountIDs = new ArrayList<>();
-        for (Account account : accounts) {
-            accountIDs.add(account.getAccountID());
+    public boolean isAccountOfCustomer(long customerID, long accountID) {
+        for (Account account : getAccountsFromGivenCustomerID(customerID)) {
+            if (account.getAccountID() == accountID) {
+                return true;
+            }
         }
-        return accountIDs;
+        return false;
     }
 
     /**
@@ -59,9 +177,8 @@ public class CSVReader {
      * @param customerID    ID of user we check to get his password
      * @return              hash of password of specific user
      */
-    public String getPasswordFromGivenCustomerID(int customerID) {
-        List<Customer> logCustomer = customers.stream().filter(customer -> customer.getCustomerID() == customerID).collect(Collectors.toList());
-        return logCustomer.get(0).getPassword();
+    public String getPasswordFromGivenCustomerID(long customerID) {
+        return customersByID.get(customerID).getPassword();
     }
 
     /**
@@ -72,9 +189,8 @@ public class CSVReader {
      * @param accountID     ID of account we check to get its PIN
      * @return              hash of PIN of specific account
      */
-    public String getPINFromGivenAccountID(int accountID) {
-        List<Account> logAccount = accounts.stream().filter(account -> account.getAccountID() == accountID).collect(Collectors.toList());
-        return logAccount.get(0).getPIN();
+    public String getPINFromGivenAccountID(long accountID) {
+        return accountsByID.get(accountID).getPIN();
     }
 
     /**
@@ -85,9 +201,8 @@ public class CSVReader {
      * @param customerID    ID of customer we check to get object of customer with this customerID
      * @return              object of customer with given customerID
      */
-    public Customer getCustomerFromGivenCustomerID(int customerID) {
-        List<Customer> logCustomer = customers.stream().filter(customer -> customer.getCustomerID() == customerID).collect(Collectors.toList());
-        return logCustomer.get(0);
+    public Customer getCustomerFromGivenCustomerID(long customerID) {
+        return customersByID.get(customerID);
     }
 
     /**
@@ -98,9 +213,8 @@ public class CSVReader {
      * @param accountID     ID od account we check to get object of account with this accountID
      * @return              object of account with given accountID
      */
-    public Account getAccountFromGivenAccountID(int accountID) {
-        List<Account> logAccount = accounts.stream().filter(account -> account.getAccountID() == accountID).collect(Collectors.toList());
-        return logAccount.get(0);
+    public Account getAccountFromGivenAccountID(long accountID) {
+        return accountsByID.get(accountID);
     }
 
     /**
@@ -111,9 +225,8 @@ public class CSVReader {
      * @param customerID    ID of user we check to get his role
      * @return              role of user with given userID
      */
-    public String getRoleFromGivenCustomerID(int customerID) {
-        List<Customer> logCustomer = customers.stream().filter(customer -> customer.getCustomerID() == customerID).collect(Collectors.toList());
-        return logCustomer.get(0).getRole();
+    public String getRoleFromGivenCustomerID(long customerID) {
+        return customersByID.get(customerID).getRole();
     }
 
     /**
@@ -121,12 +234,85 @@ public class CSVReader {
      * It is used when customer wants to display all his accounts and it is needed
      * to get all his accounts.
      *
+     * The list comes straight from the customerID index. It is unmodifiable and never changes afterwards,
+     * because the index replaces the whole list when an account is opened or removed.
+     *
      * @param customerID    customerID from which we want to extract his accounts
-     * @return              list of accounts which belongs to customer with given customerID
+     * @return              unmodifiable list of accounts which belongs to customer with given customerID
+     */
+    public List<Account> getAccountsFromGivenCustomerID(long customerID) {
+        List<Account> customerAccounts = accountsByCustomerID.get(customerID);
+        return customerAccounts != null ? customerAccounts : Collections.emptyList();
+    }
+
+    /**
+     * This method returns search index of customers by surname, name and phone number.
+     * It is built on the first call, so programs which never search do not pay for it.
+     *
+     * @return      search index kept up to date with new customers
+     */
+    public CustomerSearchIndex getSearchIndex() {
+        CustomerSearchIndex index = searchIndex;
+        if (index == null) {
+            synchronized (this) {
+                index = searchIndex;
+                if (index == null) {
+                    index = new CustomerSearchIndex(customers);
+                    searchIndex = index;
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * This method rebuilds customerID index from list of customers.
+     * It has to be called every time when list of customers is replaced.
      */
-    public ArrayList<Account> getAccountsFromGivenCustomerID(int customerID) {
-        accounts = readAccountsFromFile();
-        return accounts.stream().filter(account -> account.getCustomerID() == customerID).collect(Collectors.toCollection(ArrayList::new));
+    private void indexCustomers() {
+        customersByID.clear();
+        for (Customer customer : customers) {
+            customersByID.put(customer.getCustomerID(), customer);
+        }
+    }
+
+    /**
+     * This method rebuilds accountID index and customerID -> accounts index from list of accounts.
+     * It has to be called every time when list of accounts is replaced.
+     */
+    private void indexAccounts() {
+        accountsByID.clear();
+        accountsByCustomerID.clear();
+        for (Account account : accounts) {
+            addToAccountIndex(account);
+        }
+    }
+
+    private void addToAccountIndex(Account account) {
+        accountsByID.put(account.getAccountID(), account);
+        synchronized (accountsByCustomerID) {
+            List<Account> customerAccounts = accountsByCustomerID.get(account.getCustomerID());
+            ArrayList<Account> changed = customerAccounts == null ? new ArrayList<>(1) : new ArrayList<>(customerAccounts);
+            changed.add(account);
+            accountsByCustomerID.put(account.getCustomerID(), Collections.unmodifiableList(changed));
+        }
+    }
+
+    private void removeFromAccountIndex(Account account) {
+        accountsByID.remove(account.getAccountID());
+        synchronized (accountsByCustomerID) {
+            List<Account> customerAccounts = accountsByCustomerID.get(account.getCustomerID());
+            if (customerAccounts == null) {
+                return;
+            }
+            ArrayList<Account> changed = new ArrayList<>(customerAccounts);
+            changed.remove(account);
+            if (changed.isEmpty()) {
+                accountsByCustomerID.remove(account.getCustomerID());
+            } else {
+                accountsByCustomerID.put(account.getCustomerID(), Collections.unmodifiableList(changed));
+            }
+        }
     }
 
     /**
@@ -137,65 +323,247 @@ public class CSVReader {
      * @param accountID         ID of account we want to delete
      * @throws IOException
      */
-    public void removeAccount(int accountID) throws IOException {
+    public void removeAccount(long accountID) throws IOException {
         Account accountToRemove = getAccountFromGivenAccountID(accountID);
-        if (accountToRemove.getBalance().compareTo(BigDecimal.valueOf(0)) > 0) {
-            System.out.println("Balance of account you want to delete is " + accountToRemove.getBalance());
-            System.out.println("You need to make sure that customer will transfer his money to his another account or deposit money");
-        } else {
+        if (accountToRemove == null) {
+            System.out.println("Invalid account ID!");
+        } else if (deleteAccount(accountID)) {
             System.out.println("Deleted account which belongs to customer no. " + accountToRemove.getCustomerID() + ", accountID: " + accountToRemove.getAccountID());
-            accounts.remove(accountToRemove);
-            writeAccountsToCSV(accounts);
+        } else {
+            System.out.println("Balance of account you want to delete is " + Money.toString(accountToRemove.getBalance()));
+            System.out.println("You need to make sure that customer will transfer his money to his another account or deposit money");
         }
     }
 
     /**
-     * This method reads all lines from customers.csv using BufferedReader
-     * and uses method createCustomer() to make list of customers which we can use in program
+     * This method deletes account with given accountID if its balance is zero, without printing anything.
+     * It is used by removeAccount() and by the server mode.
      *
-     * @return  list of customers read from file
+     * The balance is checked and the account is removed while holding the lock of the account,
+     * so no money can be deposited to it in between. Operations on money check under the same lock
+     * that the account is still there.
+     *
+     * @param accountID         ID of account we want to delete
+     * @return                  false if there is no such account or it still has money on it
+     * @throws IOException
      */
-    public ArrayList<Customer> readCustomersFromFile() {
-        ArrayList<Customer> customers = new ArrayList<>();
-        BufferedReader br;
-        String line;
+    public synchronized boolean deleteAccount(long accountID) throws IOException {
+        Account accountToRemove;
+        AccountLocks.lock(accountID);
         try {
-            br = new BufferedReader(new FileReader("customers.csv"));
+            accountToRemove = getAccountFromGivenAccountID(accountID);
+            if (accountToRemove == null || accountToRemove.getBalance() > 0) {
+                return false;
+            }
+            accounts.remove(accountToRemove);
+            accountIDs.remove(Long.valueOf(accountToRemove.getAccountID()));
+            removeFromAccountIndex(accountToRemove);
+            if (ShardedAccountStore.isEnabled()) {
+                ShardedAccountStore.getInstance().removeAccount(accountToRemove);
+            }
+            recordAccountEvent(accountToRemove, TransactionLedger.Type.CLOSED);
+        } finally {
+            AccountLocks.unlock(accountID);
+        }
+        writeAccountToCSV(accountToRemove);
+        return true;
+    }
 
-            while ((line = br.readLine()) != null) {
-                String[] data = line.split(", ");
+    /**
+     * This method saves new balance of one account. With binary account store only the slot
+     * of this account is written, with sharded account store the change is appended to the journal of its shard,
+     * otherwise the change is appended to the transaction journal.
+     * With write-behind persistence the account is only marked dirty and written later.
+     * It has to be called while holding the lock of the account, so changes are saved in the same
+     * order as they were made.
+     *
+     * @param account       account with changed balance
+     * @param delta         amount of money in cents added to (or subtracted from) the account
+     * @return              sequence number which has to be passed to flushBalanceChanges()
+     * @throws IOException
+     */
+    public long recordBalanceChange(Account account, long delta) throws IOException {
+        if (WriteBehind.isEnabled()) {
+            WriteBehind.getInstance().markBalance(account, delta);
+            return 0;
+        }
+        return writeBalance(account, delta);
+    }
 
-                Customer customer = createCustomer(data);
+    /**
+     * This method puts back the balance of an account whose change could not be recorded, e.g. because
+     * the disk is full, so the money does not move in memory only. It has to be called while still holding
+     * the lock of the account. The old balance is recorded again, because the record of the failed change
+     * may have been appended before the failure; if that fails too, it is added to the original failure.
+     *
+     * @param account       account with the unrecorded change
+     * @param balance       balance of the account before the change
+     * @param failure       exception of the failed change, rethrown by the caller
+     */
+    public void restoreBalance(Account account, long balance, IOException failure) {
+        long delta = balance - account.getBalance();
+        if (delta == 0) {
+            return;
+        }
+        account.setBalance(balance);
+        try {
+            recordBalanceChange(account, delta);
+        } catch (IOException e) {
+            failure.addSuppressed(e);
+        }
+    }
 
-                customers.add(customer);
+    /**
+     * This method writes new balance of one account to the binary account store or to the journal.
+     * It is used by recordBalanceChange() and by the write-behind flusher.
+     */
+    long writeBalance(Account account, long delta) throws IOException {
+        if (BinaryAccountStore.isEnabled()) {
+            BinaryAccountStore.getInstance().writeBalance(account);
+            return 0;
+        }
+        if (ShardedAccountStore.isEnabled()) {
+            return ShardedAccountStore.getInstance().writeBalance(account, delta);
+        }
+        return TransactionJournal.getInstance().append(account.getAccountID(), delta, account.getBalance());
+    }
 
+    /**
+     * This method makes sure recorded balance changes and their records in the transaction ledger
+     * are on disk. It should be called after locks
+     * of accounts are released, so other operations do not wait for our fsync.
+     * Several changes can be recorded first and flushed together with the last sequence number.
+     * With write-behind persistence it returns right away; if changes wait longer than the maximal lag,
+     * it only wakes the background flusher up.
+     *
+     * @param seq           sequence number returned by recordBalanceChange()
+     * @throws IOException
+     */
+    public void flushBalanceChanges(long seq) throws IOException {
+        long start = System.nanoTime();
+        BankEvents.FlushWaitEvent event = new BankEvents.FlushWaitEvent();
+        event.begin();
+        try {
+            if (WriteBehind.isEnabled()) {
+                WriteBehind.getInstance().checkLag();
+            } else {
+                syncBalanceChanges(seq);
             }
+        } finally {
+            FLUSH_LATENCY.recordSince(start);
+            event.end();
+            if (event.shouldCommit()) {
+                event.operationID = BankEvents.currentOperationID();
+                event.seq = seq;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * This method waits until balance changes written so far and the transaction ledger are on disk.
+     */
+    void syncBalanceChanges(long seq) throws IOException {
+        if (BinaryAccountStore.isEnabled()) {
+            BinaryAccountStore.getInstance().force();
+        } else if (ShardedAccountStore.isEnabled()) {
+            ShardedAccountStore.getInstance().sync();
+        } else {
+            TransactionJournal.getInstance().sync(seq);
+        }
+        TransactionLedger.getInstance().sync();
+    }
+
+    /**
+     * This method writes out all changes which wait in write-behind persistence and makes sure
+     * all balance changes are on disk. It is called before the program exits.
+     *
+     * @throws IOException
+     */
+    public void drainPendingWrites() throws IOException {
+        if (WriteBehind.isEnabled()) {
+            WriteBehind.getInstance().drain();
+        } else if (ShardedAccountStore.isEnabled()) {
+            ShardedAccountStore.getInstance().syncAll();
+            TransactionLedger.getInstance().sync();
+        } else {
+            syncBalanceChanges(TransactionJournal.getInstance().getLastSeq());
+        }
+    }
+
+    /**
+     * This method reads all lines from customers.csv using ParallelCSVLoader
+     * and uses method createCustomer() to make list of customers which we can use in program.
+     * Malformed rows are reported with their line number and skipped.
+     * Big files are split into parts which are parsed in parallel.
+     *
+     * @return  list of customers read from file
+     */
+    public ArrayList<Customer> readCustomersFromFile() {
+        long start = System.nanoTime();
+        BankEvents.FileIOEvent event = new BankEvents.FileIOEvent();
+        event.begin();
+        ArrayList<Customer> customers = new ArrayList<>();
+        try {
+            customers = ParallelCSVLoader.load(Paths.get("customers.csv"), this::createCustomer);
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            READ_CUSTOMERS_LATENCY.recordSince(start);
+            BankEvents.endFileIO(event, "readCustomersFromFile", "customers.csv", customers.size());
         }
         return customers;
     }
 
     /**
-     * This method reads all lines from accounts.csv using BufferedReader
-     * and uses method createAccount() to make list of accounts which we can use in program
+     * This method reads all lines from accounts.csv using ParallelCSVLoader
+     * and uses method createAccount() to make list of accounts which we can use in program.
+     * Malformed rows are reported with their line number and skipped.
+     * Big files are split into parts which are parsed in parallel.
+     * Balance changes recorded in the transaction journal are applied on top of the file.
+     * If binary account store is turned on, accounts are read from accounts.dat instead.
+     * With sharded account store they are read from all shards and their journals, see ShardedAccountStore.
      *
      * @return  list of accounts read from file
      */
     public ArrayList<Account> readAccountsFromFile() {
-        ArrayList<Account> accounts = new ArrayList<>();
-        BufferedReader br;
-        String line;
-        try {
-            br = new BufferedReader(new FileReader("accounts.csv"));
-
-            while ((line = br.readLine()) != null) {
-                String[] data = line.split(", ");
+        long start = System.nanoTime();
+        BankEvents.FileIOEvent event = new BankEvents.FileIOEvent();
+        event.begin();
+        ArrayList<Account> accounts = readAccounts();
+        READ_ACCOUNTS_LATENCY.recordSince(start);
+        BankEvents.endFileIO(event, "readAccountsFromFile", accountsFile(), accounts.size());
+        return accounts;
+    }
 
-                Account account = createAccount(data);
+    private static String accountsFile() {
+        if (ShardedAccountStore.isEnabled()) {
+            return ShardedAccountStore.DIRECTORY;
+        }
+        return BinaryAccountStore.isEnabled() ? BinaryAccountStore.ACCOUNTS_FILE : "accounts.csv";
+    }
 
-                accounts.add(account);
+    private ArrayList<Account> readAccounts() {
+        if (BinaryAccountStore.isEnabled()) {
+            try {
+                return BinaryAccountStore.getInstance().readAccounts();
+            } catch (IOException e) {
+                e.printStackTrace();
+                return new ArrayList<>();
             }
+        }
+        if (ShardedAccountStore.isEnabled()) {
+            try {
+                return ShardedAccountStore.getInstance().readAccounts();
+            } catch (IOException e) {
+                e.printStackTrace();
+                return new ArrayList<>();
+            }
+        }
+        ArrayList<Account> accounts = new ArrayList<>();
+        try {
+            accounts = ParallelCSVLoader.load(Paths.get("accounts.csv"), this::createAccount);
+            TransactionJournal.getInstance().replay(accounts);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -204,83 +572,60 @@ public class CSVReader {
 
 
     /**
-     * This method reads all lines from customers.csv using BufferedReader
-     * and uses method createCustomerID() to make list of customerIDs which we can use in program.
+     * This method reads all lines from customers.csv using ParallelCSVLoader
+     * and takes first field of every row to make list of customerIDs which we can use in program.
      * It is mainly used when we are generating new user and want to prevent situation
      * when different users have the same userID.
      *
      * @return list of customerIDs read from file
      */
-    public ArrayList<Integer> readCustomerIDsFromFile() {
-        ArrayList<Integer> customerIDs = new ArrayList<>();
-        BufferedReader br;
-        String line;
+    public ArrayList<Long> readCustomerIDsFromFile() {
         try {
-            br = new BufferedReader(new FileReader("customers.csv"));
-
-            while ((line = br.readLine()) != null) {
-                String[] data = line.split(", ");
-
-                int customerID = createCustomerID(data);
-
-                customerIDs.add(customerID);
-
-            }
+            return ParallelCSVLoader.load(Paths.get("customers.csv"), parser -> parser.longField(0));
         } catch (IOException e) {
             e.printStackTrace();
+            return new ArrayList<>();
         }
-        return customerIDs;
     }
 
     /**
-     * This method reads all lines from accounts.csv using BufferedReader
-     * and uses method createAccountID() to make list of accountIDs which we can use in program.
+     * This method reads all lines from accounts.csv using ParallelCSVLoader
+     * and takes second field of every row to make list of accountIDs which we can use in program.
      * It is mainly used when we are generating new account and want to prevent situation
      * when different accounts have the same accountID.
      *
      * @return list of accountIDs read from file
      */
-    public ArrayList<Integer> readAccountIDsFromFile() {
-        ArrayList<Integer> accountIDs = new ArrayList<>();
-        BufferedReader br;
-        String line;
+    public ArrayList<Long> readAccountIDsFromFile() {
         try {
-            br = new BufferedReader(new FileReader("accounts.csv"));
-
-            while ((line = br.readLine()) != null) {
-                String[] data = line.split(", ");
-
-                int accountID = createAccountID(data);
-
-                accountIDs.add(accountID);
-            }
+            return ParallelCSVLoader.load(Paths.get("accounts.csv"), parser -> parser.longField(1));
         } catch (IOException e) {
             e.printStackTrace();
+            return new ArrayList<>();
         }
-        return accountIDs;
     }
 
     /**
-     * This method creates new Integer accountID which we add to list of
+     * This method creates new Long accountID which we add to list of
      * accountIDs in readAccountIDsFromFile() method.
      *
      * @param data      tab of data which is read from file
      * @return          new accountID which is later added to list of accountIDs
      */
-    public int createAccountID(String[] data) {
-        return Integer.parseInt(data[1]);
+    public long createAccountID(String[] data) {
+        return Long.parseLong(data[1]);
     }
 
 
     /**
-     * This method creates new Integer customerID which we add to list of
+     * This method creates new Long customerID which we add to list of
      * customerIDs in readCustomerIDsFromFile() method.
      *
      * @param data      tab of data which is read from file
      * @return          new customerID which is later added to list of customerIDs
      */
-    public int createCustomerID(String[] data) {
-        return Integer.parseInt(data[0]);
+    public long createCustomerID(String[] data) {
+        return Long.parseLong(data[0]);
     }
 
     /**
@@ -288,10 +633,32 @@ public class CSVReader {
      * We are creating a string with all customer fields which is
      * written to the file by bw.write(sbf)
      *
+     * With write-behind persistence the file is written later by the flusher.
+     *
      * @param customers         list of customers which we pass to method after change in data
      * @throws IOException
      */
     public void writeUsersToCSV(ArrayList<Customer> customers) throws IOException {
+        if (WriteBehind.isEnabled()) {
+            WriteBehind.getInstance().markCustomers();
+            return;
+        }
+        writeUsersNow(customers);
+    }
+
+    void writeUsersNow(ArrayList<Customer> customers) throws IOException {
+        long start = System.nanoTime();
+        BankEvents.FileIOEvent event = new BankEvents.FileIOEvent();
+        event.begin();
+        try {
+            writeCustomersFile(customers);
+        } finally {
+            WRITE_CUSTOMERS_LATENCY.recordSince(start);
+            BankEvents.endFileIO(event, "writeUsersToCSV", "customers.csv", customers.size());
+        }
+    }
+
+    private void writeCustomersFile(ArrayList<Customer> customers) throws IOException {
         BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream("customers.csv"), StandardCharsets.UTF_8));
         for (Customer customer : customers) {
             String sbf = customer.getCustomerID() +
@@ -317,26 +684,146 @@ public class CSVReader {
     /**
      * This is key method which saves data to accounts.csv file.
      * We are creating a string with all account fields which is
-     * written to the file by bw.write(sbf)
+     * written to the file by bw.write(sbf).
+     * After the whole file is written the transaction journal is emptied.
+     * If binary account store is turned on, accounts are written to accounts.dat instead.
+     * With sharded account store every shard file is written and its own journal emptied.
+     * With write-behind persistence the file is written later by the flusher.
      *
      * @param accounts         list of accounts which we pass to method after change in data
      * @throws IOException
      */
     public void writeAccountsToCSV(ArrayList<Account> accounts) throws IOException {
-        BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream("accounts.csv"), StandardCharsets.UTF_8));
-        for (Account account : accounts) {
-            String sbf = account.getCustomerID() +
-                    SEPARATOR +
-                    account.getAccountID() +
-                    SEPARATOR +
-                    account.getBalance() +
-                    SEPARATOR +
-                    account.getPIN();
-            bw.write(sbf);
-            bw.newLine();
+        if (WriteBehind.isEnabled()) {
+            WriteBehind.getInstance().markAccounts();
+            return;
+        }
+        writeAccountsNow(accounts);
+    }
+
+    /**
+     * This method saves a new or deleted account or a changed PIN. With binary account store only the slot
+     * of the account is written, with sharded account store only the file of the shard of the account,
+     * otherwise all accounts are written like by writeAccountsToCSV().
+     * It has to be called while holding the lock of this data store, after the indexes are updated.
+     *
+     * @param account          new, deleted or changed account
+     * @throws IOException
+     */
+    void writeAccountToCSV(Account account) throws IOException {
+        if (BinaryAccountStore.isEnabled()) {
+            BinaryAccountStore store = BinaryAccountStore.getInstance();
+            if (getAccountFromGivenAccountID(account.getAccountID()) == account) {
+                store.writeAccount(account);
+            } else {
+                store.deleteAccount(account.getAccountID());
+            }
+            if (WriteBehind.isEnabled()) {
+                WriteBehind.getInstance().markSlots();
+            } else {
+                store.force();
+            }
+            return;
+        }
+        if (!ShardedAccountStore.isEnabled()) {
+            writeAccountsToCSV(accounts);
+            return;
+        }
+        int shard = ShardedAccountStore.getInstance().shardOf(account);
+        if (WriteBehind.isEnabled()) {
+            WriteBehind.getInstance().markShard(shard);
+            return;
+        }
+        ShardedAccountStore.getInstance().writeShard(shard);
+    }
+
+    void writeAccountsNow(ArrayList<Account> accounts) throws IOException {
+        long start = System.nanoTime();
+        BankEvents.FileIOEvent event = new BankEvents.FileIOEvent();
+        event.begin();
+        try {
+            if (BinaryAccountStore.isEnabled()) {
+                BinaryAccountStore.getInstance().writeAccounts(accounts);
+            } else if (ShardedAccountStore.isEnabled()) {
+                ShardedAccountStore.getInstance().writeAccounts();
+            } else {
+                TransactionJournal.getInstance().rewriteBase(() -> writeAccountsFile(accounts));
+            }
+        } finally {
+            WRITE_ACCOUNTS_LATENCY.recordSince(start);
+            BankEvents.endFileIO(event, "writeAccountsToCSV", accountsFile(), accounts.size());
+        }
+    }
+
+    /**
+     * This method writes given accounts to accounts.csv without touching the transaction journal.
+     * It is used by writeAccountsToCSV() and by background compaction of the journal.
+     *
+     * @param accounts         list of accounts we want to write
+     * @throws IOException
+     */
+    private void writeAccountsFile(ArrayList<Account> accounts) throws IOException {
+        writeAccountsFile(Paths.get("accounts.csv"), accounts);
+    }
+
+    /**
+     * This method writes given accounts to a file in the format of accounts.csv.
+     * It is also used to write files of account shards, see ShardedAccountStore.
+     * Rows are written to a temporary file which is forced to disk and then renamed over the old file,
+     * and the rename is made durable by forcing the directory, so the file is never seen half written
+     * and journal segments deleted after this method returns can never lose balances.
+     *
+     * @param path             file we write to
+     * @param accounts         list of accounts we want to write
+     * @throws IOException
+     */
+    static void writeAccountsFile(Path path, List<Account> accounts) throws IOException {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            FileOutputStream fos = new FileOutputStream(temporary.toFile());
+            try (BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(fos, StandardCharsets.UTF_8), 1 << 16)) {
+                StringBuilder sbf = new StringBuilder(128);
+                for (Account account : accounts) {
+                    sbf.setLength(0);
+                    sbf.append(account.getCustomerID())
+                            .append(SEPARATOR)
+                            .append(account.getAccountID())
+                            .append(SEPARATOR);
+                    Money.appendTo(sbf, account.getBalance())
+                            .append(SEPARATOR)
+                            .append(account.getPIN());
+                    bw.append(sbf);
+                    bw.newLine();
+                }
+                bw.flush();
+                fos.getFD().sync();
+            }
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            forceDirectory(path.toAbsolutePath().getParent());
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * This method forces entries of the directory (e.g. a file renamed into it) to disk.
+     * Some systems cannot open a directory for that; there the rename is left to the file system.
+     *
+     * @param directory         directory we want to force
+     * @throws IOException
+     */
+    static void forceDirectory(Path directory) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(directory, StandardOpenOption.READ);
+        } catch (IOException e) {
+            return;
+        }
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
         }
-        bw.flush();
-        bw.close();
     }
 
 
@@ -351,7 +838,7 @@ public class CSVReader {
      */
     public void newCustomer() throws IOException, NoSuchAlgorithmException {
         PersonalData pd = new PersonalData();
-        int ID = getRandomNumberInRange(100000, 999999, readCustomerIDsFromFile());
+        long ID = IdGenerator.getInstance().nextID();
         System.out.println("Enter name:");
         String name = in.next();
         System.out.println("Enter surname:");
@@ -360,6 +847,9 @@ public class CSVReader {
         String sex = in.next();
         System.out.println("Enter phone number:");
         long phoneNumber = in.nextLong();
+        if (isPhoneNumberTaken(phoneNumber)) {
+            return;
+        }
         if (pd.isValidPhoneNumber(phoneNumber)) {
             while (true) {
                 System.out.println("Enter password:");
@@ -372,9 +862,14 @@ public class CSVReader {
                     String hashPassword = hash(password);
                     System.out.println("Enter role: (customer/admin)");
                     String role = in.next();
-                    customers.add(new Customer(ID, name, surname, sex, phoneNumber, hashPassword, role));
+                    Customer customer = new Customer(ID, name, surname, sex, phoneNumber, hashPassword, role);
+                    synchronized (this) {
+                        if (!addCustomer(customer)) {
+                            return;
+                        }
+                        writeUsersToCSV(customers);
+                    }
                     System.out.println("ID of " + name + " " + surname + " is: " + ID + "\n");
-                    writeUsersToCSV(customers);
                     if (role.equals("customer")) {
                         newAccount(ID);
                     }
@@ -387,6 +882,73 @@ public class CSVReader {
     }
 
 
+    /**
+     * This method creates new customer without asking for anything. It is used by the server mode.
+     * Unlike newCustomer() it does not open an account for the customer.
+     *
+     * @param name          name of new customer
+     * @param surname       surname of new customer
+     * @param sex           sex of new customer
+     * @param phoneNumber   phone number of new customer
+     * @param password      password of new customer (not hashed)
+     * @param role          "customer" or "admin"
+     * @return              new customer or null if the phone number, the password or the role is not valid
+     *                      or the phone number is already registered
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public Customer registerCustomer(String name, String surname, String sex, long phoneNumber, String password, String role)
+            throws IOException, NoSuchAlgorithmException {
+        if (!new PersonalData().isValidPhoneNumber(phoneNumber) || !isValidPassword(password)
+                || !(role.equals("customer") || role.equals("admin"))) {
+            return null;
+        }
+        Customer customer = new Customer(IdGenerator.getInstance().nextID(), name, surname, sex, phoneNumber, hash(password), role);
+        synchronized (this) {
+            if (!addCustomer(customer)) {
+                return null;
+            }
+            writeUsersToCSV(customers);
+        }
+        return customer;
+    }
+
+    /**
+     * This method adds new customer to the list and to the indexes, unless its phone number
+     * is already registered. The check and the update are done under one lock, so two customers
+     * cannot get the same phone number. Callers hold the same lock while they write customers.csv,
+     * so the list is never written while another customer is added.
+     *
+     * @param customer      new customer
+     * @return              false if the phone number is already registered
+     */
+    private synchronized boolean addCustomer(Customer customer) {
+        if (isPhoneNumberTaken(customer.getPhoneNumber())) {
+            return false;
+        }
+        customers.add(customer);
+        customerIDs.add(customer.getCustomerID());
+        customersByID.put(customer.getCustomerID(), customer);
+        getSearchIndex().add(customer);
+        return true;
+    }
+
+    /**
+     * This method checks in the phone number index if the number already belongs to a customer
+     * and prints the customer if it does.
+     *
+     * @param phoneNumber       phone number of new customer
+     * @return                  true if the number is already registered
+     */
+    private boolean isPhoneNumberTaken(long phoneNumber) {
+        List<Customer> owners = getSearchIndex().findByPhone(phoneNumber);
+        if (owners.isEmpty()) {
+            return false;
+        }
+        System.out.println("Phone number " + phoneNumber + " is already registered to customer no. " + owners.get(0).getCustomerID() + "!");
+        return true;
+    }
+
     /**
      * This method is responsible for creating new account by admin.
      * We enter all fields of account and check if they are valid.
@@ -395,26 +957,71 @@ public class CSVReader {
      * @throws IOException
      * @throws NoSuchAlgorithmException
      */
-    public void newAccount(int customerID) throws IOException, NoSuchAlgorithmException {
-        customers = readCustomersFromFile();
-        customerIDs = readCustomerIDsFromFile();
-        accounts = readAccountsFromFile();
-        accountIDs = readAccountIDsFromFile();
-
-        if (getCustomerIDs().contains(customerID)) {
-            int accountID = getRandomNumberInRange(10000, 99999, readAccountIDsFromFile());
-            BigDecimal balance = BigDecimal.valueOf(0);
-            String PIN = Short.toString(getRandomPINInRange());
-            String hashPIN = hash(PIN);
-            accounts.add(new Account(customerID, accountID, balance, hashPIN));
-            System.out.println("Created account which belongs to customer no. " + customerID + ". Account ID: " + accountID + ", PIN number: " + PIN);
-            writeAccountsToCSV(accounts);
+    public void newAccount(long customerID) throws IOException, NoSuchAlgorithmException {
+        String PIN = generatePIN();
+        Account account = openAccount(customerID, PIN);
+        if (account != null) {
+            System.out.println("Created account which belongs to customer no. " + customerID + ". Account ID: " + account.getAccountID() + ", PIN number: " + PIN);
         } else {
             System.out.println("There is no customer with given ID!");
         }
 
     }
 
+    /**
+     * This method creates new account with zero balance and given PIN for the customer
+     * and writes it to file, without printing anything.
+     *
+     * @param customerID    ID of customer who gets the account
+     * @param PIN           PIN of the new account (not hashed)
+     * @return              new account or null if there is no customer with given ID
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public synchronized Account openAccount(long customerID, String PIN) throws IOException, NoSuchAlgorithmException {
+        if (!customersByID.containsKey(customerID)) {
+            return null;
+        }
+        long accountID = IdGenerator.getInstance().nextID();
+        long balance = 0;
+        Account account = new Account(customerID, accountID, balance, hash(PIN));
+        accounts.add(account);
+        accountIDs.add(accountID);
+        addToAccountIndex(account);
+        if (ShardedAccountStore.isEnabled()) {
+            ShardedAccountStore.getInstance().addAccount(account);
+        }
+        recordAccountEvent(account, TransactionLedger.Type.OPENED);
+        writeAccountToCSV(account);
+        return account;
+    }
+
+    /**
+     * This method records opening or deleting of an account in the transaction ledger, so balances
+     * as of a past time know which accounts existed then. It is called while holding the lock of this
+     * data store, which balance checkpoints also hold. Without write-behind the record is synced right away.
+     *
+     * @param account       opened or deleted account
+     * @param type          OPENED or CLOSED
+     * @throws IOException
+     */
+    private void recordAccountEvent(Account account, TransactionLedger.Type type) throws IOException {
+        TransactionLedger ledger = TransactionLedger.getInstance();
+        ledger.append(account.getAccountID(), type, 0, account.getCustomerID(), account.getBalance());
+        if (!WriteBehind.isEnabled()) {
+            ledger.sync();
+        }
+    }
+
+    /**
+     * This method generates random PIN for a new account.
+     *
+     * @return          PIN in range 1000-9999
+     */
+    public String generatePIN() {
+        return Short.toString(getRandomPINInRange());
+    }
+
     /**
      * This method is used to change password and it is only available for admin.
      * We check if password is valid and prevent the situation when
@@ -425,9 +1032,8 @@ public class CSVReader {
      * @throws NoSuchAlgorithmException
      * @throws IOException
      */
-    public void changePasswordByAdmin(int customerID) throws NoSuchAlgorithmException, IOException {
+    public void changePasswordByAdmin(long customerID) throws NoSuchAlgorithmException, IOException {
         while (true) {
-            customers = readCustomersFromFile();
             if (getRoleFromGivenCustomerID(customerID).equals("customer")) {
                 System.out.println("Enter the new password:");
                 System.out.println("1) Password must be between 8 and 30 characters.");
@@ -437,8 +1043,11 @@ public class CSVReader {
                 String newPassword = in.next();
                 if (isValidPassword(newPassword)) {
                     Customer customer = getCustomerFromGivenCustomerID(customerID);
-                    customer.setPassword(hash(newPassword));
-                    writeUsersToCSV(customers);
+                    String hash = hash(newPassword);
+                    synchronized (this) {
+                        customer.setPassword(hash);
+                        writeUsersToCSV(customers);
+                    }
                     break;
                 } else {
                     System.out.println("This is not a valid password!");
@@ -450,6 +1059,29 @@ public class CSVReader {
         }
     }
 
+    /**
+     * This method changes password of a customer without asking for anything. It is used by the server mode.
+     * Like changePasswordByAdmin() it does not change password of an admin.
+     *
+     * @param customerID        ID of the customer
+     * @param password          new password (not hashed)
+     * @return                  false if there is no such customer, the customer is an admin or the password is not valid
+     * @throws NoSuchAlgorithmException
+     * @throws IOException
+     */
+    public boolean changePassword(long customerID, String password) throws NoSuchAlgorithmException, IOException {
+        Customer customer = getCustomerFromGivenCustomerID(customerID);
+        if (customer == null || !customer.getRole().equals("customer") || !isValidPassword(password)) {
+            return false;
+        }
+        String hash = hash(password);
+        synchronized (this) {
+            customer.setPassword(hash);
+            writeUsersToCSV(customers);
+        }
+        return true;
+    }
+
     /**
      * This method is used to change PIN and it is only available for admin.
      * We check if PIN is valid and if it is program overwrite it to the file
@@ -458,17 +1090,13 @@ public class CSVReader {
      * @throws NoSuchAlgorithmException
      * @throws IOException
      */
-    public void changePINByAdmin(int accountID) throws NoSuchAlgorithmException, IOException {
+    public void changePINByAdmin(long accountID) throws NoSuchAlgorithmException, IOException {
         while (true) {
-            accounts = readAccountsFromFile();
             System.out.println("Enter the new PIN:");
             System.out.println("1) PIN must be an 4-digit number in range 1000-9999");
             System.out.println("2) PIN cannot contain any letter or special character");
             String PIN = in.next();
-            if (isValidPIN(PIN)) {
-                Account account = getAccountFromGivenAccountID(accountID);
-                account.setPIN(hash(PIN));
-                writeAccountsToCSV(accounts);
+            if (changePIN(accountID, PIN)) {
                 break;
             } else {
                 System.out.println("This is not a valid PIN!");
@@ -476,6 +1104,29 @@ public class CSVReader {
         }
     }
 
+    /**
+     * This method changes PIN of the account without asking for anything. It is used by changePINByAdmin()
+     * and by the script driver. The PIN is hashed before the data store is locked.
+     *
+     * @param accountID         ID of the account
+     * @param PIN               new PIN (not hashed)
+     * @return                  false if the PIN is not valid or there is no account with given ID
+     * @throws NoSuchAlgorithmException
+     * @throws IOException
+     */
+    public boolean changePIN(long accountID, String PIN) throws NoSuchAlgorithmException, IOException {
+        Account account = getAccountFromGivenAccountID(accountID);
+        if (account == null || !isValidPIN(PIN)) {
+            return false;
+        }
+        String hash = hash(PIN);
+        synchronized (this) {
+            account.setPIN(hash);
+            writeAccountToCSV(account);
+        }
+        return true;
+    }
+
     /**
      * This method is used to change PIN and it is only available for customer.
      * Customer have to write his old PIN, then confirm it and if nothing goes wrong
@@ -486,13 +1137,12 @@ public class CSVReader {
      * @throws NoSuchAlgorithmException
      * @throws IOException
      */
-    public void changePINByCustomer(int accountID) throws NoSuchAlgorithmException, IOException {
+    public void changePINByCustomer(long accountID) throws NoSuchAlgorithmException, IOException {
         outerloop:
         while (true) {
-            accounts = readAccountsFromFile();
             System.out.println("Enter the old PIN:");
             String oldPIN = in.next();
-            if (hash(oldPIN).equals(getPINFromGivenAccountID(accountID))) {
+            if (verify(oldPIN, getPINFromGivenAccountID(accountID))) {
                 while (true) {
                     System.out.println("Enter the new PIN:");
                     System.out.println("1) PIN must be an 4-digit number in range 1000-9999");
@@ -505,7 +1155,9 @@ public class CSVReader {
                             if (newPIN.equals(confirmPIN)) {
                                 Account account = getAccountFromGivenAccountID(accountID);
                                 account.setPIN(hash(newPIN));
-                                writeAccountsToCSV(accounts);
+                                synchronized (this) {
+                                    writeAccountToCSV(account);
+                                }
                                 System.out.println("\nPIN number changed successfully");
                                 break outerloop;
                             } else {
@@ -533,13 +1185,12 @@ public class CSVReader {
      * @throws NoSuchAlgorithmException
      * @throws IOException
      */
-    public void changePasswordByCustomer(int customerID) throws NoSuchAlgorithmException, IOException {
+    public void changePasswordByCustomer(long customerID) throws NoSuchAlgorithmException, IOException {
         outerloop:
         while (true) {
-            customers = readCustomersFromFile();
             System.out.println("Enter the old password:");
             String oldPassword = in.next();
-            if (hash(oldPassword).equals(getPasswordFromGivenCustomerID(customerID))) {
+            if (verify(oldPassword, getPasswordFromGivenCustomerID(customerID))) {
                 while (true) {
                     System.out.println("Enter the new password:");
                     System.out.println("1) Password must be between 8 and 30 characters.");
@@ -553,8 +1204,11 @@ public class CSVReader {
                             String confirmPassword = in.next();
                             if (newPassword.equals(confirmPassword)) {
                                 Customer customer = getCustomerFromGivenCustomerID(customerID);
-                                customer.setPassword(hash(newPassword));
-                                writeUsersToCSV(customers);
+                                String hash = hash(newPassword);
+                                synchronized (this) {
+                                    customer.setPassword(hash);
+                                    writeUsersToCSV(customers);
+                                }
                                 System.out.println("\nPassword changed successfully");
                                 break outerloop;
                             } else {
@@ -579,7 +1233,7 @@ public class CSVReader {
      * @return          new customer we want to create
      */
     public Customer createCustomer(String[] data) {
-        int customerID = Integer.parseInt(data[0]);
+        long customerID = Long.parseLong(data[0]);
         String name = data[1];
         String surname = data[2];
         String sex = data[3];
@@ -589,6 +1243,20 @@ public class CSVReader {
         return new Customer(customerID, name, surname, sex, phoneNumber, password, role);
     }
 
+    /**
+     * This method creates new object of customer straight from current row of CSVParser.
+     * Numbers are decoded from bytes and repeating values like sex or role are not copied.
+     *
+     * @param parser    parser positioned at the row of customer
+     * @return          new customer we want to create
+     * @throws CSVParser.CSVFormatException
+     */
+    public Customer createCustomer(CSVParser parser) throws CSVParser.CSVFormatException {
+        parser.expectFields(7);
+        return new Customer(parser.longField(0), parser.stringField(1), parser.stringField(2), parser.stringField(3, "M", "K"),
+                parser.longField(4), parser.stringField(5), parser.stringField(6, "customer", "admin"));
+    }
+
     /**
      * This method takes tab of data as an input and create new object of account.
      *
@@ -596,36 +1264,25 @@ public class CSVReader {
      * @return          new account we want to create
      */
     public Account createAccount(String[] data) {
-        int customerID = Integer.parseInt(data[0]);
-        int accountID = Integer.parseInt(data[1]);
-        BigDecimal balance = new BigDecimal(data[2]);
+        long customerID = Long.parseLong(data[0]);
+        long accountID = Long.parseLong(data[1]);
+        long balance = Money.parse(data[2]);
         String PIN = data[3];
 
         return new Account(customerID, accountID, balance, PIN);
     }
 
     /**
-     * This method create number in range (min, max) and checks if it is an element of
-     * given list. If it is we generate the number once again and if it is not we can pass it to the other method.
+     * This method creates new object of account straight from current row of CSVParser.
+     * Balance is decoded from bytes as number of hundredths.
      *
-     * @param min           starting number
-     * @param max           ending number
-     * @param arrayList     list we check if generated number is in it or not
-     * @return
+     * @param parser    parser positioned at the row of account
+     * @return          new account we want to create
+     * @throws CSVParser.CSVFormatException
      */
-    private int getRandomNumberInRange(int min, int max, ArrayList<Integer> arrayList) {
-        if (min >= max) {
-            throw new IllegalArgumentException("max must be greater than min");
-        }
-        Random r = new Random();
-        int randID = r.nextInt((max - min) + 1) + min;
-        for (int i = 0; i < arrayList.size(); i++) {
-            if (randID == arrayList.get(i)) {
-                i = 0;
-                randID = r.nextInt((max - min) + 1) + min;
-            }
-        }
-        return randID;
+    public Account createAccount(CSVParser parser) throws CSVParser.CSVFormatException {
+        parser.expectFields(4);
+        return new Account(parser.longField(0), parser.longField(1), parser.centsField(2), parser.stringField(3));
     }
 
     /**
@@ -641,22 +1298,27 @@ public class CSVReader {
     }
 
     /**
-     * This method makes hash of given password/PIN.
-     * Used hash function is SHA-256.
+     * This method makes hash of given password/PIN which can be stored in the data files.
+     * Format and work factor of the hash are chosen by CredentialService.
      *
      * @param password      password/PIN we want to hash
      * @return              hashed password/PIN
      * @throws NoSuchAlgorithmException
      */
     public String hash(String password) throws NoSuchAlgorithmException {
-        MessageDigest md = MessageDigest.getInstance("SHA-256");
-        md.update(password.getBytes());
-        byte[] digest = md.digest();
-        StringBuilder hexString = new StringBuilder();
-        for (byte b : digest) {
-            hexString.append(Integer.toHexString(0xFF & b));
-        }
-        return hexString.toString();
+        return CredentialService.getInstance().hash(password);
+    }
+
+    /**
+     * This method checks if entered password/PIN matches the stored hash. Hashes written by
+     * older versions of the program are also accepted.
+     *
+     * @param password      password/PIN entered by the user
+     * @param hash          hash read from the data files
+     * @return              true if password/PIN is correct
+     */
+    public boolean verify(String password, String hash) {
+        return CredentialService.getInstance().verify(password, hash);
     }
 
     /**
@@ -0,0 +1,222 @@
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Map from long keys to objects, used for the ID indexes of the data store. Keys are kept in a long array
+ * with open addressing (linear probing), so a lookup neither boxes its key nor allocates anything else.
+ *
+ * Lookups and iteration do not lock. Changes are serialized by the lock of the map; they are rare compared
+ * to lookups (new customers and accounts, deleted accounts, loading of the files). A new entry writes its value
+ * before its key, so a lookup which finds the key always sees the value. A removed entry keeps its key with
+ * a null value, until the table is copied into a bigger one, which is published only when it is complete.
+ * Key 0 is not used as an ID, it marks an empty slot.
+ */
+public class ConcurrentLongMap<V> {
+
+    private static final long EMPTY = 0;
+    private static final int MIN_CAPACITY = 16;
+
+    /**
+     * One table of slots. A slot is empty (key 0), holds an entry, or holds a removed key (null value).
+     */
+    private static final class Table<V> {
+        final AtomicLongArray keys;
+        final AtomicReferenceArray<V> values;
+        final int mask;
+        int used;
+
+        Table(int capacity) {
+            keys = new AtomicLongArray(capacity);
+            values = new AtomicReferenceArray<>(capacity);
+            mask = capacity - 1;
+        }
+    }
+
+    private volatile Table<V> table = new Table<>(MIN_CAPACITY);
+    private volatile int size;
+
+    private static int slot(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & mask;
+    }
+
+    /**
+     * This method returns value of the key.
+     *
+     * @param key       key, not 0
+     * @return          value or null if the key is not in the map
+     */
+    public V get(long key) {
+        Table<V> t = table;
+        for (int i = slot(key, t.mask); ; i = (i + 1) & t.mask) {
+            long k = t.keys.get(i);
+            if (k == key) {
+                return t.values.get(i);
+            }
+            if (k == EMPTY) {
+                return null;
+            }
+        }
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    /**
+     * This method sets value of the key.
+     *
+     * @param key       key, not 0
+     * @param value     new value, not null
+     * @return          previous value or null
+     */
+    public synchronized V put(long key, V value) {
+        if (key == EMPTY || value == null) {
+            throw new IllegalArgumentException("Key 0 and null values are not allowed");
+        }
+        Table<V> t = table;
+        int i = find(t, key);
+        if (t.keys.get(i) == EMPTY) {
+            if ((t.used + 1) * 2 > t.mask + 1) {
+                t = resize(size + 1);
+                i = find(t, key);
+            }
+            t.used++;
+            t.values.set(i, value);
+            t.keys.set(i, key);
+            size++;
+            return null;
+        }
+        V previous = t.values.getAndSet(i, value);
+        if (previous == null) {
+            size++;
+        }
+        return previous;
+    }
+
+    /**
+     * This method removes the key.
+     *
+     * @param key       key
+     * @return          removed value or null if the key was not in the map
+     */
+    public synchronized V remove(long key) {
+        Table<V> t = table;
+        int i = find(t, key);
+        if (t.keys.get(i) == EMPTY) {
+            return null;
+        }
+        V previous = t.values.getAndSet(i, null);
+        if (previous != null) {
+            size--;
+        }
+        return previous;
+    }
+
+    /**
+     * This method removes all entries. Lookups which already hold the old table may still find them.
+     */
+    public synchronized void clear() {
+        table = new Table<>(MIN_CAPACITY);
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * This method returns view of all values. It is iterated without the lock of the map:
+     * a value which is in the map during the whole iteration is seen exactly once.
+     *
+     * @return      view of values, which cannot be changed through it
+     */
+    public Collection<V> values() {
+        return new AbstractCollection<V>() {
+            @Override
+            public Iterator<V> iterator() {
+                return new ValueIterator<>(table);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * This method returns slot with the key, or the empty slot where the key would be added.
+     */
+    private static int find(Table<?> t, long key) {
+        int i = slot(key, t.mask);
+        while (true) {
+            long k = t.keys.get(i);
+            if (k == key || k == EMPTY) {
+                return i;
+            }
+            i = (i + 1) & t.mask;
+        }
+    }
+
+    /**
+     * This method copies entries (without removed keys) into a table with room for at least twice
+     * the expected number of entries and publishes it.
+     */
+    private Table<V> resize(int expected) {
+        Table<V> old = table;
+        int capacity = MIN_CAPACITY;
+        while (capacity < expected * 4L && capacity < (1 << 30)) {
+            capacity <<= 1;
+        }
+        Table<V> t = new Table<>(capacity);
+        for (int i = 0; i <= old.mask; i++) {
+            V value = old.values.get(i);
+            if (value != null) {
+                int j = find(t, old.keys.get(i));
+                t.values.set(j, value);
+                t.keys.set(j, old.keys.get(i));
+                t.used++;
+            }
+        }
+        table = t;
+        return t;
+    }
+
+    private static final class ValueIterator<V> implements Iterator<V> {
+        private final Table<V> t;
+        private int index;
+        private V next;
+
+        ValueIterator(Table<V> t) {
+            this.t = t;
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while (next == null && index <= t.mask) {
+                next = t.values.get(index++);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public V next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            V value = next;
+            advance();
+            return value;
+        }
+    }
+}
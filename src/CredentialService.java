@@ -0,0 +1,218 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Base64;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Service which hashes and verifies passwords and PINs. Three formats of stored hashes are understood:
+ * <pre>
+ * pbkdf2$100000$salt$hash    PBKDF2-HMAC-SHA256 with random salt and given number of iterations (base64)
+ * sha256$hash                SHA-256 of UTF-8 bytes, 64 hex digits
+ * 6b86b273ff34fce19d6b...    legacy SHA-256 written by older versions, hex digits without leading zeros
+ * </pre>
+ * New hashes are created in the format chosen with -Dbank.credentials.scheme (pbkdf2 by default,
+ * or sha256) and the work factor of PBKDF2 is set with -Dbank.credentials.iterations (100000 by default).
+ * Hashes in the other formats are still verified, so existing files keep working and are
+ * upgraded whenever a password or PIN is changed.
+ *
+ * Digests and key factories are kept per thread, so they are not looked up on every call, and hashes
+ * are compared as raw bytes in constant time, so the time of verification does not tell
+ * how many leading characters of the hash were correct.
+ */
+public final class CredentialService {
+
+    public static final String PBKDF2 = "pbkdf2";
+    public static final String SHA256 = "sha256";
+
+    private static final char SEPARATOR = '$';
+    private static final int SALT_BYTES = 16;
+    private static final int PBKDF2_BYTES = 24;
+    private static final int SHA256_BYTES = 32;
+    private static final Base64.Encoder BASE64_ENCODER = Base64.getEncoder().withoutPadding();
+    private static final Base64.Decoder BASE64_DECODER = Base64.getDecoder();
+
+    private static final ThreadLocal<MessageDigest> SHA256_DIGEST = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+    private static final ThreadLocal<SecretKeyFactory> PBKDF2_FACTORY = ThreadLocal.withInitial(() -> {
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private static class Holder {
+        private static final CredentialService INSTANCE = new CredentialService(
+                System.getProperty("bank.credentials.scheme", PBKDF2),
+                Integer.getInteger("bank.credentials.iterations", 100_000));
+    }
+
+    private final String scheme;
+    private final int iterations;
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * This method creates service which makes new hashes with given scheme.
+     *
+     * @param scheme        PBKDF2 or SHA256
+     * @param iterations    number of iterations of PBKDF2
+     */
+    public CredentialService(String scheme, int iterations) {
+        if (!scheme.equals(PBKDF2) && !scheme.equals(SHA256)) {
+            throw new IllegalArgumentException("Unknown credential scheme: " + scheme);
+        }
+        if (iterations < 1) {
+            throw new IllegalArgumentException("Number of iterations must be positive");
+        }
+        this.scheme = scheme;
+        this.iterations = iterations;
+    }
+
+    /**
+     * This method returns service configured with system properties, shared by the whole program.
+     *
+     * @return      shared credential service
+     */
+    public static CredentialService getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * This method makes hash of given password/PIN in the configured format.
+     *
+     * @param secret        password/PIN we want to hash
+     * @return              hash which can be stored in the data files
+     */
+    public String hash(String secret) {
+        BankEvents.HashEvent event = new BankEvents.HashEvent();
+        event.begin();
+        String hash;
+        if (scheme.equals(PBKDF2)) {
+            byte[] salt = new byte[SALT_BYTES];
+            random.nextBytes(salt);
+            hash = PBKDF2 + SEPARATOR + iterations + SEPARATOR + BASE64_ENCODER.encodeToString(salt)
+                    + SEPARATOR + BASE64_ENCODER.encodeToString(pbkdf2(secret, salt, iterations, PBKDF2_BYTES));
+        } else {
+            hash = SHA256 + SEPARATOR + toHex(sha256(secret.getBytes(StandardCharsets.UTF_8)));
+        }
+        commit(event, scheme, secret);
+        return hash;
+    }
+
+    /**
+     * This method checks if password/PIN matches stored hash in any of the known formats.
+     *
+     * @param secret        password/PIN entered by the user
+     * @param storedHash    hash read from the data files
+     * @return              true if password/PIN is correct
+     */
+    public boolean verify(String secret, String storedHash) {
+        if (storedHash == null) {
+            return false;
+        }
+        BankEvents.HashEvent event = new BankEvents.HashEvent();
+        event.begin();
+        String format;
+        boolean valid;
+        try {
+            if (storedHash.startsWith(PBKDF2 + SEPARATOR)) {
+                format = PBKDF2;
+                String[] parts = storedHash.split("\\$");
+                if (parts.length != 4) {
+                    return false;
+                }
+                byte[] salt = BASE64_DECODER.decode(parts[2]);
+                byte[] expected = BASE64_DECODER.decode(parts[3]);
+                valid = MessageDigest.isEqual(expected, pbkdf2(secret, salt, Integer.parseInt(parts[1]), expected.length));
+            } else if (storedHash.startsWith(SHA256 + SEPARATOR)) {
+                format = SHA256;
+                byte[] expected = fromHex(storedHash, SHA256.length() + 1);
+                valid = MessageDigest.isEqual(expected, sha256(secret.getBytes(StandardCharsets.UTF_8)));
+            } else {
+                format = "legacy";
+                valid = MessageDigest.isEqual(storedHash.getBytes(StandardCharsets.US_ASCII),
+                        legacyHash(secret).getBytes(StandardCharsets.US_ASCII));
+            }
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        commit(event, format, secret);
+        return valid;
+    }
+
+    /**
+     * This method makes hash the way older versions did: SHA-256 of bytes in the default charset
+     * written as hex digits without leading zeros. It is only used to verify hashes from old files.
+     *
+     * @param secret        password/PIN
+     * @return              legacy hash
+     */
+    static String legacyHash(String secret) {
+        byte[] digest = sha256(secret.getBytes());
+        StringBuilder hexString = new StringBuilder(2 * SHA256_BYTES);
+        for (byte b : digest) {
+            hexString.append(Integer.toHexString(0xFF & b));
+        }
+        return hexString.toString();
+    }
+
+    private static byte[] sha256(byte[] bytes) {
+        MessageDigest md = SHA256_DIGEST.get();
+        md.reset();
+        return md.digest(bytes);
+    }
+
+    private static byte[] pbkdf2(String secret, byte[] salt, int iterations, int length) {
+        PBEKeySpec spec = new PBEKeySpec(secret.toCharArray(), salt, iterations, length * 8);
+        try {
+            return PBKDF2_FACTORY.get().generateSecret(spec).getEncoded();
+        } catch (InvalidKeySpecException e) {
+            throw new IllegalArgumentException(e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    private static void commit(BankEvents.HashEvent event, String format, String secret) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.operationID = BankEvents.currentOperationID();
+            event.scheme = format;
+            event.inputLength = secret.length();
+            event.commit();
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    private static byte[] fromHex(String text, int start) {
+        if (text.length() - start != SHA256_BYTES * 2) {
+            throw new IllegalArgumentException("Invalid hash length");
+        }
+        byte[] bytes = new byte[SHA256_BYTES];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(text.charAt(start + 2 * i), 16);
+            int low = Character.digit(text.charAt(start + 2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new IllegalArgumentException("Invalid hex digit");
+            }
+            bytes[i] = (byte) (high << 4 | low);
+        }
+        return bytes;
+    }
+}
@@ -1,6 +1,6 @@
 public class Customer extends PersonalData {
 
-    private int customerID;
+    private long customerID;
     private String password;
     private String role;
 
@@ -17,7 +17,7 @@ public class Customer extends PersonalData {
                 '}';
     }
 
-    public Customer(int customerID, String name, String surname, String sex, long phoneNumber, String password, String role) {
+    public Customer(long customerID, String name, String surname, String sex, long phoneNumber, String password, String role) {
         super(name, surname, sex, phoneNumber);
         this.customerID = customerID;
         this.password = password;
@@ -28,7 +28,7 @@ public class Customer extends PersonalData {
         super();
     }
 
-    public int getCustomerID() {
+    public long getCustomerID() {
         return customerID;
     }
 
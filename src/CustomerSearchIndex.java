@@ -0,0 +1,114 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * In-memory search indexes over personal data of customers, used by admins to find customers
+ * and by newCustomer() to check if a phone number is already registered:
+ * <pre>
+ * bySurname    sorted map "surname \0 name \0 customerID" -> customer    surname prefix, or surname + name prefix
+ * byName       sorted map "name \0 surname \0 customerID" -> customer    name prefix
+ * byPhone      hash map phone number -> customers                         phone number
+ * </pre>
+ * Keys are lower case, so search ignores case. A prefix search is a range of a sorted map: its iterator
+ * finds the first match in O(log n) and then every next match in constant time, so a page of results
+ * costs time proportional to the page, not to the number of customers. Maps are concurrent and their
+ * iterators weakly consistent, so customers added during a search do not break it.
+ *
+ * The index is built by CSVReader on the first search and kept up to date when customers are added.
+ */
+public class CustomerSearchIndex {
+
+    private static final char SEPARATOR = '\0';
+
+    private final ConcurrentSkipListMap<String, Customer> bySurname = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<String, Customer> byName = new ConcurrentSkipListMap<>();
+    private final ConcurrentHashMap<Long, List<Customer>> byPhone = new ConcurrentHashMap<>();
+
+    /**
+     * This method creates index of given customers.
+     *
+     * @param customers     customers to index
+     */
+    public CustomerSearchIndex(Collection<Customer> customers) {
+        for (Customer customer : customers) {
+            add(customer);
+        }
+    }
+
+    /**
+     * This method adds new customer to all indexes.
+     *
+     * @param customer      customer to add
+     */
+    public void add(Customer customer) {
+        String name = normalize(customer.getName());
+        String surname = normalize(customer.getSurname());
+        bySurname.put(surname + SEPARATOR + name + SEPARATOR + customer.getCustomerID(), customer);
+        byName.put(name + SEPARATOR + surname + SEPARATOR + customer.getCustomerID(), customer);
+        byPhone.compute(customer.getPhoneNumber(), (phone, list) -> {
+            if (list == null) {
+                return Collections.singletonList(customer);
+            }
+            ArrayList<Customer> more = new ArrayList<>(list.size() + 1);
+            more.addAll(list);
+            more.add(customer);
+            return more;
+        });
+    }
+
+    /**
+     * This method finds customers whose surname starts with given text, sorted by surname and name.
+     * Results are found lazily while the iterator is read.
+     *
+     * @param prefix        beginning of the surname
+     * @return              iterator over matching customers
+     */
+    public Iterator<Customer> searchBySurname(String prefix) {
+        return range(bySurname, normalize(prefix));
+    }
+
+    /**
+     * This method finds customers with given surname whose name starts with given text, sorted by name.
+     *
+     * @param surname       whole surname
+     * @param namePrefix    beginning of the name
+     * @return              iterator over matching customers
+     */
+    public Iterator<Customer> searchBySurnameAndName(String surname, String namePrefix) {
+        return range(bySurname, normalize(surname) + SEPARATOR + normalize(namePrefix));
+    }
+
+    /**
+     * This method finds customers whose name starts with given text, sorted by name and surname.
+     *
+     * @param prefix        beginning of the name
+     * @return              iterator over matching customers
+     */
+    public Iterator<Customer> searchByName(String prefix) {
+        return range(byName, normalize(prefix));
+    }
+
+    /**
+     * This method finds customers with given phone number.
+     *
+     * @param phoneNumber   phone number
+     * @return              customers with this number, empty list if there are none
+     */
+    public List<Customer> findByPhone(long phoneNumber) {
+        return byPhone.getOrDefault(phoneNumber, Collections.emptyList());
+    }
+
+    private static Iterator<Customer> range(ConcurrentSkipListMap<String, Customer> index, String prefix) {
+        return index.subMap(prefix, true, prefix + Character.MAX_VALUE, false).values().iterator();
+    }
+
+    private static String normalize(String text) {
+        return text.trim().toLowerCase(Locale.ROOT);
+    }
+}
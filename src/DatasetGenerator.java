@@ -0,0 +1,262 @@
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.SplittableRandom;
+
+/**
+ * Generator of synthetic customers.csv and accounts.csv files in the same format as the files
+ * written by CSVReader. It is used by benchmarks and load tests, so they do not need real data.
+ *
+ * Customers get consecutive IDs starting at FIRST_CUSTOMER_ID and accounts consecutive IDs starting
+ * at FIRST_ACCOUNT_ID. Accounts are given to customers in turns, so with the same number of rows
+ * every customer has exactly one account. The first customer is an admin. Every customer has
+ * password "Password1" and every account has PIN "1234", so generated data can be logged into.
+ * The same seed always gives the same files. Hashes are made once with the configured credential
+ * scheme, so -Dbank.credentials.scheme=sha256 gives data with cheap logins.
+ *
+ * Balances are log-normal like real ones: most accounts hold a few thousand, a few hold millions.
+ * Rows are written one by one, so files of 100M rows need no more memory than files of 100 rows.
+ *
+ * When a number of operations is given, a workload for ScriptDriver is written to workload.txt too.
+ * Its sessions log into accounts picked with Zipf's law, so a few hot accounts get most of the
+ * operations, like in a real bank (see writeWorkload()).
+ *
+ * Usage: {@code java DatasetGenerator customers accounts [seed] [directory] [operations]}
+ */
+public class DatasetGenerator {
+
+    public static final int FIRST_CUSTOMER_ID = 1_000_000;
+    public static final int FIRST_ACCOUNT_ID = 20_000_000;
+    public static final String PASSWORD = "Password1";
+    public static final String PIN = "1234";
+
+    private static final String SEPARATOR = ", ";
+    private static final String[] NAMES = {"Jan", "Anna", "Piotr", "Maria", "Kuba", "Ewa", "Tomasz", "Zofia", "Adam", "Kasia"};
+    private static final String[] SURNAMES = {"Kowalski", "Nowak", "Wisniewski", "Wojcik", "Kaminski", "Lewandowski", "Zielinski", "Szymanski", "Belic", "Dabrowski"};
+    private static final long MAX_BALANCE_CENTS = 10_000_000_00L;
+    private static final double MEDIAN_BALANCE_CENTS = 2_000_00;
+    private static final double BALANCE_SIGMA = 1.5;
+    private static final double MEDIAN_AMOUNT_CENTS = 50_00;
+    private static final double AMOUNT_SIGMA = 1.0;
+    private static final long ACCOUNT_STRIDE = 1_000_003;
+
+    private final long seed;
+    private final String passwordHash;
+    private final String PINHash;
+
+    public DatasetGenerator(long seed) {
+        this.seed = seed;
+        CredentialService credentials = CredentialService.getInstance();
+        this.passwordHash = credentials.hash(PASSWORD);
+        this.PINHash = credentials.hash(PIN);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: java DatasetGenerator <customers> <accounts> [seed] [directory] [operations]");
+            return;
+        }
+        int customers = Integer.parseInt(args[0]);
+        int accounts = Integer.parseInt(args[1]);
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+        Path directory = Paths.get(args.length > 3 ? args[3] : ".");
+        long start = System.nanoTime();
+        DatasetGenerator generator = new DatasetGenerator(seed);
+        generator.writeCustomers(directory.resolve("customers.csv"), customers);
+        generator.writeAccounts(directory.resolve("accounts.csv"), accounts, customers);
+        if (args.length > 4) {
+            generator.writeWorkload(directory.resolve("workload.txt"), Long.parseLong(args[4]), accounts,
+                    Integer.getInteger("bank.workload.sessionLength", 50), Double.parseDouble(System.getProperty("bank.workload.zipf", "0.99")));
+        }
+        System.out.println("Generated " + customers + " customers and " + accounts + " accounts in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms.");
+    }
+
+    /**
+     * This method writes given number of customers to the file.
+     *
+     * @param path          file we write to
+     * @param customers     number of customers
+     * @throws IOException
+     */
+    public void writeCustomers(Path path, int customers) throws IOException {
+        SplittableRandom random = new SplittableRandom(seed);
+        try (BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(path.toFile()), StandardCharsets.UTF_8), 1 << 16)) {
+            StringBuilder sbf = new StringBuilder(160);
+            for (int i = 0; i < customers; i++) {
+                int name = random.nextInt(NAMES.length);
+                sbf.setLength(0);
+                sbf.append(FIRST_CUSTOMER_ID + i)
+                        .append(SEPARATOR)
+                        .append(NAMES[name])
+                        .append(SEPARATOR)
+                        .append(SURNAMES[random.nextInt(SURNAMES.length)])
+                        .append(SEPARATOR)
+                        .append(name % 2 == 0 ? "M" : "K")
+                        .append(SEPARATOR)
+                        .append(random.nextInt(100_000_001, 999_999_999))
+                        .append(SEPARATOR)
+                        .append(passwordHash)
+                        .append(SEPARATOR)
+                        .append(i == 0 ? "admin" : "customer");
+                bw.append(sbf);
+                bw.newLine();
+            }
+        }
+    }
+
+    /**
+     * This method writes given number of accounts to the file. Account number i belongs to
+     * customer number i modulo number of customers.
+     *
+     * @param path          file we write to
+     * @param accounts      number of accounts
+     * @param customers     number of customers the accounts are given to
+     * @throws IOException
+     */
+    public void writeAccounts(Path path, int accounts, int customers) throws IOException {
+        SplittableRandom random = new SplittableRandom(seed + 1);
+        try (BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(path.toFile()), StandardCharsets.UTF_8), 1 << 16)) {
+            StringBuilder sbf = new StringBuilder(128);
+            for (int i = 0; i < accounts; i++) {
+                sbf.setLength(0);
+                sbf.append(FIRST_CUSTOMER_ID + i % Math.max(1, customers))
+                        .append(SEPARATOR)
+                        .append(FIRST_ACCOUNT_ID + i)
+                        .append(SEPARATOR);
+                Money.appendTo(sbf, logNormal(random, MEDIAN_BALANCE_CENTS, BALANCE_SIGMA, MAX_BALANCE_CENTS))
+                        .append(SEPARATOR)
+                        .append(PINHash);
+                bw.append(sbf);
+                bw.newLine();
+            }
+        }
+    }
+
+    /**
+     * This method writes script of operations for ScriptDriver. Every session logs into an account with its PIN,
+     * runs sessionLength operations and logs out. Operations are 40% deposits, 30% withdrawals, 20% transfers
+     * and 10% balance checks, with log-normal amounts around 50.00.
+     *
+     * Accounts of sessions and receivers of transfers are picked with Zipf's law: the k-th most active account
+     * gets operations in proportion to 1/k^zipfExponent. Ranks are spread over the accounts with a stride,
+     * so hot accounts are not neighbours in the file. The same seed always gives the same workload.
+     *
+     * @param path              file we write to
+     * @param operations        number of operations, logins and logouts not included
+     * @param accounts          number of accounts written by writeAccounts()
+     * @param sessionLength     operations of one session
+     * @param zipfExponent      skew of activity, 0 gives all accounts the same chance, 0.99 is typical
+     * @throws IOException
+     */
+    public void writeWorkload(Path path, long operations, int accounts, int sessionLength, double zipfExponent) throws IOException {
+        SplittableRandom random = new SplittableRandom(seed + 2);
+        ZipfSampler hotAccounts = new ZipfSampler(accounts, zipfExponent);
+        long stride = gcd(ACCOUNT_STRIDE, accounts) == 1 ? ACCOUNT_STRIDE : 1;
+        try (BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(path.toFile()), StandardCharsets.UTF_8), 1 << 16)) {
+            StringBuilder sbf = new StringBuilder(64);
+            long written = 0;
+            while (written < operations) {
+                long accountID = FIRST_ACCOUNT_ID + (hotAccounts.sample(random) - 1) * stride % accounts;
+                sbf.setLength(0);
+                sbf.append("login-account ").append(accountID).append(' ').append(PIN).append('\n');
+                for (int i = 0; i < sessionLength && written < operations; i++, written++) {
+                    int kind = random.nextInt(10);
+                    if (kind < 4) {
+                        sbf.append("deposit ");
+                    } else if (kind < 7) {
+                        sbf.append("withdraw ");
+                    } else if (kind < 9) {
+                        long otherID = FIRST_ACCOUNT_ID + (hotAccounts.sample(random) - 1) * stride % accounts;
+                        if (otherID == accountID) {
+                            otherID = FIRST_ACCOUNT_ID + (otherID - FIRST_ACCOUNT_ID + 1) % accounts;
+                        }
+                        sbf.append("transfer ").append(otherID).append(' ');
+                    } else {
+                        sbf.append("balance\n");
+                        continue;
+                    }
+                    Money.appendTo(sbf, Math.max(1, logNormal(random, MEDIAN_AMOUNT_CENTS, AMOUNT_SIGMA, MAX_BALANCE_CENTS))).append('\n');
+                }
+                sbf.append("logout\n");
+                bw.append(sbf);
+            }
+        }
+    }
+
+    private static long logNormal(SplittableRandom random, double median, double sigma, long max) {
+        return Math.min(max, Math.round(median * Math.exp(sigma * random.nextGaussian())));
+    }
+
+    private static long gcd(long a, long b) {
+        return b == 0 ? a : gcd(b, a % b);
+    }
+
+    /**
+     * Sampler of ranks 1..n with probability proportional to 1/k^exponent. It uses rejection-inversion
+     * (Hoermann and Derflinger), so a sample takes constant time and no table of n probabilities is needed,
+     * even for 100M accounts.
+     */
+    static class ZipfSampler {
+
+        private final int n;
+        private final double exponent;
+        private final double hIntegralX1;
+        private final double hIntegralN;
+        private final double s;
+
+        ZipfSampler(int n, double exponent) {
+            if (n < 1 || exponent < 0) {
+                throw new IllegalArgumentException("Zipf sampler needs n >= 1 and exponent >= 0");
+            }
+            this.n = n;
+            this.exponent = exponent;
+            this.hIntegralX1 = hIntegral(1.5) - 1;
+            this.hIntegralN = hIntegral(n + 0.5);
+            this.s = 2 - hIntegralInverse(hIntegral(2.5) - h(2));
+        }
+
+        /**
+         * This method returns random rank, 1 being the most frequent one.
+         *
+         * @param random    source of randomness
+         * @return          rank in range 1..n
+         */
+        long sample(SplittableRandom random) {
+            while (true) {
+                double u = hIntegralN + random.nextDouble() * (hIntegralX1 - hIntegralN);
+                double x = hIntegralInverse(u);
+                long k = Math.max(1, Math.min(n, (long) (x + 0.5)));
+                if (k - x <= s || u >= hIntegral(k + 0.5) - h(k)) {
+                    return k;
+                }
+            }
+        }
+
+        private double h(double x) {
+            return Math.exp(-exponent * Math.log(x));
+        }
+
+        private double hIntegral(double x) {
+            double logX = Math.log(x);
+            return helper2((1 - exponent) * logX) * logX;
+        }
+
+        private double hIntegralInverse(double x) {
+            double t = Math.max(-1, x * (1 - exponent));
+            return Math.exp(helper1(t) * x);
+        }
+
+        private static double helper1(double x) {
+            return Math.abs(x) > 1e-8 ? Math.log1p(x) / x : 1 - x * (0.5 - x * (1.0 / 3 - 0.25 * x));
+        }
+
+        private static double helper2(double x) {
+            return Math.abs(x) > 1e-8 ? Math.expm1(x) / x : 1 + x * 0.5 * (1 + x * (1.0 / 3) * (1 + 0.25 * x));
+        }
+    }
+}
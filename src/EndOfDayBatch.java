@@ -0,0 +1,524 @@
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+/**
+ * End-of-day batch job which accrues one day of interest to every account and charges the monthly
+ * maintenance fee on the last day of the month. Settings (system properties):
+ * <pre>
+ * bank.batch.rates            annual interest rate in percent (0), or tiers "from:rate,...", e.g. 0:0.50,10000:1.25
+ * bank.batch.dayCount         days of the year interest is divided by (365)
+ * bank.batch.monthlyFee       maintenance fee charged on the last day of the month (0.00)
+ * bank.batch.feeWaiverBalance balance from which the fee is not charged (no waiver)
+ * bank.batch.partitions       number of partitions processed in parallel (4 per processor)
+ * bank.batch.dir              directory of batch runs (batch)
+ * </pre>
+ * The whole balance earns the rate of the highest tier it reaches. Interest of one day is
+ * balance * rate / 100 / dayCount, computed exactly in integer cents and rounded half to even (banker's rounding),
+ * so no money appears or disappears through floating point. The fee is charged after interest and never
+ * makes a balance negative.
+ *
+ * Accounts are split into partitions by a hash of accountID and partitions run in parallel. Every run of a
+ * business date has its own directory, e.g. batch/eod-2026-10-17, with the plan (settings of the run) and
+ * one file per partition:
+ * <pre>
+ * partition-0007.pending   accountID, balance before, interest, fee, balance after of every changed account
+ * partition-0007.csv       the same file after all its changes are applied and on disk
+ * </pre>
+ * A partition first writes all its changes to the pending file (fsync and atomic rename), then applies them
+ * through recordBalanceChange() and the transaction ledger and makes them durable once for the whole partition,
+ * and only then renames the file to .csv. After a crash the run is simply started again for the same date:
+ * the plan is read back, finished partitions are skipped, and pending files are applied again row by row.
+ * A row is only applied when the balance still equals the balance before, a row whose balance already equals
+ * the balance after is counted as applied earlier, so nothing is ever applied twice. Any other balance is
+ * reported as a conflict and left alone. Running a finished date again changes nothing.
+ *
+ * The job is meant to run in the end-of-day window, when no other process changes the same files.
+ * At the end accounts.csv is written once, so the next start does not replay a journal record of every account.
+ *
+ * Usage: {@code java EndOfDayBatch [yyyy-MM-dd]} (today by default)
+ */
+public class EndOfDayBatch {
+
+    private static final String SEPARATOR = ", ";
+    private static final String PLAN_FILE = "plan.csv";
+    private static final String PENDING_SUFFIX = ".pending";
+    private static final String DONE_SUFFIX = ".csv";
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int MAX_RATE_SCALE = 12;
+    private static final LatencyHistogram PARTITION_LATENCY = Metrics.histogram("batch.partition");
+
+    private final CSVReader csvReader = CSVReader.getInstance();
+    private final LocalDate date;
+    private final Path directory;
+    private Plan plan;
+
+    private final LongAdder applied = new LongAdder();
+    private final LongAdder appliedEarlier = new LongAdder();
+    private final LongAdder conflicts = new LongAdder();
+    private final LongAdder totalInterest = new LongAdder();
+    private final LongAdder totalFees = new LongAdder();
+    private final LongAdder finishedEarlier = new LongAdder();
+    private final LongAdder recovered = new LongAdder();
+
+    /**
+     * Interest rate which applies to balances from a given amount up.
+     * Interest of a balance is balance * numerator / denominator.
+     */
+    private static class Tier {
+        final long from;
+        final BigDecimal rate;
+        final long numerator;
+        final long denominator;
+
+        Tier(long from, BigDecimal rate, int dayCount) {
+            if (rate.signum() < 0) {
+                throw new IllegalArgumentException("Interest rate must not be negative: " + rate.toPlainString());
+            }
+            BigDecimal exact = rate.stripTrailingZeros();
+            if (exact.scale() < 0) {
+                exact = exact.setScale(0);
+            }
+            if (exact.scale() > MAX_RATE_SCALE) {
+                throw new IllegalArgumentException("Interest rate has too many decimal places: " + rate.toPlainString());
+            }
+            this.from = from;
+            this.rate = rate;
+            this.numerator = exact.unscaledValue().longValueExact();
+            this.denominator = Math.multiplyExact(100L * dayCount, BigDecimal.TEN.pow(exact.scale()).longValueExact());
+        }
+    }
+
+    /**
+     * Settings of one run. They are saved with the run, so a restarted run uses the same partitions
+     * and rates even if the system properties have changed.
+     */
+    private static class Plan {
+        int partitions;
+        int dayCount;
+        long monthlyFee;
+        long feeWaiverBalance = Long.MAX_VALUE;
+        final ArrayList<Tier> tiers = new ArrayList<>();
+
+        static Plan fromProperties() {
+            Plan plan = new Plan();
+            plan.partitions = Math.max(1, Integer.getInteger("bank.batch.partitions", 4 * Runtime.getRuntime().availableProcessors()));
+            plan.dayCount = Integer.getInteger("bank.batch.dayCount", 365);
+            if (plan.dayCount <= 0) {
+                throw new IllegalArgumentException("bank.batch.dayCount must be positive");
+            }
+            plan.monthlyFee = Money.parse(System.getProperty("bank.batch.monthlyFee", "0.00"));
+            String waiver = System.getProperty("bank.batch.feeWaiverBalance");
+            if (waiver != null) {
+                plan.feeWaiverBalance = Money.parse(waiver);
+            }
+            for (String tier : System.getProperty("bank.batch.rates", "0").split(",")) {
+                int colon = tier.indexOf(':');
+                long from = colon < 0 ? 0 : Money.parse(tier.substring(0, colon).trim());
+                plan.addTier(from, new BigDecimal(tier.substring(colon + 1).trim()));
+            }
+            return plan;
+        }
+
+        static Plan read(Path file) throws IOException {
+            Plan plan = new Plan();
+            ArrayList<String[]> tiers = new ArrayList<>();
+            int malformed = CSVParser.parse(file, parser -> {
+                String name = parser.stringField(0);
+                if (name.equals("partitions")) {
+                    plan.partitions = (int) parser.longField(1);
+                } else if (name.equals("dayCount")) {
+                    plan.dayCount = (int) parser.longField(1);
+                } else if (name.equals("monthlyFee")) {
+                    plan.monthlyFee = parser.centsField(1);
+                } else if (name.equals("feeWaiverBalance")) {
+                    plan.feeWaiverBalance = parser.stringField(1).equals("-") ? Long.MAX_VALUE : parser.centsField(1);
+                } else if (name.equals("rate")) {
+                    tiers.add(new String[] {parser.stringField(1), parser.stringField(2)});
+                } else {
+                    throw new CSVParser.CSVFormatException(file.toString(), parser.getLineNumber(), "unknown setting " + name);
+                }
+            });
+            if (malformed > 0 || plan.partitions <= 0 || plan.dayCount <= 0) {
+                throw new IOException("Plan of the batch run " + file + " is damaged");
+            }
+            for (String[] tier : tiers) {
+                plan.addTier(Money.parse(tier[0]), new BigDecimal(tier[1]));
+            }
+            return plan;
+        }
+
+        void write(Path file) throws IOException {
+            ArrayList<String> lines = new ArrayList<>();
+            lines.add("partitions" + SEPARATOR + partitions);
+            lines.add("dayCount" + SEPARATOR + dayCount);
+            lines.add("monthlyFee" + SEPARATOR + Money.toString(monthlyFee));
+            lines.add("feeWaiverBalance" + SEPARATOR + (feeWaiverBalance == Long.MAX_VALUE ? "-" : Money.toString(feeWaiverBalance)));
+            for (Tier tier : tiers) {
+                lines.add("rate" + SEPARATOR + Money.toString(tier.from) + SEPARATOR + tier.rate.toPlainString());
+            }
+            writeAtomically(file, out -> {
+                for (String line : lines) {
+                    out.write(line);
+                    out.newLine();
+                }
+            });
+        }
+
+        private void addTier(long from, BigDecimal rate) {
+            tiers.add(new Tier(from, rate, dayCount));
+            tiers.sort((first, second) -> Long.compare(first.from, second.from));
+        }
+
+        /**
+         * This method returns interest of one day, rounded half to even.
+         *
+         * @param balance       balance in cents, not negative
+         * @return              interest in cents
+         */
+        long interest(long balance) {
+            Tier chosen = null;
+            for (Tier tier : tiers) {
+                if (tier.from <= balance) {
+                    chosen = tier;
+                }
+            }
+            if (chosen == null || chosen.numerator == 0 || balance <= 0) {
+                return 0;
+            }
+            try {
+                return divideHalfEven(Math.multiplyExact(balance, chosen.numerator), chosen.denominator);
+            } catch (ArithmeticException e) {
+                return BigDecimal.valueOf(balance).multiply(BigDecimal.valueOf(chosen.numerator))
+                        .divide(BigDecimal.valueOf(chosen.denominator), 0, RoundingMode.HALF_EVEN).longValueExact();
+            }
+        }
+
+        /**
+         * This method returns the fee charged from a balance which already includes interest.
+         */
+        long fee(long balance, boolean lastDayOfMonth) {
+            if (!lastDayOfMonth || balance >= feeWaiverBalance) {
+                return 0;
+            }
+            return Math.max(0, Math.min(monthlyFee, balance));
+        }
+    }
+
+    /**
+     * Changes of balances of one partition, kept in primitive arrays.
+     */
+    private static class Changes {
+        long[] accountIDs = new long[1024];
+        long[] before = new long[1024];
+        long[] interest = new long[1024];
+        long[] fees = new long[1024];
+        int size;
+
+        void add(long accountID, long balanceBefore, long accountInterest, long fee) {
+            if (size == accountIDs.length) {
+                int capacity = size * 2;
+                accountIDs = Arrays.copyOf(accountIDs, capacity);
+                before = Arrays.copyOf(before, capacity);
+                interest = Arrays.copyOf(interest, capacity);
+                fees = Arrays.copyOf(fees, capacity);
+            }
+            accountIDs[size] = accountID;
+            before[size] = balanceBefore;
+            interest[size] = accountInterest;
+            fees[size] = fee;
+            size++;
+        }
+
+        long after(int i) {
+            return Money.subtract(Money.add(before[i], interest[i]), fees[i]);
+        }
+    }
+
+    /**
+     * Writer of the content of a file, used by writeAtomically().
+     */
+    private interface Content {
+        void writeTo(BufferedWriter out) throws IOException;
+    }
+
+    public static void main(String[] args) throws IOException {
+        LocalDate date;
+        try {
+            date = args.length > 0 ? LocalDate.parse(args[0]) : LocalDate.now();
+        } catch (DateTimeParseException e) {
+            System.out.println("Usage: java EndOfDayBatch [yyyy-MM-dd]");
+            return;
+        }
+        try {
+            new EndOfDayBatch(date).run();
+        } catch (IllegalArgumentException e) {
+            System.out.println("Batch was not started: " + e.getMessage());
+        }
+    }
+
+    public EndOfDayBatch(LocalDate date) {
+        this.date = date;
+        this.directory = Paths.get(System.getProperty("bank.batch.dir", "batch"), "eod-" + date);
+    }
+
+    /**
+     * This method runs the batch for its business date, or finishes a run which was interrupted.
+     *
+     * @throws IOException
+     */
+    public void run() throws IOException {
+        long start = System.nanoTime();
+        Path planFile = directory.resolve(PLAN_FILE);
+        if (Files.exists(planFile)) {
+            plan = Plan.read(planFile);
+            System.out.println("Continuing batch of " + date + " with its saved plan.");
+        } else {
+            plan = Plan.fromProperties();
+            Files.createDirectories(directory);
+            plan.write(planFile);
+        }
+
+        List<ArrayList<Account>> partitions = partition(plan.partitions);
+        try {
+            IntStream.range(0, plan.partitions).parallel().forEach(partition -> {
+                try {
+                    runPartition(partition, partitions.get(partition));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        if (applied.sum() > 0 && !BinaryAccountStore.isEnabled()) {
+            synchronized (csvReader) {
+                csvReader.writeAccountsToCSV(csvReader.getAccounts());
+            }
+        }
+        csvReader.drainPendingWrites();
+
+        System.out.println("End-of-day batch of " + date + " finished in " + (System.nanoTime() - start) / 1_000_000 + " ms on "
+                + plan.partitions + " partitions (" + finishedEarlier.sum() + " finished earlier, " + recovered.sum() + " recovered).");
+        System.out.println("Changed " + applied.sum() + " accounts: interest " + Money.toString(totalInterest.sum())
+                + ", fees " + Money.toString(totalFees.sum()) + ". Applied earlier: " + appliedEarlier.sum()
+                + ", conflicts: " + conflicts.sum() + ". Results: " + directory);
+    }
+
+    /**
+     * This method splits accounts into partitions by a hash of accountID, so an account
+     * always falls into the same partition while the number of partitions stays the same.
+     */
+    private List<ArrayList<Account>> partition(int count) {
+        Account[] accounts;
+        synchronized (csvReader) {
+            accounts = csvReader.getAccounts().toArray(new Account[0]);
+        }
+        ArrayList<ArrayList<Account>> partitions = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            partitions.add(new ArrayList<>(accounts.length / count + 16));
+        }
+        for (Account account : accounts) {
+            partitions.get(partitionOf(account.getAccountID(), count)).add(account);
+        }
+        return partitions;
+    }
+
+    static int partitionOf(long accountID, int count) {
+        return (int) (((accountID * 0x9E3779B97F4A7C15L) >>> 33) % count);
+    }
+
+    private void runPartition(int partition, ArrayList<Account> accounts) throws IOException {
+        Path done = directory.resolve(String.format("partition-%04d%s", partition, DONE_SUFFIX));
+        if (Files.exists(done)) {
+            finishedEarlier.increment();
+            return;
+        }
+        long start = System.nanoTime();
+        Path pending = directory.resolve(String.format("partition-%04d%s", partition, PENDING_SUFFIX));
+        Changes changes;
+        if (Files.exists(pending)) {
+            changes = readChanges(pending);
+            recovered.increment();
+        } else {
+            changes = compute(accounts);
+            writeChanges(changes, pending);
+        }
+        apply(changes);
+        csvReader.drainPendingWrites();
+        Files.move(pending, done, StandardCopyOption.ATOMIC_MOVE);
+        PARTITION_LATENCY.recordSince(start);
+    }
+
+    private Changes compute(ArrayList<Account> accounts) {
+        boolean lastDayOfMonth = date.getDayOfMonth() == date.lengthOfMonth();
+        Changes changes = new Changes();
+        for (Account account : accounts) {
+            long balance;
+            AccountLocks.lock(account.getAccountID());
+            try {
+                balance = account.getBalance();
+            } finally {
+                AccountLocks.unlock(account.getAccountID());
+            }
+            long interest = plan.interest(balance);
+            long fee = plan.fee(Money.add(balance, interest), lastDayOfMonth);
+            if (interest != 0 || fee != 0) {
+                changes.add(account.getAccountID(), balance, interest, fee);
+            }
+        }
+        return changes;
+    }
+
+    private void writeChanges(Changes changes, Path file) throws IOException {
+        writeAtomically(file, out -> {
+            StringBuilder sb = new StringBuilder(128);
+            for (int i = 0; i < changes.size; i++) {
+                sb.setLength(0);
+                sb.append(changes.accountIDs[i]).append(SEPARATOR);
+                Money.appendTo(sb, changes.before[i]).append(SEPARATOR);
+                Money.appendTo(sb, changes.interest[i]).append(SEPARATOR);
+                Money.appendTo(sb, changes.fees[i]).append(SEPARATOR);
+                Money.appendTo(sb, changes.after(i)).append(System.lineSeparator());
+                out.append(sb);
+            }
+        });
+    }
+
+    private static Changes readChanges(Path file) throws IOException {
+        Changes changes = new Changes();
+        int malformed = CSVParser.parse(file, parser -> {
+            parser.expectFields(5);
+            changes.add(parser.longField(0), parser.centsField(1), parser.centsField(2), parser.centsField(3));
+        });
+        if (malformed > 0) {
+            throw new IOException("Pending changes " + file + " are damaged, " + malformed + " rows could not be read");
+        }
+        return changes;
+    }
+
+    /**
+     * This method applies changes of one partition. A change is applied only if the account still has
+     * the balance it was computed from, which makes applying the same changes again harmless.
+     */
+    private void apply(Changes changes) throws IOException {
+        TransactionLedger ledger = TransactionLedger.getInstance();
+        for (int i = 0; i < changes.size; i++) {
+            long accountID = changes.accountIDs[i];
+            long after = changes.after(i);
+            AccountLocks.lock(accountID);
+            try {
+                Account account = csvReader.getAccountFromGivenAccountID(accountID);
+                if (account == null) {
+                    conflict(accountID, "account was removed");
+                    continue;
+                }
+                long balance = account.getBalance();
+                if (balance == after) {
+                    appendMissingRecords(ledger, changes, i);
+                    appliedEarlier.increment();
+                    continue;
+                }
+                if (balance != changes.before[i]) {
+                    conflict(accountID, "balance is " + Money.toString(balance) + ", expected " + Money.toString(changes.before[i]));
+                    continue;
+                }
+                account.setBalance(after);
+                try {
+                    csvReader.recordBalanceChange(account, after - changes.before[i]);
+                } catch (IOException e) {
+                    // the balance must not look applied to a later run when it never reached the journal;
+                    // once it has, missing ledger records are written by appendMissingRecords()
+                    csvReader.restoreBalance(account, changes.before[i], e);
+                    throw e;
+                }
+                if (changes.interest[i] != 0) {
+                    ledger.append(accountID, TransactionLedger.Type.INTEREST, changes.interest[i], 0, changes.before[i] + changes.interest[i]);
+                }
+                if (changes.fees[i] != 0) {
+                    ledger.append(accountID, TransactionLedger.Type.FEE, -changes.fees[i], 0, after);
+                }
+            } finally {
+                AccountLocks.unlock(accountID);
+            }
+            applied.increment();
+            totalInterest.add(changes.interest[i]);
+            totalFees.add(changes.fees[i]);
+        }
+    }
+
+    /**
+     * This method writes ledger records of a change which reached the journal before a crash
+     * while its ledger records did not.
+     */
+    private static void appendMissingRecords(TransactionLedger ledger, Changes changes, int i) throws IOException {
+        long accountID = changes.accountIDs[i];
+        long afterInterest = changes.before[i] + changes.interest[i];
+        List<TransactionLedger.Entry> last = ledger.last(accountID, 1);
+        TransactionLedger.Type lastType = last.isEmpty() ? null : last.get(0).getType();
+        long lastBalance = last.isEmpty() ? 0 : last.get(0).getBalance();
+        boolean hasInterest = changes.interest[i] == 0
+                || (lastType == TransactionLedger.Type.INTEREST && lastBalance == afterInterest)
+                || (lastType == TransactionLedger.Type.FEE && lastBalance == changes.after(i));
+        boolean hasFee = changes.fees[i] == 0 || (lastType == TransactionLedger.Type.FEE && lastBalance == changes.after(i));
+        if (!hasInterest) {
+            ledger.append(accountID, TransactionLedger.Type.INTEREST, changes.interest[i], 0, afterInterest);
+        }
+        if (!hasFee) {
+            ledger.append(accountID, TransactionLedger.Type.FEE, -changes.fees[i], 0, changes.after(i));
+        }
+    }
+
+    private void conflict(long accountID, String reason) {
+        conflicts.increment();
+        System.out.println("Account " + accountID + " was skipped by the batch of " + date + ": " + reason);
+    }
+
+    /**
+     * This method writes a file under a temporary name, forces it to disk and renames it,
+     * so the file either does not exist or is complete.
+     */
+    private static void writeAtomically(Path file, Content content) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            FileOutputStream fos = new FileOutputStream(temporary.toFile());
+            try (BufferedWriter out = new BufferedWriter(new OutputStreamWriter(fos, StandardCharsets.UTF_8), BUFFER_SIZE)) {
+                content.writeTo(out);
+                out.flush();
+                fos.getFD().sync();
+            }
+            Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * This method divides two non-negative numbers and rounds half to even.
+     */
+    static long divideHalfEven(long dividend, long divisor) {
+        long quotient = dividend / divisor;
+        long remainder = dividend % divisor;
+        long rest = divisor - remainder;
+        if (remainder > rest || (remainder == rest && (quotient & 1) != 0)) {
+            quotient++;
+        }
+        return quotient;
+    }
+}
@@ -0,0 +1,80 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free generator of unique, time-ordered 64-bit IDs for customers and accounts.
+ * Every ID is built from three parts:
+ * <pre>
+ * | 41 bits: milliseconds since EPOCH | 10 bits: node | 12 bits: sequence |
+ * </pre>
+ * so one node can create 4096 IDs per millisecond and up to 1024 nodes (set with -Dbank.nodeId)
+ * can create IDs at the same time without talking to each other. IDs never repeat and always grow,
+ * even if the clock goes back: the generator then keeps counting from the last time it has seen.
+ *
+ * New IDs are always at least 2^22, so they cannot collide with the old 5-digit accountIDs and
+ * 6-digit customerIDs, which stay valid. IDs found in data files are passed to observe(),
+ * so after a restart the generator never goes below an ID which was already given out.
+ */
+public final class IdGenerator {
+
+    public static final long EPOCH = 1_704_067_200_000L; // 2024-01-01T00:00:00Z
+    private static final int NODE_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final long MAX_NODE = (1L << NODE_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+    private static final IdGenerator INSTANCE = new IdGenerator(Integer.getInteger("bank.nodeId", 0));
+
+    private final long node;
+
+    /**
+     * Time in milliseconds since EPOCH and sequence of the last ID, packed as (time << SEQUENCE_BITS) | sequence.
+     */
+    private final AtomicLong last = new AtomicLong();
+
+    public IdGenerator(int node) {
+        if (node < 0 || node > MAX_NODE) {
+            throw new IllegalArgumentException("Node ID must be in range 0-" + MAX_NODE);
+        }
+        this.node = node;
+    }
+
+    /**
+     * This method returns generator of the node set with -Dbank.nodeId, shared by the whole program.
+     *
+     * @return      shared ID generator
+     */
+    public static IdGenerator getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * This method creates new ID. If more than 4096 IDs are requested in one millisecond,
+     * the sequence overflows into the next millisecond, so IDs are still unique.
+     *
+     * @return      new ID, greater than every ID created or observed before by this generator
+     */
+    public long nextID() {
+        long now = Math.max(1, System.currentTimeMillis() - EPOCH) << SEQUENCE_BITS;
+        long previous;
+        long next;
+        do {
+            previous = last.get();
+            next = Math.max(now, previous + 1);
+        } while (!last.compareAndSet(previous, next));
+        return ((next >>> SEQUENCE_BITS) << (NODE_BITS + SEQUENCE_BITS)) | (node << SEQUENCE_BITS) | (next & SEQUENCE_MASK);
+    }
+
+    /**
+     * This method tells the generator about an ID which already exists, e.g. read from a data file.
+     * IDs created later by this node will be greater. Old short IDs are ignored.
+     *
+     * @param ID        existing ID
+     */
+    public void observe(long ID) {
+        if (ID >>> (NODE_BITS + SEQUENCE_BITS) == 0 || ((ID >>> SEQUENCE_BITS) & MAX_NODE) != node) {
+            return;
+        }
+        long packed = ((ID >>> (NODE_BITS + SEQUENCE_BITS)) << SEQUENCE_BITS) | (ID & SEQUENCE_MASK);
+        last.accumulateAndGet(packed, Math::max);
+    }
+}
@@ -0,0 +1,284 @@
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.LongFunction;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * Listing of customers or accounts for admins, written as csv rows with a header:
+ * <pre>
+ * customerID, accountID, balance
+ * 1000001, 20000001, 1520.33
+ * </pre>
+ * Rows are formatted into one reused StringBuilder and streamed through a large buffered writer,
+ * so even millions of rows need neither a String per row nor a println per row, and an export
+ * to a file never holds the listing in memory.
+ *
+ * A listing has chosen columns (all columns except secrets by default: password hashes and PINs
+ * are only written when asked for by name), filters which rows have to pass, and is read one page
+ * at a time. Rows are listed in the order of their IDs and the cursor of a page is the ID of the last
+ * row written, so deleting or adding rows never makes a later page skip or repeat a row.
+ * The first page takes a sorted snapshot of IDs from the index of the data store, which is iterated
+ * without its lock; later pages find their start in the snapshot with a binary search, so they cost time
+ * proportional to the rows they read. Rows deleted since the snapshot are skipped and rows added since
+ * (new IDs are always bigger) are picked up by a new snapshot when the old one is used up.
+ */
+public class Listing<T> {
+
+    private static final String SEPARATOR = ", ";
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Column of a listing which appends its value of the row to the builder.
+     */
+    private interface Column<T> {
+        void append(StringBuilder sb, T row);
+    }
+
+    private final Supplier<Collection<T>> rows;
+    private final ToLongFunction<T> idOf;
+    private final LongFunction<T> byID;
+    private final LinkedHashMap<String, Column<T>> allColumns = new LinkedHashMap<>();
+    private final ArrayList<String> secretColumns = new ArrayList<>();
+    private final ArrayList<String> columnNames = new ArrayList<>();
+    private final ArrayList<Column<T>> columns = new ArrayList<>();
+    private Predicate<T> filter = row -> true;
+    private long rowsWritten;
+    private long[] ids = new long[0];
+
+    private Listing(Supplier<Collection<T>> rows, ToLongFunction<T> idOf, LongFunction<T> byID) {
+        this.rows = rows;
+        this.idOf = idOf;
+        this.byID = byID;
+    }
+
+    /**
+     * This method creates listing of customers with columns customerID, name, surname, sex,
+     * phoneNumber, role and secret column password.
+     *
+     * @param csvReader     data store
+     * @return              listing of all customers with all columns except secrets
+     */
+    public static Listing<Customer> customers(CSVReader csvReader) {
+        Listing<Customer> listing = new Listing<>(csvReader::getCustomersView, Customer::getCustomerID, csvReader::getCustomerFromGivenCustomerID);
+        listing.column("customerID", false, (sb, customer) -> sb.append(customer.getCustomerID()));
+        listing.column("name", false, (sb, customer) -> sb.append(customer.getName()));
+        listing.column("surname", false, (sb, customer) -> sb.append(customer.getSurname()));
+        listing.column("sex", false, (sb, customer) -> sb.append(customer.getSex()));
+        listing.column("phoneNumber", false, (sb, customer) -> sb.append(customer.getPhoneNumber()));
+        listing.column("role", false, (sb, customer) -> sb.append(customer.getRole()));
+        listing.column("password", true, (sb, customer) -> sb.append(customer.getPassword()));
+        listing.selectColumns(null);
+        return listing;
+    }
+
+    /**
+     * This method creates listing of accounts with columns customerID, accountID, balance and secret column PIN.
+     *
+     * @param csvReader     data store
+     * @return              listing of all accounts with all columns except secrets
+     */
+    public static Listing<Account> accounts(CSVReader csvReader) {
+        Listing<Account> listing = new Listing<>(csvReader::getAccountsView, Account::getAccountID, csvReader::getAccountFromGivenAccountID);
+        listing.column("customerID", false, (sb, account) -> sb.append(account.getCustomerID()));
+        listing.column("accountID", false, (sb, account) -> sb.append(account.getAccountID()));
+        listing.column("balance", false, (sb, account) -> Money.appendTo(sb, account.getBalance()));
+        listing.column("PIN", true, (sb, account) -> sb.append(account.getPIN()));
+        listing.selectColumns(null);
+        return listing;
+    }
+
+    private void column(String name, boolean secret, Column<T> column) {
+        allColumns.put(name, column);
+        if (secret) {
+            secretColumns.add(name);
+        }
+    }
+
+    /**
+     * This method chooses columns of the listing. Names are separated by commas and case is ignored.
+     *
+     * @param names     names of columns, null or "-" for all columns except secrets
+     * @throws IllegalArgumentException if there is no column with one of the names
+     */
+    public void selectColumns(String names) {
+        ArrayList<String> chosen = new ArrayList<>();
+        if (names == null || names.trim().equals("-")) {
+            for (String name : allColumns.keySet()) {
+                if (!secretColumns.contains(name)) {
+                    chosen.add(name);
+                }
+            }
+        } else {
+            for (String name : names.split(",")) {
+                String found = null;
+                for (String column : allColumns.keySet()) {
+                    if (column.toLowerCase(Locale.ROOT).equals(name.trim().toLowerCase(Locale.ROOT))) {
+                        found = column;
+                    }
+                }
+                if (found == null) {
+                    throw new IllegalArgumentException("Unknown column " + name.trim() + ", use one of " + allColumns.keySet());
+                }
+                chosen.add(found);
+            }
+        }
+        columnNames.clear();
+        columns.clear();
+        for (String name : chosen) {
+            columnNames.add(name);
+            columns.add(allColumns.get(name));
+        }
+    }
+
+    /**
+     * This method adds condition every row of the listing has to meet.
+     *
+     * @param condition     condition of rows, e.g. account -> account.getBalance() >= 100_00
+     */
+    public void addFilter(Predicate<T> condition) {
+        filter = filter.and(condition);
+    }
+
+    /**
+     * This method returns names of all columns, including secret ones.
+     *
+     * @return      names of columns
+     */
+    public List<String> getColumnNames() {
+        return new ArrayList<>(allColumns.keySet());
+    }
+
+    /**
+     * This method writes header with names of chosen columns.
+     *
+     * @param out       writer we write to
+     * @throws IOException
+     */
+    public void writeHeader(Writer out) throws IOException {
+        out.write(String.join(SEPARATOR, columnNames));
+        out.write(System.lineSeparator());
+    }
+
+    /**
+     * This method writes one page of rows which pass the filters, without header.
+     *
+     * @param out       writer we write to, it is not flushed
+     * @param cursor    ID of the last row of the previous page, 0 for the first page
+     * @param limit     maximal number of rows of the page
+     * @return          cursor of the next page or -1 if there are no more rows
+     * @throws IOException
+     */
+    public long writePage(Writer out, long cursor, long limit) throws IOException {
+        StringBuilder sb = new StringBuilder(256);
+        String lineSeparator = System.lineSeparator();
+        long last = Math.max(0, cursor);
+        if (last == 0) {
+            ids = new long[0];
+        }
+        long scanned = last;
+        int index = firstAfter(last);
+        rowsWritten = 0;
+        while (true) {
+            if (index == ids.length) {
+                ids = snapshotAfter(scanned);
+                index = 0;
+                if (ids.length == 0) {
+                    return -1;
+                }
+            }
+            scanned = ids[index];
+            T row = byID.apply(ids[index++]);
+            if (row == null || !filter.test(row)) {
+                continue;
+            }
+            if (rowsWritten == limit) {
+                return last;
+            }
+            sb.setLength(0);
+            for (int c = 0; c < columns.size(); c++) {
+                if (c > 0) {
+                    sb.append(SEPARATOR);
+                }
+                columns.get(c).append(sb, row);
+            }
+            sb.append(lineSeparator);
+            out.append(sb);
+            rowsWritten++;
+            last = idOf.applyAsLong(row);
+        }
+    }
+
+    /**
+     * This method returns position of the first ID in the snapshot which is greater than given one.
+     */
+    private int firstAfter(long id) {
+        int i = Arrays.binarySearch(ids, id);
+        return i >= 0 ? i + 1 : -i - 1;
+    }
+
+    /**
+     * This method takes sorted IDs of all rows with ID greater than given one.
+     */
+    private long[] snapshotAfter(long id) {
+        long[] snapshot = new long[64];
+        int count = 0;
+        for (T row : rows.get()) {
+            long rowID = idOf.applyAsLong(row);
+            if (rowID > id) {
+                if (count == snapshot.length) {
+                    snapshot = Arrays.copyOf(snapshot, count * 2);
+                }
+                snapshot[count++] = rowID;
+            }
+        }
+        snapshot = Arrays.copyOf(snapshot, count);
+        Arrays.sort(snapshot);
+        return snapshot;
+    }
+
+    /**
+     * This method returns number of rows written by the last call of writePage().
+     *
+     * @return      number of rows
+     */
+    public long getRowsWritten() {
+        return rowsWritten;
+    }
+
+    /**
+     * This method writes header and all rows which pass the filters to a csv file.
+     *
+     * @param file      file we write to
+     * @return          number of rows written
+     * @throws IOException
+     */
+    public long export(Path file) throws IOException {
+        try (BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file.toFile()), StandardCharsets.UTF_8), BUFFER_SIZE)) {
+            writeHeader(bw);
+            writePage(bw, 0, Long.MAX_VALUE);
+            return rowsWritten;
+        }
+    }
+
+    /**
+     * This method creates writer to the console with a large buffer. It has to be flushed, not closed.
+     *
+     * @return      buffered writer to System.out
+     */
+    public static Writer console() {
+        return new BufferedWriter(new OutputStreamWriter(System.out), BUFFER_SIZE);
+    }
+}
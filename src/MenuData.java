@@ -1,18 +1,48 @@
 import java.io.IOException;
-import java.math.BigDecimal;
-import java.math.RoundingMode;
+import java.io.Writer;
 import java.security.NoSuchAlgorithmException;
-import java.util.ArrayList;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.InputMismatchException;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.atomic.LongAdder;
 
 public class MenuData {
 
     private static Scanner in = new Scanner(System.in);
-    private CSVReader csvReader = new CSVReader();
+    private CSVReader csvReader = CSVReader.getInstance();
+    private final ATM atm = new ATM();
+    private Bank bank;
 
-    private int temporaryUserID;
-    private int temporaryAccountID;
+    private static final LatencyHistogram CUSTOMER_LOGIN_LATENCY = Metrics.histogram("login.customer");
+    private static final LatencyHistogram ACCOUNT_LOGIN_LATENCY = Metrics.histogram("login.account");
+    private static final LatencyHistogram BALANCE_LATENCY = Metrics.histogram("balance");
+    private static final LongAdder FAILED_LOGINS = Metrics.counter("login.failed");
+    private static final int HISTORY_PAGE_SIZE = 10;
+    private static final int SEARCH_PAGE_SIZE = 10;
+
+    private long temporaryUserID;
+    private long temporaryAccountID;
+
+    /**
+     * Method which returns Bank used by this menu. It is created on the first use,
+     * because Bank creates its own MenuData and creating it in a field would never end.
+     * @return      bank used by this menu
+     */
+    private Bank getBank() {
+        if (bank == null) {
+            bank = new Bank();
+        }
+        return bank;
+    }
 
     /**
      * Method used to display the Main menu of the program
@@ -64,9 +94,9 @@ public class MenuData {
         while (true) {
             String choice = "";
             System.out.println("\nChoose option:");
-            System.out.println(" (1) View balance\t\n (2) Transfer money\t\n (3) Change PIN\t\n (4) Log out");
-            while (!choice.equals("1") && !choice.equals("2") && !choice.equals("3")) {
-                if (choice.equals("4")) {
+            System.out.println(" (1) View balance\t\n (2) Transfer money\t\n (3) Change PIN\t\n (4) View history\t\n (5) Log out");
+            while (!choice.equals("1") && !choice.equals("2") && !choice.equals("3") && !choice.equals("4")) {
+                if (choice.equals("5")) {
                     break outerloop;
                 } else {
                     choice = in.next();
@@ -82,15 +112,15 @@ public class MenuData {
      * @param accountID ID of the account we want to log into
      * @throws IOException
      */
-    public void displayATMMenu(int accountID) throws IOException {
+    public void displayATMMenu(long accountID) throws IOException {
         System.out.println("Login to the account was successful");
         outerloop:
         while (true) {
             String choice = "";
             System.out.println("\nChoose option:");
-            System.out.println(" (1) View balance\t\n (2) Withdraw money\t\n (3) Deposit money\t\n (4) Log out");
-            while (!choice.equals("1") && !choice.equals("2") && !choice.equals("3")) {
-                if (choice.equals("4")) {
+            System.out.println(" (1) View balance\t\n (2) Withdraw money\t\n (3) Deposit money\t\n (4) View history\t\n (5) Log out");
+            while (!choice.equals("1") && !choice.equals("2") && !choice.equals("3") && !choice.equals("4")) {
+                if (choice.equals("5")) {
                     break outerloop;
                 } else {
                     choice = in.next();
@@ -107,28 +137,35 @@ public class MenuData {
      * @param accountID     ID of the  account we want to control by the options chose
      * @throws IOException
      */
-    public void chooseATMOption(String option, int accountID) throws IOException {
-        ATM atm = new ATM();
+    public void chooseATMOption(String option, long accountID) throws IOException {
         switch (option) {
             case "1":
-                csvReader.readAccountIDsFromFile();
-                System.out.println("Your balance is: " + csvReader.readAccountsFromFile().stream().filter(account -> account.getAccountID() == temporaryAccountID).findFirst().get().getBalance());
+                System.out.println("Your balance is: " + Money.toString(getBalance(accountID)));
                 break;
             case "2":
                 System.out.println("Withdrawing money...");
                 System.out.println("Enter amount of money you want to withdraw (use comma instead of dot):");
-                BigDecimal withdrawMoney = in.nextBigDecimal();
-                withdrawMoney = withdrawMoney.setScale(2, RoundingMode.FLOOR);
-                atm.withdraw(accountID, withdrawMoney);
+                try {
+                    long withdrawMoney = Money.fromBigDecimal(in.nextBigDecimal());
+                    atm.withdraw(accountID, withdrawMoney);
+                } catch (ArithmeticException e) {
+                    System.out.println("Invalid amount!");
+                }
                 break;
             case "3":
                 System.out.println("Depositing money...");
                 System.out.println("Enter amount of money you want to deposit (use comma instead of dot):");
-                BigDecimal depositMoney = in.nextBigDecimal();
-                depositMoney = depositMoney.setScale(2, RoundingMode.FLOOR);
-                atm.deposit(accountID, depositMoney);
+                try {
+                    long depositMoney = Money.fromBigDecimal(in.nextBigDecimal());
+                    atm.deposit(accountID, depositMoney);
+                } catch (ArithmeticException e) {
+                    System.out.println("Invalid amount!");
+                }
                 break;
             case "4":
+                displayHistory(accountID);
+                break;
+            case "5":
                 System.out.println("Logging out to main menu...");
                 displayMainMenu();
                 break;
@@ -147,9 +184,9 @@ public class MenuData {
         while (true) {
             String choice = "";
             System.out.println("\nChoose option:");
-            System.out.println(" (1) Display all users\t\n (2) Display all accounts\t\n (3) Add new user\t\n (4) Add new account\t\n (5) Delete account\t\n (6) Change password\t\n (7) Change PIN\t\n (8) Log out");
-            while (!choice.equals("1") && !choice.equals("2") && !choice.equals("3") && !choice.equals("4") && !choice.equals("5") && !choice.equals("6") && !choice.equals("7")) {
-                if (choice.equals("8")) {
+            System.out.println(" (1) List users\t\n (2) List accounts\t\n (3) Add new user\t\n (4) Add new account\t\n (5) Delete account\t\n (6) Change password\t\n (7) Change PIN\t\n (8) Balance as of date\t\n (9) Search customers\t\n (10) Reports\t\n (11) Log out");
+            while (!choice.equals("1") && !choice.equals("2") && !choice.equals("3") && !choice.equals("4") && !choice.equals("5") && !choice.equals("6") && !choice.equals("7") && !choice.equals("8") && !choice.equals("9") && !choice.equals("10")) {
+                if (choice.equals("11")) {
                     break outerloop;
                 } else {
                     choice = in.next();
@@ -165,7 +202,7 @@ public class MenuData {
      * @param option        option that the user picked, that states which method is called upon
      */
     public void chooseMainMenuOption(String option) {
-        Bank bank = new Bank();
+        Bank bank = getBank();
         try {
             switch (option) {
                 case "1":
@@ -177,12 +214,17 @@ public class MenuData {
                     bank.logIntoATM();
                     break;
                 case "3":
+                    try {
+                        csvReader.drainPendingWrites();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
                     System.out.println("See you next time!");
                     System.exit(0);
                 default:
                     System.out.println("Please re-enter main menu option:");
             }
-        } catch (InputMismatchException | NoSuchAlgorithmException | IOException e) {
+        } catch (InputMismatchException | ArithmeticException | NoSuchAlgorithmException | IOException e) {
             System.out.println("Please re-enter main menu option");
         }
     }
@@ -198,7 +240,7 @@ public class MenuData {
             switch (option) {
                 case "1":
                     System.out.println("Viewing accounts...");
-                    ArrayList<Account> temporaryAccounts = csvReader.getAccountsFromGivenCustomerID(temporaryUserID);
+                    List<Account> temporaryAccounts = csvReader.getAccountsFromGivenCustomerID(temporaryUserID);
                     for (Account account : temporaryAccounts) {
                         System.out.println(account.toString(true));
                     }
@@ -220,7 +262,7 @@ public class MenuData {
                 default:
                     System.out.println("Enter correct option!");
             }
-        } catch (InputMismatchException | NoSuchAlgorithmException | IOException e) {
+        } catch (InputMismatchException | ArithmeticException | NoSuchAlgorithmException | IOException e) {
             System.out.println("Enter correct option!");
         }
     }
@@ -233,15 +275,14 @@ public class MenuData {
      * @throws NoSuchAlgorithmException
      */
     public void chooseAccountOption(String option) throws IOException, NoSuchAlgorithmException {
-        ATM atm = new ATM();
         switch (option) {
             case "1":
-                System.out.println("Your balance is: " + csvReader.readAccountsFromFile().stream().filter(account -> account.getAccountID() == temporaryAccountID).findFirst().get().getBalance());
+                System.out.println("Your balance is: " + Money.toString(getBalance(temporaryAccountID)));
                 break;
             case "2":
                 System.out.println("Transferring money");
                 System.out.println("Enter ID of account you want to transfer money to:");
-                int accountID = in.nextInt();
+                long accountID = in.nextLong();
                 atm.transfer(temporaryAccountID, accountID);
                 break;
             case "3":
@@ -249,6 +290,9 @@ public class MenuData {
                 csvReader.changePINByCustomer(temporaryAccountID);
                 break;
             case "4":
+                displayHistory(temporaryAccountID);
+                break;
+            case "5":
                 System.out.println("Logging out to customer menu...");
                 displayCustomerMenu();
                 String choice = in.next();
@@ -265,15 +309,15 @@ public class MenuData {
      * @param option        option that the user picked, that states which method is called upon
      */
     public void chooseAdminOption(String option) {
-        Bank bank = new Bank();
+        Bank bank = getBank();
         try {
             switch (option) {
                 case "1":
-                    System.out.println("Displaying data of all users...\n");
+                    System.out.println("Displaying data of users...\n");
                     bank.displayUsers();
                     break;
                 case "2":
-                    System.out.println("Displaying data of all accounts...\n");
+                    System.out.println("Displaying data of accounts...\n");
                     bank.displayAccounts();
                     break;
                 case "3":
@@ -283,28 +327,39 @@ public class MenuData {
                 case "4":
                     System.out.println("Creating new account...");
                     System.out.println("Enter customer ID");
-                    int customerID = in.nextInt();
+                    long customerID = in.nextLong();
                     csvReader.newAccount(customerID);
                     break;
                 case "5":
                     System.out.println("Deleting account...");
                     System.out.println("Enter ID of account you want to delete:");
-                    int accountID = in.nextInt();
+                    long accountID = in.nextLong();
                     csvReader.removeAccount(accountID);
                     break;
                 case "6":
                     System.out.println("Changing password...");
                     System.out.println("Enter the ID of the customer you want to change the password for:");
-                    customerID = in.nextInt();
+                    customerID = in.nextLong();
                     csvReader.changePasswordByAdmin(customerID);
                     break;
                 case "7":
                     System.out.println("Changing PIN...");
                     System.out.println("Enter the ID of the account you want to change the PIN for:");
-                    accountID = in.nextInt();
+                    accountID = in.nextLong();
                     csvReader.changePINByAdmin(accountID);
                     break;
                 case "8":
+                    displayBalanceAsOf();
+                    break;
+                case "9":
+                    displayCustomerSearch();
+                    break;
+                case "10":
+                    System.out.println("Computing reports...\n");
+                    long start = System.nanoTime();
+                    BankReports.fromMemory(csvReader).print(Paths.get("."), System.nanoTime() - start);
+                    break;
+                case "11":
                     System.out.println("Logging out to main menu...");
                     displayMainMenu();
                     String choice = in.next();
@@ -313,7 +368,7 @@ public class MenuData {
                 default:
                     System.out.println("Invalid option!");
             }
-        } catch (InputMismatchException | IOException | NoSuchAlgorithmException e) {
+        } catch (InputMismatchException | ArithmeticException | IOException | NoSuchAlgorithmException e) {
             System.out.println("Enter correct option!");
         }
     }
@@ -326,11 +381,11 @@ public class MenuData {
     public void displayLogIntoCustomerMenu() throws NoSuchAlgorithmException {
         while (true) {
             System.out.println("Enter your customer ID:");
-            int logCustomerID = in.nextInt();
-            if (csvReader.getCustomerIDs().contains(logCustomerID)) {
+            long logCustomerID = in.nextLong();
+            if (csvReader.containsCustomerID(logCustomerID)) {
                 System.out.println("Enter your password:");
                 String logPassword = in.next();
-                if (csvReader.getPasswordFromGivenCustomerID(logCustomerID).equals(csvReader.hash(logPassword))) {
+                if (checkCredential(csvReader.getPasswordFromGivenCustomerID(logCustomerID), logPassword, CUSTOMER_LOGIN_LATENCY)) {
                     if (csvReader.getRoleFromGivenCustomerID(logCustomerID).equals("customer")) {
                         temporaryUserID = logCustomerID;
                         displayCustomerMenu();
@@ -355,12 +410,12 @@ public class MenuData {
     public void displayLogIntoAccountMenu() throws NoSuchAlgorithmException, IOException {
         while (true) {
             System.out.println("Enter your account ID:");
-            int logAccountID = in.nextInt();
+            long logAccountID = in.nextLong();
             temporaryAccountID = logAccountID;
-            if (csvReader.getAccountIDsFromGivenCustomerID(temporaryUserID).contains(logAccountID)) {
+            if (csvReader.isAccountOfCustomer(temporaryUserID, logAccountID)) {
                 System.out.println("Enter PIN:");
                 String logPIN = in.next();
-                if (csvReader.getPINFromGivenAccountID(logAccountID).equals(csvReader.hash(logPIN))) {
+                if (checkCredential(csvReader.getPINFromGivenAccountID(logAccountID), logPIN, ACCOUNT_LOGIN_LATENCY)) {
                     displayAccountMenu();
                 } else {
                     System.out.println("Wrong PIN");
@@ -381,12 +436,12 @@ public class MenuData {
     public void displayLogIntoATMMenu() throws NoSuchAlgorithmException, IOException {
         while (true) {
             System.out.println("Enter your account ID:");
-            int logAccountID = in.nextInt();
+            long logAccountID = in.nextLong();
             temporaryAccountID = logAccountID;
-            if (csvReader.getAccountIDs().contains(logAccountID)) {
+            if (csvReader.containsAccountID(logAccountID)) {
                 System.out.println("Enter PIN:");
                 String logPIN = in.next();
-                if (csvReader.getPINFromGivenAccountID(logAccountID).equals(csvReader.hash(logPIN))) {
+                if (checkCredential(csvReader.getPINFromGivenAccountID(logAccountID), logPIN, ACCOUNT_LOGIN_LATENCY)) {
                     displayATMMenu(logAccountID);
                 } else {
                     System.out.println("Wrong PIN");
@@ -398,4 +453,273 @@ public class MenuData {
         }
 
     }
+
+    /**
+     * This method checks entered password or PIN against the stored hash and records how long it took.
+     * Only the check is measured, not the time the user spends typing.
+     *
+     * @param storedHash    hash of password or PIN read from file
+     * @param entered       password or PIN entered by the user
+     * @param latency       histogram of the login flow
+     * @return              true if entered password or PIN is correct
+     * @throws NoSuchAlgorithmException
+     */
+    private boolean checkCredential(String storedHash, String entered, LatencyHistogram latency) throws NoSuchAlgorithmException {
+        long start = System.nanoTime();
+        boolean valid = csvReader.verify(entered, storedHash);
+        latency.recordSince(start);
+        if (!valid) {
+            FAILED_LOGINS.increment();
+        }
+        return valid;
+    }
+
+    /**
+     * Method used to display history of the account, the newest operations first, one page at a time.
+     * User can see all operations or a statement from a range of dates.
+     * @param accountID     ID of the account whose history is displayed
+     * @throws IOException
+     */
+    public void displayHistory(long accountID) throws IOException {
+        System.out.println("Enter first day of the statement (yyyy-mm-dd) or \"all\" to see all operations:");
+        String fromText = in.next();
+        long fromMillis = Long.MIN_VALUE;
+        long toMillis = Long.MAX_VALUE;
+        if (!fromText.equalsIgnoreCase("all")) {
+            System.out.println("Enter last day of the statement (yyyy-mm-dd):");
+            String toText = in.next();
+            try {
+                ZoneId zone = ZoneId.systemDefault();
+                fromMillis = LocalDate.parse(fromText).atStartOfDay(zone).toInstant().toEpochMilli();
+                toMillis = LocalDate.parse(toText).plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli() - 1;
+            } catch (DateTimeParseException e) {
+                System.out.println("Invalid date!");
+                return;
+            }
+        }
+        int page = 0;
+        while (true) {
+            List<TransactionLedger.Entry> entries = TransactionLedger.getInstance()
+                    .history(accountID, fromMillis, toMillis, page * HISTORY_PAGE_SIZE, HISTORY_PAGE_SIZE + 1);
+            if (entries.isEmpty()) {
+                System.out.println(page == 0 ? "There are no operations to show" : "There are no more operations");
+                return;
+            }
+            for (int i = 0; i < Math.min(entries.size(), HISTORY_PAGE_SIZE); i++) {
+                System.out.println(entries.get(i));
+            }
+            if (entries.size() <= HISTORY_PAGE_SIZE) {
+                return;
+            }
+            System.out.println(" (n) Next page\t\n (any other key) Back");
+            if (!in.next().equalsIgnoreCase("n")) {
+                return;
+            }
+            page++;
+        }
+    }
+
+    /**
+     * Method used by admin to see balance of one account, or balance sheet of the whole bank,
+     * as it was at given date and time. Balance sheet is written to a CSV file.
+     * @throws IOException
+     */
+    public void displayBalanceAsOf() throws IOException {
+        System.out.println("Enter ID of the account or \"all\" for balance sheet of the bank:");
+        String account = in.next();
+        System.out.println("Enter date (yyyy-mm-dd):");
+        String date = in.next();
+        System.out.println("Enter time (hh:mm:ss):");
+        String time = in.next();
+        LocalDateTime dateTime;
+        try {
+            dateTime = LocalDateTime.of(LocalDate.parse(date), LocalTime.parse(time));
+        } catch (DateTimeParseException e) {
+            System.out.println("Invalid date!");
+            return;
+        }
+        long millis = dateTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        BalanceCheckpoints checkpoints = BalanceCheckpoints.getInstance();
+        if (account.equalsIgnoreCase("all")) {
+            BalanceCheckpoints.BalanceSheet sheet = checkpoints.balanceSheetAsOf(millis);
+            if (sheet == null) {
+                System.out.println("There is no balance checkpoint before " + dateTime);
+                return;
+            }
+            Path file = Paths.get("balance-sheet-" + dateTime.format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")) + ".csv");
+            BalanceCheckpoints.writeBalanceSheet(sheet, file);
+            System.out.println("Balance sheet as of " + dateTime + ": " + sheet.getAccounts().size() + " accounts, total "
+                    + Money.toString(sheet.getTotal()) + " (" + sheet.getReplayedOperations() + " operations replayed)");
+            System.out.println("Balances of all accounts were written to " + file);
+            return;
+        }
+        long accountID;
+        try {
+            accountID = Long.parseLong(account);
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid account ID!");
+            return;
+        }
+        Long balance = checkpoints.balanceAsOf(accountID, millis);
+        if (balance == null) {
+            System.out.println("Balance of account " + accountID + " as of " + dateTime + " is not known, the account did not exist then or it is older than the first checkpoint");
+        } else {
+            System.out.println("Balance of account " + accountID + " as of " + dateTime + " was: " + Money.toString(balance));
+        }
+    }
+
+    /**
+     * Method used by admin to list customers, optionally only customers with given role.
+     * @throws IOException
+     */
+    public void displayCustomerListing() throws IOException {
+        Listing<Customer> listing = Listing.customers(csvReader);
+        System.out.println("Enter role (customer/admin) or \"-\" for all customers:");
+        String role = in.next();
+        if (!role.equals("-")) {
+            listing.addFilter(customer -> customer.getRole().equals(role));
+        }
+        displayListing(listing);
+    }
+
+    /**
+     * Method used by admin to list accounts, optionally only accounts with balance in given range.
+     * @throws IOException
+     */
+    public void displayAccountListing() throws IOException {
+        Listing<Account> listing = Listing.accounts(csvReader);
+        try {
+            System.out.println("Enter minimal balance or \"-\" for no minimum:");
+            String minimum = in.next();
+            if (!minimum.equals("-")) {
+                long cents = Money.parse(minimum);
+                listing.addFilter(account -> account.getBalance() >= cents);
+            }
+            System.out.println("Enter maximal balance or \"-\" for no maximum:");
+            String maximum = in.next();
+            if (!maximum.equals("-")) {
+                long cents = Money.parse(maximum);
+                listing.addFilter(account -> account.getBalance() <= cents);
+            }
+        } catch (NumberFormatException | ArithmeticException e) {
+            System.out.println("Invalid amount!");
+            return;
+        }
+        displayListing(listing);
+    }
+
+    /**
+     * Method which shows listing one page at a time or exports it to a csv file.
+     * Password hashes and PINs are only shown when admin names their columns.
+     * @param listing       listing with filters chosen by admin
+     * @throws IOException
+     */
+    private <T> void displayListing(Listing<T> listing) throws IOException {
+        System.out.println("Enter columns separated by commas (" + String.join(",", listing.getColumnNames())
+                + ") or \"-\" for all columns except secrets:");
+        try {
+            listing.selectColumns(in.next());
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return;
+        }
+        System.out.println("Enter page size or \"e\" to export the listing to a file:");
+        String pageSize = in.next();
+        if (pageSize.equalsIgnoreCase("e")) {
+            System.out.println("Enter name of the file:");
+            Path file = Paths.get(in.next());
+            long start = System.nanoTime();
+            long rows = listing.export(file);
+            System.out.println("Exported " + rows + " rows to " + file.toAbsolutePath() + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+            return;
+        }
+        int limit;
+        try {
+            limit = Integer.parseInt(pageSize);
+        } catch (NumberFormatException e) {
+            limit = 0;
+        }
+        if (limit <= 0) {
+            System.out.println("Invalid page size!");
+            return;
+        }
+        Writer out = Listing.console();
+        listing.writeHeader(out);
+        long cursor = 0;
+        while (true) {
+            cursor = listing.writePage(out, cursor, limit);
+            out.flush();
+            if (cursor < 0) {
+                return;
+            }
+            System.out.println(" (n) Next page\t\n (any other key) Back");
+            if (!in.next().equalsIgnoreCase("n")) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Method used by admin to find customers by the beginning of surname or name, or by phone number.
+     * Surname can be followed by the beginning of the name after a comma, e.g. "Nowak,An".
+     * Results are shown one page at a time and every page is found in time proportional to its size.
+     */
+    public void displayCustomerSearch() {
+        System.out.println("Search by:\n (1) Surname\t\n (2) Name\t\n (3) Phone number");
+        String field = in.next();
+        CustomerSearchIndex index = csvReader.getSearchIndex();
+        Iterator<Customer> results;
+        switch (field) {
+            case "1":
+                System.out.println("Enter surname or its beginning (surname,name to narrow down by name):");
+                String surname = in.next();
+                int comma = surname.indexOf(',');
+                results = comma < 0 ? index.searchBySurname(surname)
+                        : index.searchBySurnameAndName(surname.substring(0, comma), surname.substring(comma + 1));
+                break;
+            case "2":
+                System.out.println("Enter name or its beginning:");
+                results = index.searchByName(in.next());
+                break;
+            case "3":
+                System.out.println("Enter phone number:");
+                String phone = in.next();
+                try {
+                    results = index.findByPhone(Long.parseLong(phone)).iterator();
+                } catch (NumberFormatException e) {
+                    System.out.println("Invalid phone number!");
+                    return;
+                }
+                break;
+            default:
+                System.out.println("Invalid option!");
+                return;
+        }
+        if (!results.hasNext()) {
+            System.out.println("No customers found");
+            return;
+        }
+        while (true) {
+            for (int i = 0; i < SEARCH_PAGE_SIZE && results.hasNext(); i++) {
+                Customer customer = results.next();
+                System.out.println(customer.getCustomerID() + ": " + customer.getName() + " " + customer.getSurname()
+                        + ", sex: " + customer.getSex() + ", phone: " + customer.getPhoneNumber() + ", role: " + customer.getRole());
+            }
+            if (!results.hasNext()) {
+                return;
+            }
+            System.out.println(" (n) Next page\t\n (any other key) Back");
+            if (!in.next().equalsIgnoreCase("n")) {
+                return;
+            }
+        }
+    }
+
+    private long getBalance(long accountID) {
+        long start = System.nanoTime();
+        long balance = csvReader.getAccountFromGivenAccountID(accountID).getBalance();
+        BALANCE_LATENCY.recordSince(start);
+        Metrics.recordAccountOperation(accountID);
+        return balance;
+    }
 }
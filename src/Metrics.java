@@ -0,0 +1,242 @@
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Registry of metrics of the bank: latency histograms of operations, counters of events
+ * and approximate number of operations done on hot accounts.
+ * Everything is lock-free, so metrics can be recorded on every operation.
+ *
+ * Every metric is registered as a JMX MBean when it is created, so it can be watched with
+ * jconsole or any other JMX client:
+ * <pre>
+ * bank:type=Latency,name=withdraw     Count, MeanMicros, P50Micros, P99Micros, P999Micros, MaxMicros
+ * bank:type=Counter,name=login.failed Count
+ * bank:type=Accounts                  HotAccounts, TrackedAccounts
+ * </pre>
+ * With -Dbank.metrics.dumpSeconds=N all metrics are also appended as text to metrics.log
+ * (or the file given by -Dbank.metrics.dumpFile) every N seconds.
+ *
+ * Operations on accounts are counted in a fixed table of -Dbank.metrics.accountSlots slots (4096 by default),
+ * so its memory does not grow with the number of accounts. Every account hashes to one slot; an account
+ * which finds the slot taken by another one decreases its count, and takes the slot over when the count
+ * drops to zero. Hot accounts keep their slots, while rarely used accounts replace each other.
+ */
+public final class Metrics {
+
+    private static final String DOMAIN = "bank";
+    private static final int HOT_ACCOUNTS = 10;
+    private static final int ACCOUNT_SLOTS = Integer.highestOneBit(
+            Math.max(HOT_ACCOUNTS, Math.min(1 << 24, Integer.getInteger("bank.metrics.accountSlots", 4096))) * 2 - 1);
+
+    private static final ConcurrentHashMap<String, LatencyHistogram> HISTOGRAMS = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, LongAdder> COUNTERS = new ConcurrentHashMap<>();
+    private static final AtomicLongArray SLOT_ACCOUNTS = new AtomicLongArray(ACCOUNT_SLOTS);
+    private static final AtomicLongArray SLOT_OPERATIONS = new AtomicLongArray(ACCOUNT_SLOTS);
+
+    static {
+        register("Accounts", null, new AccountsMBean() {
+            @Override
+            public String getHotAccounts() {
+                return hotAccounts();
+            }
+
+            @Override
+            public int getTrackedAccounts() {
+                return trackedAccounts();
+            }
+        }, AccountsMBean.class);
+        long dumpSeconds = Long.getLong("bank.metrics.dumpSeconds", 0);
+        if (dumpSeconds > 0) {
+            startDump(System.getProperty("bank.metrics.dumpFile", "metrics.log"), dumpSeconds);
+        }
+    }
+
+    /**
+     * Attributes of a latency histogram visible over JMX.
+     */
+    public interface HistogramMBean {
+        long getCount();
+
+        double getMeanMicros();
+
+        double getP50Micros();
+
+        double getP99Micros();
+
+        double getP999Micros();
+
+        double getMaxMicros();
+    }
+
+    /**
+     * Attributes of a counter visible over JMX.
+     */
+    public interface CounterMBean {
+        long getCount();
+    }
+
+    /**
+     * Attributes of account statistics visible over JMX.
+     */
+    public interface AccountsMBean {
+        String getHotAccounts();
+
+        int getTrackedAccounts();
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * This method returns histogram with given name, creating it on the first call.
+     * Classes keep returned histograms in static fields, so the registry is not searched on every operation.
+     *
+     * @param name      name of the operation, e.g. "withdraw"
+     * @return          histogram of latencies of the operation
+     */
+    public static LatencyHistogram histogram(String name) {
+        return HISTOGRAMS.computeIfAbsent(name, key -> {
+            LatencyHistogram histogram = new LatencyHistogram(key);
+            register("Latency", key, histogram, HistogramMBean.class);
+            return histogram;
+        });
+    }
+
+    /**
+     * This method returns counter with given name, creating it on the first call.
+     *
+     * @param name      name of the event, e.g. "login.failed"
+     * @return          counter of the event
+     */
+    public static LongAdder counter(String name) {
+        return COUNTERS.computeIfAbsent(name, key -> {
+            LongAdder counter = new LongAdder();
+            register("Counter", key, (CounterMBean) counter::sum, CounterMBean.class);
+            return counter;
+        });
+    }
+
+    /**
+     * This method counts one operation done on the account in the slot of the account, see the class comment.
+     * Counts are approximate: an account which lost its slot for a while starts counting again from one.
+     *
+     * @param accountID     ID of the account
+     */
+    public static void recordAccountOperation(long accountID) {
+        int slot = (int) ((accountID * 0x9E3779B97F4A7C15L) >>> 40) & (ACCOUNT_SLOTS - 1);
+        long owner = SLOT_ACCOUNTS.get(slot);
+        if (owner == accountID && SLOT_OPERATIONS.get(slot) > 0) {
+            SLOT_OPERATIONS.incrementAndGet(slot);
+        } else if (SLOT_OPERATIONS.get(slot) <= 0) {
+            if (SLOT_ACCOUNTS.compareAndSet(slot, owner, accountID)) {
+                SLOT_OPERATIONS.set(slot, 1);
+            }
+        } else {
+            SLOT_OPERATIONS.decrementAndGet(slot);
+        }
+    }
+
+    private static int trackedAccounts() {
+        int tracked = 0;
+        for (int slot = 0; slot < ACCOUNT_SLOTS; slot++) {
+            if (SLOT_OPERATIONS.get(slot) > 0) {
+                tracked++;
+            }
+        }
+        return tracked;
+    }
+
+    /**
+     * This method returns accounts with the most operations, e.g. "73980=120, 71306=95".
+     */
+    static String hotAccounts() {
+        ArrayList<Map.Entry<Long, Long>> top = new ArrayList<>(HOT_ACCOUNTS + 1);
+        for (int slot = 0; slot < ACCOUNT_SLOTS; slot++) {
+            long accountID = SLOT_ACCOUNTS.get(slot);
+            long operations = SLOT_OPERATIONS.get(slot);
+            if (operations > 0 && (top.size() < HOT_ACCOUNTS || operations > top.get(top.size() - 1).getValue())) {
+                int position = top.size();
+                while (position > 0 && top.get(position - 1).getValue() < operations) {
+                    position--;
+                }
+                top.add(position, Map.entry(accountID, operations));
+                if (top.size() > HOT_ACCOUNTS) {
+                    top.remove(HOT_ACCOUNTS);
+                }
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<Long, Long> entry : top) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(entry.getKey()).append('=').append(entry.getValue());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * This method returns all metrics as text, one metric per line, sorted by name.
+     *
+     * @return      text dump of all metrics
+     */
+    public static String dump() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("--- metrics ").append(LocalDateTime.now()).append('\n');
+        for (LatencyHistogram histogram : new TreeMap<>(HISTOGRAMS).values()) {
+            sb.append(String.format("%-28s count=%d mean=%.1fus p50=%.1fus p99=%.1fus p999=%.1fus max=%.1fus%n",
+                    histogram.getName(), histogram.getCount(), histogram.getMeanMicros(), histogram.getP50Micros(),
+                    histogram.getP99Micros(), histogram.getP999Micros(), histogram.getMaxMicros()));
+        }
+        for (Map.Entry<String, LongAdder> counter : new TreeMap<>(COUNTERS).entrySet()) {
+            sb.append(String.format("%-28s count=%d%n", counter.getKey(), counter.getValue().sum()));
+        }
+        sb.append(String.format("%-28s %s%n", "hot accounts", hotAccounts()));
+        return sb.toString();
+    }
+
+    private static void startDump(String file, long periodSeconds) {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleAtFixedRate(() -> {
+            try (BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8))) {
+                bw.write(dump());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    private static <T> void register(String type, String name, T bean, Class<T> beanInterface) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(DOMAIN + ":type=" + type + (name == null ? "" : ",name=" + name));
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(new StandardMBean(bean, beanInterface), objectName);
+            }
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+}
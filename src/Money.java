@@ -0,0 +1,131 @@
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Helper methods for amounts of money kept as a primitive long number of cents (hundredths).
+ * Balances are added, subtracted and compared as plain longs, so these operations do not
+ * create any objects. Overflow is never silently ignored: it throws ArithmeticException.
+ * Text form always has exactly two decimal places, e.g. 1234 cents is "12.34".
+ */
+public final class Money {
+
+    private Money() {
+    }
+
+    /**
+     * This method adds two amounts and checks for overflow.
+     *
+     * @param cents         first amount in cents
+     * @param otherCents    second amount in cents
+     * @return              sum in cents
+     */
+    public static long add(long cents, long otherCents) {
+        long result = cents + otherCents;
+        if (((cents ^ result) & (otherCents ^ result)) < 0) {
+            throw new ArithmeticException("Amount of money is too big");
+        }
+        return result;
+    }
+
+    /**
+     * This method subtracts two amounts and checks for overflow.
+     *
+     * @param cents         amount in cents
+     * @param otherCents    amount in cents we subtract
+     * @return              difference in cents
+     */
+    public static long subtract(long cents, long otherCents) {
+        long result = cents - otherCents;
+        if (((cents ^ otherCents) & (cents ^ result)) < 0) {
+            throw new ArithmeticException("Amount of money is too big");
+        }
+        return result;
+    }
+
+    /**
+     * This method converts amount entered by the user to cents.
+     * Digits after the second decimal place are cut off, like setScale(2, RoundingMode.FLOOR).
+     *
+     * @param amount        amount of money
+     * @return              amount in cents
+     */
+    public static long fromBigDecimal(BigDecimal amount) {
+        return amount.setScale(2, RoundingMode.FLOOR).unscaledValue().longValueExact();
+    }
+
+    public static BigDecimal toBigDecimal(long cents) {
+        return BigDecimal.valueOf(cents, 2);
+    }
+
+    /**
+     * This method parses amount with at most two decimal places, e.g. "12.3" or "-0.05".
+     *
+     * @param text          amount of money
+     * @return              amount in cents
+     * @throws NumberFormatException if text is not a valid amount
+     */
+    public static long parse(CharSequence text) {
+        int length = text.length();
+        int i = 0;
+        boolean negative = length > 0 && text.charAt(0) == '-';
+        if (negative) {
+            i++;
+        }
+        long value = 0;
+        int digits = 0;
+        int decimals = -1;
+        for (; i < length; i++) {
+            char c = text.charAt(i);
+            if ((c == '.' || c == ',') && decimals < 0) {
+                decimals = 0;
+                continue;
+            }
+            if (c < '0' || c > '9' || decimals == 2) {
+                throw new NumberFormatException("Invalid amount: " + text);
+            }
+            value = add(multiplyByTen(value), c - '0');
+            digits++;
+            if (decimals >= 0) {
+                decimals++;
+            }
+        }
+        if (digits == 0) {
+            throw new NumberFormatException("Invalid amount: " + text);
+        }
+        for (int d = Math.max(decimals, 0); d < 2; d++) {
+            value = multiplyByTen(value);
+        }
+        return negative ? -value : value;
+    }
+
+    private static long multiplyByTen(long value) {
+        if (value > Long.MAX_VALUE / 10) {
+            throw new ArithmeticException("Amount of money is too big");
+        }
+        return value * 10;
+    }
+
+    /**
+     * This method appends amount with exactly two decimal places to the builder.
+     *
+     * @param sb            builder we write to
+     * @param cents         amount in cents
+     * @return              the same builder
+     */
+    public static StringBuilder appendTo(StringBuilder sb, long cents) {
+        if (cents < 0) {
+            sb.append('-');
+        }
+        long whole = Math.abs(cents / 100);
+        long fraction = Math.abs(cents % 100);
+        sb.append(whole).append('.');
+        if (fraction < 10) {
+            sb.append('0');
+        }
+        return sb.append(fraction);
+    }
+
+    public static String toString(long cents) {
+        return appendTo(new StringBuilder(24), cents).toString();
+    }
+}
@@ -0,0 +1,163 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Loader which splits a csv file into byte ranges that start and end on line boundaries
+ * and parses them at the same time on a fork/join pool. Rows of every range are collected
+ * separately and then joined in the order of ranges, so the result is the same list
+ * as the one created by a single CSVParser.
+ *
+ * Parallel loading is used for files bigger than -Dbank.parallelLoad.minBytes (16 MB by default)
+ * and can be forced on or off with -Dbank.parallelLoad=true/false.
+ */
+public class ParallelCSVLoader {
+
+    private static final long MIN_BYTES = Long.getLong("bank.parallelLoad.minBytes", 16L * 1024 * 1024);
+    private static final long MIN_CHUNK_BYTES = 1024 * 1024;
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    /**
+     * Factory which creates one object from current row of the parser.
+     */
+    public interface RowFactory<T> {
+        T create(CSVParser parser) throws CSVParser.CSVFormatException;
+    }
+
+    /**
+     * This method reads all rows of the file and creates list of objects from them.
+     * Big files are parsed in parallel, small ones by a single parser.
+     *
+     * @param path          file we want to load
+     * @param factory       factory which creates object from a row
+     * @return              list of objects in the order of rows in the file
+     * @throws IOException
+     */
+    public static <T> ArrayList<T> load(Path path, RowFactory<T> factory) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            String property = System.getProperty("bank.parallelLoad");
+            boolean parallel = property != null ? Boolean.parseBoolean(property) : size >= MIN_BYTES;
+            int parallelism = ForkJoinPool.commonPool().getParallelism();
+            int chunks = parallel ? (int) Math.max(1, Math.min((long) parallelism * CHUNKS_PER_THREAD, size / MIN_CHUNK_BYTES)) : 1;
+            long[] boundaries = findBoundaries(channel, size, chunks);
+            return parse(channel, path.getFileName().toString(), boundaries, factory);
+        }
+    }
+
+    /**
+     * This method divides the file into ranges of similar size. Every boundary is moved
+     * forward to the first byte after a new line character, so no line is split.
+     *
+     * @param channel       opened file
+     * @param size          size of the file
+     * @param chunks        number of ranges we want to get
+     * @return              start of every range followed by the size of the file
+     * @throws IOException
+     */
+    static long[] findBoundaries(FileChannel channel, long size, int chunks) throws IOException {
+        long[] boundaries = new long[chunks + 1];
+        ByteBuffer probe = ByteBuffer.allocate(4096);
+        boundaries[chunks] = size;
+        for (int i = 1; i < chunks; i++) {
+            long position = Math.max(size / chunks * i, boundaries[i - 1]);
+            boundaries[i] = size;
+            search:
+            while (position < size) {
+                probe.clear();
+                int read = channel.read(probe, position);
+                if (read <= 0) {
+                    break;
+                }
+                for (int j = 0; j < read; j++) {
+                    if (probe.get(j) == '\n') {
+                        boundaries[i] = position + j + 1;
+                        break search;
+                    }
+                }
+                position += read;
+            }
+        }
+        return boundaries;
+    }
+
+    private static <T> ArrayList<T> parse(FileChannel channel, String fileName, long[] boundaries, RowFactory<T> factory) throws IOException {
+        ArrayList<ChunkTask<T>> tasks = new ArrayList<>();
+        for (int i = 0; i + 1 < boundaries.length; i++) {
+            tasks.add(new ChunkTask<>(channel, fileName, boundaries[i], boundaries[i + 1], factory));
+        }
+        try {
+            if (tasks.size() == 1) {
+                tasks.get(0).compute();
+            } else {
+                ForkJoinPool.commonPool().invoke(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        invokeAll(tasks);
+                    }
+                });
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        int total = 0;
+        for (ChunkTask<T> task : tasks) {
+            total += task.rows.size();
+        }
+        ArrayList<T> result = new ArrayList<>(total);
+        long linesBefore = 0;
+        for (ChunkTask<T> task : tasks) {
+            result.addAll(task.rows);
+            for (CSVParser.CSVFormatException error : task.errors) {
+                System.err.println("Skipping malformed row " + error.shiftLines(linesBefore).getMessage());
+            }
+            linesBefore += task.lines;
+        }
+        return result;
+    }
+
+    /**
+     * Task which parses one range of the file. Line numbers inside the range start from 1
+     * and are shifted after all ranges are parsed.
+     */
+    private static class ChunkTask<T> extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient FileChannel channel;
+        private final String fileName;
+        private final long start;
+        private final long end;
+        private final transient RowFactory<T> factory;
+        private final ArrayList<T> rows = new ArrayList<>();
+        private final ArrayList<CSVParser.CSVFormatException> errors = new ArrayList<>();
+        private long lines;
+
+        ChunkTask(FileChannel channel, String fileName, long start, long end, RowFactory<T> factory) {
+            this.channel = channel;
+            this.fileName = fileName;
+            this.start = start;
+            this.end = end;
+            this.factory = factory;
+        }
+
+        @Override
+        protected void compute() {
+            CSVParser parser = new CSVParser(channel, fileName, start, end, 1);
+            parser.collectErrors(errors);
+            try {
+                parser.parseAll(p -> rows.add(factory.create(p)));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            lines = parser.getLineNumber();
+        }
+    }
+}
@@ -0,0 +1,670 @@
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Headless driver of the bank. It runs a script of commands through the same login, ATM, account
+ * and admin operations as the console menu, without Scanner and without printing menus, so it can be
+ * used to drive the system at speed and as a load generator. One command per line, a token starting
+ * with '#' starts a comment:
+ * <pre>
+ * login-account 20000001 1234      ATM login with account ID and PIN
+ * login-customer 1000000 Password1 customer or admin login with customer ID and password
+ * select-account 20000001 1234     account menu of the logged in customer
+ * balance
+ * withdraw 12.50                   amounts with a dot or a comma
+ * deposit 100
+ * transfer 20000002 5,00           to account ID
+ * history 10                       newest operations of the account
+ * change-pin 4321
+ * open-account 1000001             admin only
+ * delete-account 20000003          admin only
+ * logout
+ * </pre>
+ * Every login starts a new session, which ends at the next login or logout. Sessions are run by
+ * -Dbank.script.sessions threads at the same time (2 per processor by default), commands of one session
+ * always in order. The script is read from the file (or stdin) by a tokenizer working on bytes: numbers
+ * and amounts are decoded without creating Strings and do not depend on the locale. It is read while
+ * sessions run, so scripts of any length need little memory.
+ *
+ * A failed command (wrong PIN, not enough money, ...) is counted as an error with its reason and
+ * the session goes on. At the end operations per second, errors, latency percentiles of every command
+ * and heap use are printed. Latencies are also available as "script.*" histograms in Metrics.
+ * With -Dbank.script.results=file the summary is appended to a csv file as one row, so runs on data sets
+ * of different sizes can be compared (see BankSimulation).
+ * Other settings: -Dbank.script.reportSeconds (10, 0 turns the progress off), -Dbank.script.verbose=true
+ * prints every failed command with its line number.
+ *
+ * Started with {@code java Bank --script [file]}.
+ */
+public class ScriptDriver {
+
+    private static final String SEPARATOR = ", ";
+    private static final int REPORT_SECONDS = Integer.getInteger("bank.script.reportSeconds", 10);
+    private static final boolean VERBOSE = Boolean.getBoolean("bank.script.verbose");
+    private static final int DEFAULT_HISTORY = 10;
+    private static final LatencyHistogram OPERATION_LATENCY = Metrics.histogram("script.operation");
+    private static final ArrayList<Step> END = new ArrayList<>();
+
+    private final CSVReader csvReader = CSVReader.getInstance();
+    private final ATM atm = new ATM();
+    private final int sessions;
+    private final LongAdder operations = new LongAdder();
+    private final ConcurrentHashMap<String, LongAdder> errors = new ConcurrentHashMap<>();
+
+    /**
+     * Command of the script with the histogram of its latency.
+     */
+    private enum Command {
+        LOGIN_ACCOUNT("login-account"),
+        LOGIN_CUSTOMER("login-customer"),
+        SELECT_ACCOUNT("select-account"),
+        BALANCE("balance"),
+        WITHDRAW("withdraw"),
+        DEPOSIT("deposit"),
+        TRANSFER("transfer"),
+        HISTORY("history"),
+        CHANGE_PIN("change-pin"),
+        OPEN_ACCOUNT("open-account"),
+        DELETE_ACCOUNT("delete-account"),
+        LOGOUT("logout");
+
+        private static final HashMap<String, Command> BY_KEYWORD = new HashMap<>();
+
+        static {
+            for (Command command : values()) {
+                BY_KEYWORD.put(command.keyword, command);
+            }
+        }
+
+        final String keyword;
+        final LatencyHistogram latency;
+
+        Command(String keyword) {
+            this.keyword = keyword;
+            this.latency = Metrics.histogram("script." + keyword);
+        }
+    }
+
+    /**
+     * One parsed line of the script.
+     */
+    private static class Step {
+        final Command command;
+        final long line;
+        final long number;
+        final long amount;
+        final String text;
+
+        Step(Command command, long line, long number, long amount, String text) {
+            this.command = command;
+            this.line = line;
+            this.number = number;
+            this.amount = amount;
+            this.text = text;
+        }
+    }
+
+    /**
+     * Who is logged in during a session.
+     */
+    private static class Session {
+        long customerID;
+        long accountID;
+        boolean admin;
+    }
+
+    /**
+     * Error in the script with the number of its line.
+     */
+    public static class ScriptException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        public ScriptException(long lineNumber, String reason) {
+            super("line " + lineNumber + ": " + reason);
+        }
+    }
+
+    /**
+     * Tokenizer of the script which works directly on bytes read through one reusable buffer.
+     * Tokens are separated by spaces or tabs, lines by '\n' ("\r\n" is accepted as well).
+     */
+    static class Tokenizer {
+
+        private final InputStream in;
+        private final byte[] buffer = new byte[64 * 1024];
+        private byte[] token = new byte[64];
+        private int position;
+        private int limit;
+        private long lineNumber;
+
+        Tokenizer(InputStream in) {
+            this.in = in;
+        }
+
+        long getLineNumber() {
+            return lineNumber;
+        }
+
+        private int peek() throws IOException {
+            if (position == limit) {
+                limit = in.read(buffer, 0, buffer.length);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    return -1;
+                }
+            }
+            return buffer[position] & 0xFF;
+        }
+
+        /**
+         * This method moves to the first token of the next line which is not empty or a comment.
+         *
+         * @return      false at the end of the script
+         * @throws IOException
+         */
+        boolean nextLine() throws IOException {
+            while (true) {
+                if (lineNumber == 0) {
+                    lineNumber = 1;
+                } else {
+                    skipLine();
+                }
+                if (hasToken()) {
+                    return true;
+                }
+                if (peek() < 0) {
+                    return false;
+                }
+            }
+        }
+
+        private void skipLine() throws IOException {
+            int c;
+            while ((c = peek()) >= 0 && c != '\n') {
+                position++;
+            }
+            if (c == '\n') {
+                position++;
+            }
+            lineNumber++;
+        }
+
+        /**
+         * This method skips blanks and tells if there is another token on the current line.
+         *
+         * @return      true if a token follows
+         * @throws IOException
+         */
+        boolean hasToken() throws IOException {
+            int c;
+            while ((c = peek()) == ' ' || c == '\t' || c == '\r') {
+                position++;
+            }
+            if (c == '#') {
+                while ((c = peek()) >= 0 && c != '\n') {
+                    position++;
+                }
+            }
+            return c >= 0 && c != '\n';
+        }
+
+        String nextString() throws IOException {
+            if (!hasToken()) {
+                throw new ScriptException(lineNumber, "Missing argument");
+            }
+            int length = 0;
+            int c;
+            while ((c = peek()) > ' ') {
+                if (length == token.length) {
+                    token = Arrays.copyOf(token, 2 * length);
+                }
+                token[length++] = (byte) c;
+                position++;
+            }
+            return new String(token, 0, length, StandardCharsets.UTF_8);
+        }
+
+        long nextLong() throws IOException {
+            if (!hasToken()) {
+                throw new ScriptException(lineNumber, "Missing number");
+            }
+            long value = 0;
+            int digits = 0;
+            int c;
+            while ((c = peek()) >= '0' && c <= '9') {
+                if (value > (Long.MAX_VALUE - (c - '0')) / 10) {
+                    throw new ScriptException(lineNumber, "Number is too big");
+                }
+                value = value * 10 + c - '0';
+                digits++;
+                position++;
+            }
+            if (digits == 0 || c > ' ') {
+                throw new ScriptException(lineNumber, "Invalid number");
+            }
+            return value;
+        }
+
+        /**
+         * This method reads amount of money with a dot or a comma and at most two decimal places.
+         *
+         * @return      amount in cents
+         * @throws IOException
+         */
+        long nextAmount() throws IOException {
+            if (!hasToken()) {
+                throw new ScriptException(lineNumber, "Missing amount");
+            }
+            long value = 0;
+            int digits = 0;
+            int decimals = -1;
+            int c;
+            while ((c = peek()) > ' ') {
+                position++;
+                if ((c == '.' || c == ',') && decimals < 0) {
+                    decimals = 0;
+                    continue;
+                }
+                if (c < '0' || c > '9' || decimals == 2 || value > Long.MAX_VALUE / 1000) {
+                    throw new ScriptException(lineNumber, "Invalid amount");
+                }
+                value = value * 10 + c - '0';
+                digits++;
+                if (decimals >= 0) {
+                    decimals++;
+                }
+            }
+            if (digits == 0) {
+                throw new ScriptException(lineNumber, "Invalid amount");
+            }
+            for (int d = Math.max(decimals, 0); d < 2; d++) {
+                value *= 10;
+            }
+            return value;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        String file = args.length > 0 ? args[0] : "-";
+        int sessions = Integer.getInteger("bank.script.sessions", 2 * Runtime.getRuntime().availableProcessors());
+        try (InputStream in = file.equals("-") ? System.in : new FileInputStream(file)) {
+            new ScriptDriver(sessions).run(new Tokenizer(in));
+        }
+    }
+
+    public ScriptDriver(int sessions) {
+        if (sessions < 1) {
+            throw new IllegalArgumentException("Number of sessions must be positive");
+        }
+        this.sessions = sessions;
+    }
+
+    /**
+     * This method runs the whole script and prints the summary.
+     *
+     * @param tokenizer     tokenizer of the script
+     * @throws IOException
+     */
+    public void run(Tokenizer tokenizer) throws IOException {
+        long heapAfterLoad = usedHeapAfterGC();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+        BlockingQueue<ArrayList<Step>> queue = new ArrayBlockingQueue<>(4 * sessions);
+        Thread[] workers = new Thread[sessions];
+        for (int i = 0; i < sessions; i++) {
+            workers[i] = new Thread(() -> work(queue), "script-session-" + i);
+            workers[i].start();
+        }
+        ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "script-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long start = System.nanoTime();
+        if (REPORT_SECONDS > 0) {
+            long[] last = {0, start};
+            progress.scheduleAtFixedRate(() -> {
+                long now = System.nanoTime();
+                long done = operations.sum();
+                System.out.println("[" + (now - start) / 1_000_000_000 + " s] " + format((done - last[0]) * 1e9 / (now - last[1]))
+                        + " ops/s, " + done + " operations, " + errorCount() + " errors");
+                last[0] = done;
+                last[1] = now;
+            }, REPORT_SECONDS, REPORT_SECONDS, TimeUnit.SECONDS);
+        }
+        try {
+            readSessions(tokenizer, queue);
+        } finally {
+            try {
+                for (int i = 0; i < sessions; i++) {
+                    queue.put(END);
+                }
+                for (Thread worker : workers) {
+                    worker.join();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            progress.shutdownNow();
+        }
+        csvReader.drainPendingWrites();
+        long elapsed = System.nanoTime() - start;
+        printSummary(elapsed, heapAfterLoad);
+        String results = System.getProperty("bank.script.results");
+        if (results != null) {
+            appendResults(Paths.get(results), elapsed, heapAfterLoad);
+        }
+    }
+
+    /**
+     * This method parses the script and hands it over to the workers one session at a time.
+     * Lines which cannot be parsed are counted as errors and skipped. A login which cannot be parsed
+     * still ends the previous session, so the commands after it run in a session nobody is logged into
+     * and fail, instead of running as the user of the previous session.
+     */
+    private void readSessions(Tokenizer tokenizer, BlockingQueue<ArrayList<Step>> queue) throws IOException {
+        ArrayList<Step> session = new ArrayList<>();
+        try {
+            while (tokenizer.nextLine()) {
+                Step step;
+                Command command = null;
+                try {
+                    command = parseCommand(tokenizer);
+                    step = parse(tokenizer, command);
+                } catch (ScriptException e) {
+                    System.out.println("Invalid script " + e.getMessage());
+                    error("SCRIPT");
+                    if ((command == Command.LOGIN_ACCOUNT || command == Command.LOGIN_CUSTOMER) && !session.isEmpty()) {
+                        queue.put(session);
+                        session = new ArrayList<>();
+                    }
+                    continue;
+                }
+                if ((step.command == Command.LOGIN_ACCOUNT || step.command == Command.LOGIN_CUSTOMER) && !session.isEmpty()) {
+                    queue.put(session);
+                    session = new ArrayList<>();
+                }
+                session.add(step);
+                if (step.command == Command.LOGOUT) {
+                    queue.put(session);
+                    session = new ArrayList<>();
+                }
+            }
+            if (!session.isEmpty()) {
+                queue.put(session);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static Command parseCommand(Tokenizer tokenizer) throws IOException {
+        String keyword = tokenizer.nextString();
+        Command command = Command.BY_KEYWORD.get(keyword);
+        if (command == null) {
+            throw new ScriptException(tokenizer.getLineNumber(), "Unknown command " + keyword);
+        }
+        return command;
+    }
+
+    private static Step parse(Tokenizer tokenizer, Command command) throws IOException {
+        long line = tokenizer.getLineNumber();
+        long number = 0;
+        long amount = 0;
+        String text = null;
+        switch (command) {
+            case LOGIN_ACCOUNT:
+            case LOGIN_CUSTOMER:
+            case SELECT_ACCOUNT:
+                number = tokenizer.nextLong();
+                text = tokenizer.nextString();
+                break;
+            case WITHDRAW:
+            case DEPOSIT:
+                amount = tokenizer.nextAmount();
+                break;
+            case TRANSFER:
+                number = tokenizer.nextLong();
+                amount = tokenizer.nextAmount();
+                break;
+            case HISTORY:
+                number = tokenizer.hasToken() ? tokenizer.nextLong() : DEFAULT_HISTORY;
+                break;
+            case CHANGE_PIN:
+                text = tokenizer.nextString();
+                break;
+            case OPEN_ACCOUNT:
+            case DELETE_ACCOUNT:
+                number = tokenizer.nextLong();
+                break;
+            default:
+                break;
+        }
+        if (tokenizer.hasToken()) {
+            throw new ScriptException(line, "Too many arguments of " + command.keyword);
+        }
+        return new Step(command, line, number, amount, text);
+    }
+
+    private void work(BlockingQueue<ArrayList<Step>> queue) {
+        try {
+            ArrayList<Step> steps;
+            while ((steps = queue.take()) != END) {
+                Session session = new Session();
+                for (Step step : steps) {
+                    long start = System.nanoTime();
+                    String error;
+                    try {
+                        error = execute(step, session);
+                    } catch (Exception e) {
+                        error = e.getClass().getSimpleName();
+                    }
+                    step.command.latency.recordSince(start);
+                    OPERATION_LATENCY.recordSince(start);
+                    operations.increment();
+                    if (error != null) {
+                        error(error);
+                        if (VERBOSE) {
+                            System.out.println("line " + step.line + ": " + step.command.keyword + " failed: " + error);
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * This method runs one command of a session.
+     *
+     * @return      null if it succeeded, reason of the failure otherwise
+     */
+    private String execute(Step step, Session session) throws Exception {
+        switch (step.command) {
+            case LOGIN_ACCOUNT: {
+                session.customerID = 0;
+                session.accountID = 0;
+                session.admin = false;
+                Account account = csvReader.getAccountFromGivenAccountID(step.number);
+                if (account == null || !csvReader.verify(step.text, account.getPIN())) {
+                    return "LOGIN_FAILED";
+                }
+                session.accountID = step.number;
+                return null;
+            }
+            case LOGIN_CUSTOMER: {
+                session.customerID = 0;
+                session.accountID = 0;
+                session.admin = false;
+                Customer customer = csvReader.getCustomerFromGivenCustomerID(step.number);
+                if (customer == null || !csvReader.verify(step.text, customer.getPassword())) {
+                    return "LOGIN_FAILED";
+                }
+                session.customerID = step.number;
+                session.admin = !customer.getRole().equals("customer");
+                return null;
+            }
+            case SELECT_ACCOUNT: {
+                if (session.customerID == 0 || session.admin) {
+                    return "NOT_LOGGED_IN";
+                }
+                Account account = csvReader.getAccountFromGivenAccountID(step.number);
+                if (account == null || account.getCustomerID() != session.customerID || !csvReader.verify(step.text, account.getPIN())) {
+                    return "LOGIN_FAILED";
+                }
+                session.accountID = step.number;
+                return null;
+            }
+            case LOGOUT:
+                session.customerID = 0;
+                session.accountID = 0;
+                session.admin = false;
+                return null;
+            case OPEN_ACCOUNT:
+                if (!session.admin) {
+                    return "NOT_ADMIN";
+                }
+                return csvReader.openAccount(step.number, csvReader.generatePIN()) == null ? "UNKNOWN_CUSTOMER" : null;
+            case DELETE_ACCOUNT:
+                if (!session.admin) {
+                    return "NOT_ADMIN";
+                }
+                if (csvReader.deleteAccount(step.number)) {
+                    return null;
+                }
+                return csvReader.containsAccountID(step.number) ? "BALANCE_NOT_ZERO" : ATM.Result.UNKNOWN_ACCOUNT.name();
+            default:
+                break;
+        }
+        if (session.accountID == 0) {
+            return "NOT_LOGGED_IN";
+        }
+        ATM.Result result;
+        switch (step.command) {
+            case BALANCE:
+                Account account = csvReader.getAccountFromGivenAccountID(session.accountID);
+                return account == null ? ATM.Result.UNKNOWN_ACCOUNT.name() : null;
+            case HISTORY:
+                TransactionLedger.getInstance().history(session.accountID, Long.MIN_VALUE, Long.MAX_VALUE, 0, (int) Math.min(Integer.MAX_VALUE, step.number));
+                return null;
+            case CHANGE_PIN:
+                return csvReader.changePIN(session.accountID, step.text) ? null : "INVALID_PIN";
+            case WITHDRAW:
+                result = atm.tryWithdraw(session.accountID, step.amount);
+                break;
+            case DEPOSIT:
+                result = atm.tryDeposit(session.accountID, step.amount);
+                break;
+            case TRANSFER:
+                result = atm.tryTransfer(session.accountID, step.number, step.amount);
+                break;
+            default:
+                throw new IllegalStateException("Unexpected command " + step.command);
+        }
+        return result == ATM.Result.OK ? null : result.name();
+    }
+
+    private void error(String reason) {
+        errors.computeIfAbsent(reason, k -> new LongAdder()).increment();
+    }
+
+    private long errorCount() {
+        long count = 0;
+        for (LongAdder adder : errors.values()) {
+            count += adder.sum();
+        }
+        return count;
+    }
+
+    private void printSummary(long elapsedNanos, long heapAfterLoad) {
+        long done = operations.sum();
+        System.out.println("Script finished: " + done + " operations in " + format(elapsedNanos / 1e9) + " s = "
+                + format(done * 1e9 / elapsedNanos) + " ops/s, " + sessions + " sessions, " + errorCount() + " errors");
+        TreeMap<String, LongAdder> sorted = new TreeMap<>(errors);
+        for (Map.Entry<String, LongAdder> entry : sorted.entrySet()) {
+            System.out.println("    " + entry.getKey() + ": " + entry.getValue().sum());
+        }
+        System.out.println(String.format(Locale.ROOT, "%-16s %10s %10s %10s %10s %10s", "command", "count", "p50 us", "p99 us", "p99.9 us", "max us"));
+        for (Command command : Command.values()) {
+            LatencyHistogram latency = command.latency;
+            if (latency.getCount() > 0) {
+                System.out.println(String.format(Locale.ROOT, "%-16s %10d %10.1f %10.1f %10.1f %10.1f", command.keyword, latency.getCount(),
+                        latency.getP50Micros(), latency.getP99Micros(), latency.getP999Micros(), latency.getMaxMicros()));
+            }
+        }
+        System.out.println("Heap: " + heapAfterLoad / (1024 * 1024) + " MB after load, " + peakHeap() / (1024 * 1024) + " MB peak, "
+                + csvReader.getAccounts().size() + " accounts, " + csvReader.getCustomers().size() + " customers");
+    }
+
+    /**
+     * This method appends the summary as one row of the results file, writing the header first if the file is new:
+     * <pre>
+     * time, accounts, customers, sessions, operations, errors, seconds, opsPerSecond, p50Micros, p99Micros, p999Micros, heapAfterLoadMB, heapPeakMB
+     * </pre>
+     */
+    private void appendResults(Path file, long elapsedNanos, long heapAfterLoad) throws IOException {
+        boolean header = !Files.exists(file);
+        long done = operations.sum();
+        try (BufferedWriter bw = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            if (header) {
+                bw.write("time" + SEPARATOR + "accounts" + SEPARATOR + "customers" + SEPARATOR + "sessions" + SEPARATOR + "operations"
+                        + SEPARATOR + "errors" + SEPARATOR + "seconds" + SEPARATOR + "opsPerSecond" + SEPARATOR + "p50Micros"
+                        + SEPARATOR + "p99Micros" + SEPARATOR + "p999Micros" + SEPARATOR + "heapAfterLoadMB" + SEPARATOR + "heapPeakMB");
+                bw.newLine();
+            }
+            bw.write(LocalDateTime.now() + SEPARATOR + csvReader.getAccounts().size() + SEPARATOR + csvReader.getCustomers().size()
+                    + SEPARATOR + sessions + SEPARATOR + done + SEPARATOR + errorCount() + SEPARATOR + format(elapsedNanos / 1e9)
+                    + SEPARATOR + format(done * 1e9 / elapsedNanos) + SEPARATOR + format(OPERATION_LATENCY.getP50Micros())
+                    + SEPARATOR + format(OPERATION_LATENCY.getP99Micros()) + SEPARATOR + format(OPERATION_LATENCY.getP999Micros())
+                    + SEPARATOR + heapAfterLoad / (1024 * 1024) + SEPARATOR + peakHeap() / (1024 * 1024));
+            bw.newLine();
+        }
+    }
+
+    private static long usedHeapAfterGC() {
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.1f", value);
+    }
+}
@@ -0,0 +1,487 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Alternative account store which splits accounts into N shards by a hash of accountID. Every shard
+ * has its own file and its own transaction journal, so it has its own writer, lock, group commit and
+ * compaction, and operations on accounts of different shards never wait for each other's appends or fsyncs:
+ * <pre>
+ * shards/layout.csv          number of shards, e.g. "shards, 8"
+ * shards/accounts-0003.csv   accounts of shard 3, in the format of accounts.csv
+ * shards/accounts-0003.journal   balance changes of shard 3 since its file was written
+ * </pre>
+ * flushBalanceChanges() syncs only the journals of shards the calling thread has appended to since its last
+ * sync; a thread which has appended nothing syncs every shard with records which are not on disk yet.
+ * Work split over several threads (e.g. a batch executed on a parallel stream) has to finish with syncAll()
+ * through CSVReader.drainPendingWrites(), because no single thread knows every shard written. Shards remembered
+ * by a thread are forgotten once a syncAll() which started after they were written has finished, so pool threads
+ * do not keep them for an unrelated later caller. A new or deleted account or a changed PIN rewrites only the file of
+ * the shard of that account; full rewrites write all shard files in parallel. Every shard keeps its own list of
+ * accounts, so writing or compacting one shard never has to look at accounts of the others.
+ *
+ * It is turned on with -Dbank.accountStore=sharded. If there is no layout yet, accounts.csv and its journal
+ * are split into -Dbank.shards shards (8 by default) on the first start. The number of shards of existing data
+ * is changed with {@code java ShardedAccountStore 16} while the bank is not running. New shards are written to
+ * shards-new and layout.csv is written last; then shards is renamed to shards-old and shards-new to shards.
+ * A reshard interrupted before the renames leaves the old layout in use, one interrupted between them
+ * is finished on the next start.
+ */
+public class ShardedAccountStore {
+
+    public static final String DIRECTORY = System.getProperty("bank.shards.dir", "shards");
+    private static final String LAYOUT_FILE = "layout.csv";
+    private static final String SEPARATOR = ", ";
+    private static final int DEFAULT_SHARDS = Integer.getInteger("bank.shards", 8);
+    private static final int MAX_SHARDS = 4096;
+    private static final LatencyHistogram WRITE_LATENCY = Metrics.histogram("shards.writeAccounts");
+    private static final LatencyHistogram SHARD_WRITE_LATENCY = Metrics.histogram("shards.writeShard");
+
+    private static ShardedAccountStore instance;
+
+    private final Shard[] shards;
+    private final ThreadLocal<Pending> pending = ThreadLocal.withInitial(Pending::new);
+    private final AtomicLong syncAllsStarted = new AtomicLong();
+    private final AtomicLong syncAllsFinished = new AtomicLong();
+
+    /**
+     * One shard: its file with accounts, the journal of its balance changes and its accounts.
+     * The list of accounts is guarded by the shard itself; the shard is locked before its journal.
+     */
+    private static class Shard {
+        final Path file;
+        final TransactionJournal journal;
+        final ArrayList<Account> accounts = new ArrayList<>();
+
+        Shard(Path directory, int index) throws IOException {
+            this.file = directory.resolve(fileName(index, ".csv"));
+            this.journal = new TransactionJournal(directory.resolve(fileName(index, ".journal")));
+            if (!Files.exists(file)) {
+                Files.createFile(file);
+            }
+        }
+    }
+
+    /**
+     * Shards the current thread has appended to since its last sync, with the last sequence number in each.
+     * The epoch is the number of started syncAll() calls when the first of them was appended.
+     */
+    private static class Pending {
+        int[] shards = new int[4];
+        long[] seqs = new long[4];
+        int count;
+        long epoch;
+
+        void add(int shard, long seq, long currentEpoch) {
+            if (count == 0) {
+                epoch = currentEpoch;
+            }
+            for (int i = 0; i < count; i++) {
+                if (shards[i] == shard) {
+                    seqs[i] = seq;
+                    return;
+                }
+            }
+            if (count == shards.length) {
+                shards = Arrays.copyOf(shards, count * 2);
+                seqs = Arrays.copyOf(seqs, count * 2);
+            }
+            shards[count] = shard;
+            seqs[count] = seq;
+            count++;
+        }
+    }
+
+    /**
+     * This method checks if accounts should be kept in shards instead of accounts.csv.
+     *
+     * @return      true if sharded store is turned on
+     */
+    public static boolean isEnabled() {
+        return "sharded".equals(System.getProperty("bank.accountStore"));
+    }
+
+    /**
+     * This method returns store shared by the whole process. It is opened on the first call,
+     * and created from accounts.csv if there are no shards yet.
+     *
+     * @return      shared sharded account store
+     */
+    public static synchronized ShardedAccountStore getInstance() {
+        if (instance == null) {
+            try {
+                Path directory = Paths.get(DIRECTORY);
+                finishReshard(directory);
+                if (!Files.exists(directory.resolve(LAYOUT_FILE))) {
+                    int count = reshard(directory, DEFAULT_SHARDS);
+                    System.out.println("Accounts were split into " + DEFAULT_SHARDS + " shards in " + directory + " (" + count + " accounts).");
+                }
+                int count = readLayout(directory);
+                if (count != DEFAULT_SHARDS && System.getProperty("bank.shards") != null) {
+                    System.out.println("Accounts are kept in " + count + " shards. Use java ShardedAccountStore "
+                            + DEFAULT_SHARDS + " to change the number of shards.");
+                }
+                instance = new ShardedAccountStore(directory, count);
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot open account shards in " + DIRECTORY, e);
+            }
+        }
+        return instance;
+    }
+
+    ShardedAccountStore(Path directory, int count) throws IOException {
+        shards = new Shard[count];
+        for (int i = 0; i < count; i++) {
+            shards[i] = new Shard(directory, i);
+        }
+    }
+
+    /**
+     * This method returns the shard of an account. It only depends on accountID and the number of shards.
+     *
+     * @param accountID     ID of the account
+     * @param count         number of shards
+     * @return              index of the shard, from 0 to count - 1
+     */
+    static int shardOf(long accountID, int count) {
+        return (int) (((accountID * 0x9E3779B97F4A7C15L) >>> 33) % count);
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * This method returns the shard of an account in this store.
+     *
+     * @param account       the account
+     * @return              index of the shard
+     */
+    public int shardOf(Account account) {
+        return shardOf(account.getAccountID(), shards.length);
+    }
+
+    /**
+     * This method reads accounts of all shards in parallel and applies journal of every shard on top of its file.
+     * Every shard remembers its own accounts, later kept up to date by addAccount() and removeAccount().
+     *
+     * @return      accounts of all shards, shard after shard
+     * @throws IOException
+     */
+    public ArrayList<Account> readAccounts() throws IOException {
+        List<ArrayList<Account>> parts = new ArrayList<>();
+        for (int i = 0; i < shards.length; i++) {
+            parts.add(null);
+        }
+        try {
+            IntStream.range(0, shards.length).parallel().forEach(i -> {
+                try {
+                    ArrayList<Account> accounts = ParallelCSVLoader.load(shards[i].file, ShardedAccountStore::createAccount);
+                    shards[i].journal.replay(accounts);
+                    synchronized (shards[i]) {
+                        shards[i].accounts.clear();
+                        shards[i].accounts.addAll(accounts);
+                    }
+                    parts.set(i, accounts);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        int size = 0;
+        for (ArrayList<Account> part : parts) {
+            size += part.size();
+        }
+        ArrayList<Account> accounts = new ArrayList<>(size);
+        for (ArrayList<Account> part : parts) {
+            accounts.addAll(part);
+        }
+        return accounts;
+    }
+
+    private static Account createAccount(CSVParser parser) throws CSVParser.CSVFormatException {
+        parser.expectFields(4);
+        return new Account(parser.longField(0), parser.longField(1), parser.centsField(2), parser.stringField(3));
+    }
+
+    /**
+     * This method adds a new account to the list of its shard. The shard file is not written.
+     *
+     * @param account       new account
+     */
+    public void addAccount(Account account) {
+        Shard shard = shards[shardOf(account)];
+        synchronized (shard) {
+            shard.accounts.add(account);
+        }
+    }
+
+    /**
+     * This method removes a deleted account from the list of its shard. The shard file is not written.
+     *
+     * @param account       deleted account
+     */
+    public void removeAccount(Account account) {
+        Shard shard = shards[shardOf(account)];
+        synchronized (shard) {
+            shard.accounts.remove(account);
+        }
+    }
+
+    /**
+     * This method appends balance change of one account to the journal of its shard.
+     * Record is not durable until sync() is called by the same thread.
+     *
+     * @param account       account with changed balance
+     * @param delta         amount of money in cents added to (or subtracted from) the account
+     * @return              sequence number of the record in the journal of the shard
+     * @throws IOException
+     */
+    public long writeBalance(Account account, long delta) throws IOException {
+        int shard = shardOf(account.getAccountID(), shards.length);
+        long seq = shards[shard].journal.append(account.getAccountID(), delta, account.getBalance());
+        pending.get().add(shard, seq, syncAllsStarted.get());
+        return seq;
+    }
+
+    /**
+     * This method makes balance changes written by the current thread durable, syncing only the shards
+     * it has written to. If the thread has written nothing since its last sync, all shards are synced.
+     *
+     * @throws IOException
+     */
+    public void sync() throws IOException {
+        Pending mine = pending.get();
+        if (mine.count > 0 && mine.epoch < syncAllsFinished.get()) {
+            mine.count = 0;
+        }
+        if (mine.count == 0) {
+            syncAll();
+            return;
+        }
+        for (int i = 0; i < mine.count; i++) {
+            shards[mine.shards[i]].journal.sync(mine.seqs[i]);
+        }
+        mine.count = 0;
+    }
+
+    /**
+     * This method makes balance changes of all shards durable, including changes appended by other threads.
+     *
+     * @throws IOException
+     */
+    public void syncAll() throws IOException {
+        long epoch = syncAllsStarted.incrementAndGet();
+        for (Shard shard : shards) {
+            shard.journal.sync(shard.journal.getLastSeq());
+        }
+        syncAllsFinished.accumulateAndGet(epoch, Math::max);
+        pending.get().count = 0;
+    }
+
+    /**
+     * This method writes all shard files and empties their journals. Shards are written in parallel.
+     *
+     * @throws IOException
+     */
+    public void writeAccounts() throws IOException {
+        long start = System.nanoTime();
+        try {
+            IntStream.range(0, shards.length).parallel().forEach(i -> {
+                try {
+                    writeShard(i);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            WRITE_LATENCY.recordSince(start);
+        }
+    }
+
+    /**
+     * This method writes the file of one shard and empties its journal. It holds the lock of the shard,
+     * so no account can be added to or removed from the shard meanwhile.
+     *
+     * @param index         index of the shard
+     * @throws IOException
+     */
+    public void writeShard(int index) throws IOException {
+        long start = System.nanoTime();
+        Shard shard = shards[index];
+        try {
+            synchronized (shard) {
+                shard.journal.rewriteBase(() -> CSVReader.writeAccountsFile(shard.file, shard.accounts));
+            }
+        } finally {
+            SHARD_WRITE_LATENCY.recordSince(start);
+        }
+    }
+
+    /**
+     * This method registers background compaction of every shard. A shard whose journal grew too big
+     * writes only its own file.
+     */
+    public void setCompactors() {
+        for (int i = 0; i < shards.length; i++) {
+            int shard = i;
+            shards[i].journal.setCompactor(() -> writeShard(shard));
+        }
+    }
+
+    private static List<ArrayList<Account>> split(List<Account> accounts, int count) {
+        ArrayList<ArrayList<Account>> parts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            parts.add(new ArrayList<>(accounts.size() / count + 16));
+        }
+        for (Account account : accounts) {
+            parts.get(shardOf(account.getAccountID(), count)).add(account);
+        }
+        return parts;
+    }
+
+    private static String fileName(int shard, String suffix) {
+        return String.format("accounts-%04d%s", shard, suffix);
+    }
+
+    private static int readLayout(Path directory) throws IOException {
+        Path file = directory.resolve(LAYOUT_FILE);
+        int[] count = new int[1];
+        CSVParser.parse(file, parser -> {
+            if (parser.stringField(0).equals("shards")) {
+                count[0] = (int) parser.longField(1);
+            }
+        });
+        if (count[0] <= 0 || count[0] > MAX_SHARDS) {
+            throw new IOException(file + " does not contain a valid number of shards");
+        }
+        return count[0];
+    }
+
+    /**
+     * This method finishes resharding which was interrupted between renaming the old and the new directory.
+     */
+    private static void finishReshard(Path directory) throws IOException {
+        Path fresh = sibling(directory, "-new");
+        Path old = sibling(directory, "-old");
+        if (!Files.exists(directory) && Files.exists(fresh.resolve(LAYOUT_FILE))) {
+            Files.move(fresh, directory, StandardCopyOption.ATOMIC_MOVE);
+        }
+        if (Files.exists(directory.resolve(LAYOUT_FILE))) {
+            deleteDirectory(old);
+        }
+    }
+
+    /**
+     * This method reads all accounts from the current layout (shards, or accounts.csv and its journal
+     * if there are no shards yet) and writes them again as the given number of shards.
+     *
+     * @param directory     directory of shards
+     * @param count         new number of shards
+     * @return              number of accounts
+     * @throws IOException
+     */
+    static int reshard(Path directory, int count) throws IOException {
+        if (count <= 0 || count > MAX_SHARDS) {
+            throw new IllegalArgumentException("Number of shards must be between 1 and " + MAX_SHARDS);
+        }
+        finishReshard(directory);
+        ArrayList<Account> accounts;
+        if (Files.exists(directory.resolve(LAYOUT_FILE))) {
+            accounts = new ShardedAccountStore(directory, readLayout(directory)).readAccounts();
+        } else if (Files.exists(Paths.get("accounts.csv"))) {
+            accounts = ParallelCSVLoader.load(Paths.get("accounts.csv"), ShardedAccountStore::createAccount);
+            TransactionJournal.getInstance().replay(accounts);
+        } else {
+            accounts = new ArrayList<>();
+        }
+
+        Path fresh = sibling(directory, "-new");
+        deleteDirectory(fresh);
+        Files.createDirectories(fresh);
+        List<ArrayList<Account>> parts = split(accounts, count);
+        try {
+            IntStream.range(0, count).parallel().forEach(i -> {
+                try {
+                    CSVReader.writeAccountsFile(fresh.resolve(fileName(i, ".csv")), parts.get(i));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        Path layout = fresh.resolve(LAYOUT_FILE);
+        Files.write(sibling(layout, ".tmp"), ("shards" + SEPARATOR + count + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+        force(sibling(layout, ".tmp"));
+        Files.move(sibling(layout, ".tmp"), layout, StandardCopyOption.ATOMIC_MOVE);
+
+        if (Files.exists(directory)) {
+            Files.move(directory, sibling(directory, "-old"), StandardCopyOption.ATOMIC_MOVE);
+        }
+        Files.move(fresh, directory, StandardCopyOption.ATOMIC_MOVE);
+        deleteDirectory(sibling(directory, "-old"));
+        return accounts.size();
+    }
+
+    private static void force(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    private static Path sibling(Path path, String suffix) {
+        return path.resolveSibling(path.getFileName() + suffix);
+    }
+
+    private static void deleteDirectory(Path directory) throws IOException {
+        if (!Files.exists(directory)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    /**
+     * This method changes the number of shards of existing data, or splits accounts.csv into shards.
+     * The bank must not be running meanwhile.
+     *
+     * @param args      new number of shards
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: java ShardedAccountStore <number of shards>");
+            return;
+        }
+        long start = System.nanoTime();
+        Path directory = Paths.get(DIRECTORY);
+        try {
+            int accounts = reshard(directory, Integer.parseInt(args[0]));
+            System.out.println("Wrote " + accounts + " accounts to " + args[0] + " shards in " + directory + " in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms.");
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+}
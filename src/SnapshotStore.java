@@ -0,0 +1,358 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Periodic snapshots of all customers and accounts, so restart does not have to parse both CSV files.
+ * A background thread writes a compact binary image of the whole state to the snapshots directory
+ * every 60 seconds, together with the sequence number of the last journal record it contains.
+ * Snapshots are only written when something has changed since the previous one, and the newest 3 are kept.
+ *
+ * Format of a snapshot file (big-endian):
+ * <pre>
+ * header:    magic, version, journal sequence number, size and modification time of customers.csv and accounts.csv
+ * customers: count, then customerID, name, surname, sex, phone number, password hash, role of every customer
+ * accounts:  count, then customerID, accountID, balance in cents, PIN hash of every account
+ * trailer:   CRC32 of everything before it
+ * </pre>
+ * On startup the newest snapshot with a correct checksum is loaded. A corrupt or unreadable snapshot
+ * is reported and the next older one is tried. Customers are taken from the snapshot if customers.csv
+ * has not been written since it was made. Accounts are taken from it if accounts.csv has not been
+ * rewritten and the journal still holds every record after its sequence number; only those records
+ * are replayed. Whatever cannot be taken from the snapshot is read from the CSV files as before.
+ *
+ * Snapshot is made without stopping ATM operations: every balance is read under the lock of its account,
+ * so a withdraw, deposit or transfer is either fully in the snapshot or all its journal records come after
+ * the sequence number of the snapshot, and pending writes are drained before the snapshot is written.
+ *
+ * Settings: -Dbank.snapshot.seconds (0 turns snapshots off), -Dbank.snapshot.dir, -Dbank.snapshot.keep.
+ * Snapshots are not used with binary account store, which opens accounts.dat without parsing anyway,
+ * nor with sharded account store, whose shards are parsed in parallel and have journals of their own.
+ */
+public class SnapshotStore {
+
+    private static final long MAGIC = 0x42414E4B534E4150L; // "BANKSNAP"
+    private static final int VERSION = 1;
+    private static final String PREFIX = "snapshot-";
+    private static final String SUFFIX = ".bin";
+    private static final long PERIOD_SECONDS = Long.getLong("bank.snapshot.seconds", 60);
+    private static final int KEEP = Math.max(1, Integer.getInteger("bank.snapshot.keep", 3));
+    private static final LatencyHistogram WRITE_LATENCY = Metrics.histogram("snapshot.write");
+    private static final LatencyHistogram LOAD_LATENCY = Metrics.histogram("snapshot.load");
+
+    private static SnapshotStore instance;
+
+    private final Path directory;
+    private final Object lock = new Object();
+    private ScheduledExecutorService executor;
+    private long lastSeq = -1;
+    private FileStamp lastCustomersStamp;
+    private FileStamp lastAccountsStamp;
+
+    /**
+     * State read from a snapshot. Parts which are out of date are null and have to be read from CSV files.
+     */
+    public static class Snapshot {
+        final Path file;
+        final long seq;
+        ArrayList<Customer> customers;
+        ArrayList<Account> accounts;
+
+        Snapshot(Path file, long seq) {
+            this.file = file;
+            this.seq = seq;
+        }
+    }
+
+    /**
+     * Size and modification time of a data file, used to find out if it was written after a snapshot.
+     */
+    private static class FileStamp {
+        final long size;
+        final long modifiedNanos;
+
+        FileStamp(long size, long modifiedNanos) {
+            this.size = size;
+            this.modifiedNanos = modifiedNanos;
+        }
+
+        static FileStamp of(String file) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(Paths.get(file), BasicFileAttributes.class);
+                return new FileStamp(attributes.size(), attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS));
+            } catch (IOException e) {
+                return new FileStamp(-1, -1);
+            }
+        }
+
+        boolean matches(FileStamp other) {
+            return other != null && size == other.size && modifiedNanos == other.modifiedNanos;
+        }
+    }
+
+    /**
+     * This method returns snapshot store shared by the whole process.
+     *
+     * @return      shared snapshot store
+     */
+    public static synchronized SnapshotStore getInstance() {
+        if (instance == null) {
+            instance = new SnapshotStore(Paths.get(System.getProperty("bank.snapshot.dir", "snapshots")));
+        }
+        return instance;
+    }
+
+    /**
+     * This method checks if snapshots are turned on.
+     *
+     * @return      true unless -Dbank.snapshot.seconds=0 or binary account store is used
+     */
+    public static boolean isEnabled() {
+        return PERIOD_SECONDS > 0 && !BinaryAccountStore.isEnabled() && !ShardedAccountStore.isEnabled();
+    }
+
+    SnapshotStore(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * This method starts background thread which writes a snapshot of given data store periodically.
+     *
+     * @param reader        data store whose customers and accounts are saved
+     */
+    public void start(CSVReader reader) {
+        synchronized (lock) {
+            if (executor != null) {
+                return;
+            }
+            executor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "snapshot");
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.scheduleWithFixedDelay(() -> {
+                try {
+                    write(reader);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, PERIOD_SECONDS, PERIOD_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * This method writes a snapshot of all customers and accounts of the data store,
+     * unless nothing has changed since the previous snapshot.
+     *
+     * @param reader        data store whose customers and accounts are saved
+     * @return              written snapshot file or null if it was not needed
+     * @throws IOException
+     */
+    public Path write(CSVReader reader) throws IOException {
+        synchronized (lock) {
+            TransactionJournal journal = TransactionJournal.getInstance();
+            FileStamp customersStamp = FileStamp.of("customers.csv");
+            FileStamp accountsStamp = FileStamp.of("accounts.csv");
+            long seq = journal.getLastSeq();
+            if (seq == lastSeq && customersStamp.matches(lastCustomersStamp) && accountsStamp.matches(lastAccountsStamp)) {
+                return null;
+            }
+            long start = System.nanoTime();
+            BankEvents.FileIOEvent event = new BankEvents.FileIOEvent();
+            event.begin();
+            Customer[] customers;
+            Account[] accounts;
+            synchronized (reader) {
+                customers = reader.getCustomers().toArray(new Customer[0]);
+                accounts = reader.getAccounts().toArray(new Account[0]);
+            }
+            long[] balances = new long[accounts.length];
+            for (int i = 0; i < accounts.length; i++) {
+                AccountLocks.lock(accounts[i].getAccountID());
+                try {
+                    balances[i] = accounts[i].getBalance();
+                } finally {
+                    AccountLocks.unlock(accounts[i].getAccountID());
+                }
+            }
+            reader.drainPendingWrites();
+
+            Files.createDirectories(directory);
+            Path file = directory.resolve(String.format("%s%015d%s", PREFIX, System.currentTimeMillis(), SUFFIX));
+            Path temporary = directory.resolve(file.getFileName() + ".tmp");
+            try {
+                CRC32 crc = new CRC32();
+                FileOutputStream fos = new FileOutputStream(temporary.toFile());
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(fos, crc), 1 << 16))) {
+                    out.writeLong(MAGIC);
+                    out.writeInt(VERSION);
+                    out.writeLong(seq);
+                    writeStamp(out, customersStamp);
+                    writeStamp(out, accountsStamp);
+                    out.writeInt(customers.length);
+                    for (Customer customer : customers) {
+                        out.writeLong(customer.getCustomerID());
+                        out.writeUTF(customer.getName());
+                        out.writeUTF(customer.getSurname());
+                        out.writeUTF(customer.getSex());
+                        out.writeLong(customer.getPhoneNumber());
+                        out.writeUTF(customer.getPassword());
+                        out.writeUTF(customer.getRole());
+                    }
+                    out.writeInt(accounts.length);
+                    for (int i = 0; i < accounts.length; i++) {
+                        out.writeLong(accounts[i].getCustomerID());
+                        out.writeLong(accounts[i].getAccountID());
+                        out.writeLong(balances[i]);
+                        out.writeUTF(accounts[i].getPIN());
+                    }
+                    out.flush();
+                    out.writeLong(crc.getValue());
+                    out.flush();
+                    fos.getFD().sync();
+                }
+                Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporary);
+                WRITE_LATENCY.recordSince(start);
+                BankEvents.endFileIO(event, "writeSnapshot", file.toString(), customers.length + accounts.length);
+            }
+            lastSeq = seq;
+            lastCustomersStamp = customersStamp;
+            lastAccountsStamp = accountsStamp;
+            List<Path> snapshots = list();
+            for (int i = KEEP; i < snapshots.size(); i++) {
+                Files.deleteIfExists(snapshots.get(i));
+            }
+            return file;
+        }
+    }
+
+    private static void writeStamp(DataOutputStream out, FileStamp stamp) throws IOException {
+        out.writeLong(stamp.size);
+        out.writeLong(stamp.modifiedNanos);
+    }
+
+    private static FileStamp readStamp(DataInputStream in) throws IOException {
+        return new FileStamp(in.readLong(), in.readLong());
+    }
+
+    /**
+     * This method returns snapshot files, the newest first.
+     */
+    private List<Path> list() throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return Collections.emptyList();
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> {
+                        String name = path.getFileName().toString();
+                        return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+                    })
+                    .sorted(Collections.reverseOrder())
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * This method loads the newest readable snapshot and applies journal records made after it.
+     * Older snapshots are tried if the newer ones are corrupt.
+     *
+     * @return      loaded snapshot or null if there is no readable snapshot
+     */
+    public Snapshot loadLatest() {
+        List<Path> snapshots;
+        try {
+            snapshots = list();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        for (Path file : snapshots) {
+            long start = System.nanoTime();
+            BankEvents.FileIOEvent event = new BankEvents.FileIOEvent();
+            event.begin();
+            Snapshot snapshot = null;
+            try {
+                snapshot = read(file);
+                return snapshot;
+            } catch (IOException e) {
+                Metrics.counter("snapshot.corrupt").increment();
+                System.out.println("Snapshot " + file + " cannot be used (" + e.getMessage() + "), trying an older one");
+            } finally {
+                LOAD_LATENCY.recordSince(start);
+                long rows = snapshot == null ? 0 : (snapshot.customers == null ? 0 : snapshot.customers.size())
+                        + (snapshot.accounts == null ? 0 : snapshot.accounts.size());
+                BankEvents.endFileIO(event, "loadSnapshot", file.toString(), rows);
+            }
+        }
+        return null;
+    }
+
+    private Snapshot read(Path file) throws IOException {
+        byte[] content = Files.readAllBytes(file);
+        if (content.length < Long.BYTES) {
+            throw new IOException("file is too short");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, content.length - Long.BYTES);
+        if (crc.getValue() != ByteBuffer.wrap(content).getLong(content.length - Long.BYTES)) {
+            throw new IOException("wrong checksum");
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(content, 0, content.length - Long.BYTES))) {
+            if (in.readLong() != MAGIC) {
+                throw new IOException("not a snapshot file");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported version " + version);
+            }
+            Snapshot snapshot = new Snapshot(file, in.readLong());
+            FileStamp customersStamp = readStamp(in);
+            FileStamp accountsStamp = readStamp(in);
+            TransactionJournal journal = TransactionJournal.getInstance();
+            boolean customersCurrent = customersStamp.matches(FileStamp.of("customers.csv"));
+            boolean accountsCurrent = accountsStamp.matches(FileStamp.of("accounts.csv"))
+                    && snapshot.seq >= journal.getBaseSeq() && snapshot.seq <= journal.getLastSeq();
+
+            int customerCount = in.readInt();
+            ArrayList<Customer> customers = new ArrayList<>(customerCount);
+            for (int i = 0; i < customerCount; i++) {
+                customers.add(new Customer(in.readLong(), in.readUTF(), in.readUTF(), in.readUTF(),
+                        in.readLong(), in.readUTF(), in.readUTF()));
+            }
+            if (customersCurrent) {
+                snapshot.customers = customers;
+            }
+            if (accountsCurrent) {
+                int accountCount = in.readInt();
+                ArrayList<Account> accounts = new ArrayList<>(accountCount);
+                for (int i = 0; i < accountCount; i++) {
+                    accounts.add(new Account(in.readLong(), in.readLong(), in.readLong(), in.readUTF()));
+                }
+                journal.replay(accounts, snapshot.seq);
+                snapshot.accounts = accounts;
+            }
+            return snapshot;
+        }
+    }
+}
@@ -0,0 +1,480 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only journal of balance changes which sits on top of accounts.csv.
+ * Instead of rewriting the whole accounts file after every withdraw, deposit or transfer
+ * we append one line per changed account and fsync it. Concurrent operations share one fsync
+ * (group commit). On startup the journal is replayed on top of accounts.csv and a background
+ * task folds it back into accounts.csv when it grows too big.
+ *
+ * Format of the file:
+ * <pre>
+ * # base, 120
+ * 121, 73980, -100.00, 32012.32
+ * 122, 71306, 50.00, 464506.76
+ * </pre>
+ * Every record holds sequence number, accountID, delta and balance after the change.
+ * Replay uses balance after the change, so applying the same record twice is harmless.
+ *
+ * When accounts.csv is written again, the journal is first rotated: under the lock of appends the current file
+ * is renamed to a closed segment named after its last sequence number (accounts.journal.120) and a new journal
+ * starts with "# base, 120". The base file is written after the lock is released, so appends never wait for it,
+ * and closed segments are deleted once it is on disk. Until then (or if writing the base fails) they are replayed
+ * before the journal. That is correct whether the base file was replaced or not: closed segments hold every change
+ * up to their sequence number and the journal every later one, so the last record of every account wins.
+ */
+public class TransactionJournal {
+
+    static final String JOURNAL_FILE = "accounts.journal";
+    private static final String SEPARATOR = ", ";
+    private static final String BASE_PREFIX = "# base" + SEPARATOR;
+    private static final long COMPACT_BYTES = Long.getLong("bank.journal.compactBytes", 4L * 1024 * 1024);
+    private static final long COMPACT_PERIOD_SECONDS = Long.getLong("bank.journal.compactSeconds", 30);
+
+    private static TransactionJournal instance;
+    private static ScheduledExecutorService compactionExecutor;
+
+    private final Path path;
+    private final Object lock = new Object();
+    private final Object rewriteLock = new Object();
+    private FileChannel channel;
+    private long baseSeq;
+    private long nextSeq;
+    private long syncedSeq;
+    private boolean syncing;
+    private Compactor compactor;
+    private boolean compactionScheduled;
+    private final StringBuilder record = new StringBuilder(64);
+    private final ByteBuffer recordBuffer = ByteBuffer.allocateDirect(128);
+
+    /**
+     * Receiver of lines of a journal file, without their end of line.
+     */
+    private interface LineHandler {
+        void line(CharSequence line) throws IOException;
+    }
+
+    /**
+     * Receiver of records of a journal file.
+     */
+    private interface RecordHandler {
+        void record(long seq, long accountID, long balance);
+    }
+
+    /**
+     * Writer of the full state of accounts, used by rewriteBase(). Registered with setCompactor() it is
+     * the whole background compaction instead: it has to take the locks of the data store it reads
+     * and then call rewriteBase() itself.
+     */
+    public interface Compactor {
+        void compact() throws IOException;
+    }
+
+    /**
+     * This method returns journal shared by the whole process. It is opened on the first call.
+     *
+     * @return      shared journal
+     */
+    public static synchronized TransactionJournal getInstance() {
+        if (instance == null) {
+            try {
+                instance = new TransactionJournal(Paths.get(JOURNAL_FILE));
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot open " + JOURNAL_FILE, e);
+            }
+        }
+        return instance;
+    }
+
+    TransactionJournal(Path path) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        recover();
+    }
+
+    /**
+     * This method reads existing journal to find out the last sequence number
+     * and cuts off the last record if it was only partially written.
+     */
+    private void recover() throws IOException {
+        long[] lastSeq = new long[1];
+        long validBytes = readLines(path, line -> {
+            if (isBase(line)) {
+                baseSeq = Long.parseLong(line, BASE_PREFIX.length(), line.length(), 10);
+                lastSeq[0] = Math.max(lastSeq[0], baseSeq);
+            } else if (line.length() > 0) {
+                lastSeq[0] = Long.parseLong(line, 0, indexOf(line, 0), 10);
+            }
+        });
+        if (channel.size() == 0) {
+            writeHeader(0);
+            validBytes = channel.size();
+        }
+        channel.truncate(validBytes);
+        channel.position(validBytes);
+        nextSeq = lastSeq[0] + 1;
+        syncedSeq = lastSeq[0];
+    }
+
+    /**
+     * This method streams lines of a journal file which end with end of line; a record which is still
+     * being written (or was cut off by a crash) is not passed to the handler.
+     *
+     * @return      number of bytes of the complete lines
+     */
+    private static long readLines(Path file, LineHandler handler) throws IOException {
+        long validBytes = 0;
+        long position = 0;
+        try (InputStream in = new BufferedInputStream(Channels.newInputStream(FileChannel.open(file, StandardOpenOption.READ)), 1 << 16)) {
+            StringBuilder line = new StringBuilder(64);
+            int b;
+            while ((b = in.read()) >= 0) {
+                position++;
+                if (b != '\n') {
+                    line.append((char) b);
+                    continue;
+                }
+                handler.line(line);
+                line.setLength(0);
+                validBytes = position;
+            }
+        }
+        return validBytes;
+    }
+
+    /**
+     * This method streams records of a journal file, see readLines().
+     */
+    private static void readRecords(Path file, RecordHandler handler) throws IOException {
+        readLines(file, line -> {
+            if (line.length() == 0 || isBase(line)) {
+                return;
+            }
+            int seqEnd = indexOf(line, 0);
+            int accountEnd = indexOf(line, seqEnd + SEPARATOR.length());
+            int deltaEnd = indexOf(line, accountEnd + SEPARATOR.length());
+            handler.record(Long.parseLong(line, 0, seqEnd, 10),
+                    Long.parseLong(line, seqEnd + SEPARATOR.length(), accountEnd, 10),
+                    Money.parse(line.subSequence(deltaEnd + SEPARATOR.length(), line.length())));
+        });
+    }
+
+    private static boolean isBase(CharSequence line) {
+        return line.length() >= BASE_PREFIX.length() && BASE_PREFIX.contentEquals(line.subSequence(0, BASE_PREFIX.length()));
+    }
+
+    private static int indexOf(CharSequence line, int from) {
+        for (int i = from; i < line.length() - 1; i++) {
+            if (line.charAt(i) == ',' && line.charAt(i + 1) == ' ') {
+                return i;
+            }
+        }
+        throw new NumberFormatException("Malformed journal record: " + line);
+    }
+
+    /**
+     * This method finds closed segments of the journal, which are left from a rotation until the base file
+     * written after it is on disk.
+     *
+     * @param file      journal file
+     * @return          closed segments ordered by their last sequence number
+     */
+    private static List<Path> closedSegments(Path file) throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        String prefix = file.getFileName() + ".";
+        TreeMap<Long, Path> segments = new TreeMap<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path segment : (Iterable<Path>) files::iterator) {
+                String name = segment.getFileName().toString();
+                if (name.startsWith(prefix) && name.length() > prefix.length()
+                        && name.substring(prefix.length()).chars().allMatch(Character::isDigit)) {
+                    segments.put(Long.parseLong(name.substring(prefix.length())), segment);
+                }
+            }
+        }
+        return new ArrayList<>(segments.values());
+    }
+
+    /**
+     * This method streams records of closed segments and then of the journal itself, oldest first.
+     */
+    private static void readAllRecords(Path file, RecordHandler handler) throws IOException {
+        for (Path segment : closedSegments(file)) {
+            try {
+                readRecords(segment, handler);
+            } catch (NoSuchFileException e) {
+                // deleted by a running bank after its base file was written
+            }
+        }
+        if (Files.exists(file)) {
+            readRecords(file, handler);
+        }
+    }
+
+    private void writeHeader(long base) throws IOException {
+        channel.truncate(0);
+        channel.position(0);
+        channel.write(ByteBuffer.wrap((BASE_PREFIX + base + "\n").getBytes(StandardCharsets.UTF_8)));
+        channel.force(false);
+        baseSeq = base;
+    }
+
+    /**
+     * This method applies all records from the journal to accounts read from accounts.csv.
+     *
+     * @param accounts      accounts read from accounts.csv
+     * @throws IOException
+     */
+    public void replay(List<Account> accounts) throws IOException {
+        replay(accounts, 0);
+    }
+
+    /**
+     * This method applies records made after given sequence number to accounts,
+     * e.g. to accounts loaded from a snapshot which already contains older changes.
+     *
+     * @param accounts      accounts which contain all changes up to afterSeq
+     * @param afterSeq      sequence number of the last change already applied
+     * @throws IOException
+     */
+    public void replay(List<Account> accounts, long afterSeq) throws IOException {
+        synchronized (lock) {
+            if (nextSeq - 1 <= afterSeq || (nextSeq - 1 <= baseSeq && closedSegments(path).isEmpty())) {
+                return;
+            }
+            HashMap<Long, Account> accountsByID = new HashMap<>();
+            for (Account account : accounts) {
+                accountsByID.put(account.getAccountID(), account);
+            }
+            readAllRecords(path, (seq, accountID, balance) -> {
+                if (seq > afterSeq) {
+                    Account account = accountsByID.get(accountID);
+                    if (account != null) {
+                        account.setBalance(balance);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * This method reads balance after the last record of every account in the journal, i.e. of every account
+     * changed since accounts.csv was written. It is used by reports which stream accounts.csv instead of loading it.
+     * The journal is only read, never recovered: it can be read while the bank is running, a record which is
+     * still being written (no end of line yet) is skipped, and a missing journal means there are no changes.
+     * Closed segments left from a rotation are read first.
+     *
+     * @param path      journal file
+     * @return          accountID -> balance in cents
+     * @throws IOException
+     */
+    public static HashMap<Long, Long> readLatestBalances(Path path) throws IOException {
+        HashMap<Long, Long> balances = new HashMap<>();
+        readAllRecords(path, (seq, accountID, balance) -> balances.put(accountID, balance));
+        return balances;
+    }
+
+    /**
+     * This method appends balance change of one account to the journal.
+     * Record is not durable until sync() with returned sequence number is called.
+     *
+     * @param accountID     ID of the changed account
+     * @param delta         amount of money in cents added to (or subtracted from) the account
+     * @param balance       balance of the account in cents after the change
+     * @return              sequence number of the record
+     * @throws IOException
+     */
+    public long append(long accountID, long delta, long balance) throws IOException {
+        synchronized (lock) {
+            long seq = nextSeq++;
+            record.setLength(0);
+            record.append(seq).append(SEPARATOR).append(accountID).append(SEPARATOR);
+            Money.appendTo(record, delta).append(SEPARATOR);
+            Money.appendTo(record, balance).append('\n');
+            recordBuffer.clear();
+            for (int i = 0; i < record.length(); i++) {
+                recordBuffer.put((byte) record.charAt(i));
+            }
+            recordBuffer.flip();
+            while (recordBuffer.hasRemaining()) {
+                channel.write(recordBuffer);
+            }
+            return seq;
+        }
+    }
+
+    /**
+     * This method makes sure that all records up to given sequence number are on disk.
+     * If another thread is already syncing, we wait for it and only sync again if its
+     * fsync did not cover our record. This way many concurrent operations share one fsync.
+     *
+     * @param seq           sequence number returned by append()
+     * @throws IOException
+     */
+    public void sync(long seq) throws IOException {
+        long target;
+        synchronized (lock) {
+            while (true) {
+                if (syncedSeq >= seq) {
+                    return;
+                }
+                if (!syncing) {
+                    break;
+                }
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for journal sync", e);
+                }
+            }
+            syncing = true;
+            target = nextSeq - 1;
+        }
+        boolean synced = false;
+        try {
+            channel.force(false);
+            synced = true;
+        } finally {
+            synchronized (lock) {
+                syncing = false;
+                if (synced) {
+                    syncedSeq = Math.max(syncedSeq, target);
+                }
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * This method rotates the journal and then writes the full state with given writer, see the class comment.
+     * Appends wait only for the rotation (an fsync of the unsynced end of the journal and two renames),
+     * never for the writer. Changes made while the writer runs may or may not be in the base file,
+     * but they are always in the new journal. The writer has to make the base file durable before it returns
+     * (temporary file, fsync, atomic rename, fsync of the directory), because closed segments are deleted after it.
+     *
+     * @param fullWrite     writer of the whole accounts.csv file
+     * @throws IOException
+     */
+    public void rewriteBase(Compactor fullWrite) throws IOException {
+        synchronized (rewriteLock) {
+            rotate();
+            fullWrite.compact();
+            for (Path segment : closedSegments(path)) {
+                Files.delete(segment);
+            }
+        }
+    }
+
+    private void rotate() throws IOException {
+        synchronized (lock) {
+            while (syncing) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for journal sync", e);
+                }
+            }
+            long cut = nextSeq - 1;
+            if (cut == baseSeq) {
+                return;
+            }
+            channel.force(false);
+            Files.move(path, path.resolveSibling(path.getFileName() + "." + cut), StandardCopyOption.ATOMIC_MOVE);
+            channel.close();
+            channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            writeHeader(cut);
+            forceDirectory();
+            syncedSeq = cut;
+        }
+    }
+
+    private void forceDirectory() throws IOException {
+        try (FileChannel directory = FileChannel.open(path.toAbsolutePath().getParent(), StandardOpenOption.READ)) {
+            directory.force(true);
+        }
+    }
+
+    /**
+     * This method registers writer used by background compaction and schedules compaction
+     * if it is not scheduled yet. All journals share one compaction thread, so journals of
+     * account shards are compacted one after another and never all at once.
+     *
+     * @param compactor     compaction which rewrites accounts.csv (or the shard file) through rewriteBase()
+     */
+    public void setCompactor(Compactor compactor) {
+        synchronized (lock) {
+            this.compactor = compactor;
+            if (!compactionScheduled) {
+                compactionScheduled = true;
+                compactionExecutor().scheduleWithFixedDelay(this::compactIfNeeded, COMPACT_PERIOD_SECONDS, COMPACT_PERIOD_SECONDS, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    private static synchronized ScheduledExecutorService compactionExecutor() {
+        if (compactionExecutor == null) {
+            compactionExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "journal-compaction");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return compactionExecutor;
+    }
+
+    private void compactIfNeeded() {
+        try {
+            Compactor current;
+            synchronized (lock) {
+                current = compactor;
+                if (current == null || channel.size() < COMPACT_BYTES) {
+                    return;
+                }
+            }
+            current.compact();
+        } catch (IOException | RuntimeException e) {
+            // a scheduled task which throws is never run again, so every failure is only reported
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * This method returns sequence number at which the journal was rotated last time. Older changes are
+     * in accounts.csv, or still in closed segments while accounts.csv is being written.
+     *
+     * @return      base sequence number of the journal
+     */
+    public long getBaseSeq() {
+        synchronized (lock) {
+            return baseSeq;
+        }
+    }
+
+    public long getLastSeq() {
+        synchronized (lock) {
+            return nextSeq - 1;
+        }
+    }
+}
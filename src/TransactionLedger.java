@@ -0,0 +1,624 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Immutable history of all operations on accounts. Every withdraw, deposit, both sides of
+ * every transfer, every interest or fee of the end-of-day batch and opening and deleting of
+ * every account are appended as one record to segment files in the ledger directory:
+ * <pre>
+ * 000001.seg   records of 48 bytes: time, accountID, counterparty accountID, amount, balance after, type, CRC32
+ * 000001.idx   index of a full segment: (accountID, time, offset) of every record, sorted by accountID and time
+ * 000002.seg   current segment, indexed in memory until it is full
+ * </pre>
+ * Times of records never go back, so inside a segment records of one account are in time order and
+ * newer segments only hold newer records. Last N records of an account or records from a date range are
+ * found with a binary search in the index of every segment whose time range overlaps the query, so
+ * a query reads only the records it returns, no matter how big the ledger is.
+ *
+ * A segment is closed and indexed when it reaches 16 MB (-Dbank.ledger.segmentBytes). On startup the
+ * current segment is scanned to rebuild its index and a record which was only partially written is cut off.
+ * Records are made durable by sync(), which is called by CSVReader.flushBalanceChanges() and, like the journal,
+ * shares one fsync between concurrent operations.
+ */
+public class TransactionLedger {
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final int RECORD_SIZE = 48;
+    private static final int INDEX_ENTRY_SIZE = 24;
+    private static final long SEGMENT_BYTES = Math.max(RECORD_SIZE, Long.getLong("bank.ledger.segmentBytes", 16L * 1024 * 1024));
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final LatencyHistogram QUERY_LATENCY = Metrics.histogram("ledger.history");
+
+    private static TransactionLedger instance;
+
+    private final Path directory;
+    private final Object lock = new Object();
+    private final ArrayList<Segment> sealed = new ArrayList<>();
+    private Segment active;
+    private HashMap<Long, Postings> activeIndex = new HashMap<>();
+    private long lastTime;
+    private long appended;
+    private long synced;
+    private boolean syncing;
+    private final ByteBuffer recordBuffer = ByteBuffer.allocateDirect(RECORD_SIZE);
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Kind of operation recorded in the ledger. Code is stored in the segment files, so it must not change.
+     */
+    public enum Type {
+        WITHDRAW('W'),
+        DEPOSIT('D'),
+        TRANSFER_OUT('O'),
+        TRANSFER_IN('I'),
+        INTEREST('N'),
+        FEE('F'),
+        OPENED('A'),
+        CLOSED('C');
+
+        final byte code;
+
+        Type(char code) {
+            this.code = (byte) code;
+        }
+
+        static Type of(byte code) {
+            for (Type type : values()) {
+                if (type.code == code) {
+                    return type;
+                }
+            }
+            throw new IllegalArgumentException("Unknown ledger record type " + (char) code);
+        }
+    }
+
+    /**
+     * One operation on an account.
+     */
+    public static class Entry {
+        final long time;
+        final long accountID;
+        final Type type;
+        final long amount;
+        final long counterpartyID;
+        final long balance;
+
+        Entry(long time, long accountID, Type type, long amount, long counterpartyID, long balance) {
+            this.time = time;
+            this.accountID = accountID;
+            this.type = type;
+            this.amount = amount;
+            this.counterpartyID = counterpartyID;
+            this.balance = balance;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public long getAccountID() {
+            return accountID;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        /**
+         * @return      change of the balance in cents, negative for withdraws and outgoing transfers
+         */
+        public long getAmount() {
+            return amount;
+        }
+
+        /**
+         * @return      ID of the other account of a transfer, ID of the customer for OPENED and CLOSED, 0 otherwise
+         */
+        public long getCounterpartyID() {
+            return counterpartyID;
+        }
+
+        public long getBalance() {
+            return balance;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(80);
+            sb.append(LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault()).format(TIME_FORMAT))
+                    .append("  ").append(String.format("%-12s", type)).append(' ');
+            String amountText = Money.toString(amount);
+            for (int i = amountText.length(); i < 14; i++) {
+                sb.append(' ');
+            }
+            sb.append(amountText).append("  balance: ").append(Money.toString(balance));
+            if (type == Type.TRANSFER_OUT) {
+                sb.append("  to account ").append(counterpartyID);
+            } else if (type == Type.TRANSFER_IN) {
+                sb.append("  from account ").append(counterpartyID);
+            } else if (type == Type.OPENED || type == Type.CLOSED) {
+                sb.append("  customer ").append(counterpartyID);
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Times and offsets of records of one account in the current segment, in the order they were written.
+     */
+    private static class Postings {
+        long[] times = new long[4];
+        long[] offsets = new long[4];
+        int size;
+
+        void add(long time, long offset) {
+            if (size == times.length) {
+                times = Arrays.copyOf(times, size * 2);
+                offsets = Arrays.copyOf(offsets, size * 2);
+            }
+            times[size] = time;
+            offsets[size] = offset;
+            size++;
+        }
+    }
+
+    /**
+     * One segment file. Full segments also have mapped index and the time range of their records.
+     */
+    private static class Segment {
+        final Path path;
+        final FileChannel channel;
+        MappedByteBuffer index;
+        int indexEntries;
+        long minTime;
+        long maxTime;
+
+        Segment(Path path) throws IOException {
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        Path indexPath() {
+            String name = path.getFileName().toString();
+            return path.resolveSibling(name.substring(0, name.length() - SEGMENT_SUFFIX.length()) + INDEX_SUFFIX);
+        }
+
+        void openIndex() throws IOException {
+            try (FileChannel indexChannel = FileChannel.open(indexPath(), StandardOpenOption.READ)) {
+                index = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, indexChannel.size());
+            }
+            indexEntries = index.capacity() / INDEX_ENTRY_SIZE;
+            minTime = Long.MAX_VALUE;
+            maxTime = Long.MIN_VALUE;
+            if (channel.size() >= RECORD_SIZE) {
+                minTime = readTime(0);
+                maxTime = readTime(channel.size() / RECORD_SIZE * RECORD_SIZE - RECORD_SIZE);
+            }
+        }
+
+        long readTime(long offset) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0) {
+                    throw new IOException("Ledger record at " + offset + " of " + path + " is missing");
+                }
+            }
+            return buffer.getLong(0);
+        }
+
+        long entryAccountID(int i) {
+            return index.getLong(i * INDEX_ENTRY_SIZE);
+        }
+
+        long entryTime(int i) {
+            return index.getLong(i * INDEX_ENTRY_SIZE + 8);
+        }
+
+        long entryOffset(int i) {
+            return index.getLong(i * INDEX_ENTRY_SIZE + 16);
+        }
+    }
+
+    /**
+     * This method returns ledger shared by the whole process. It is opened on the first call.
+     *
+     * @return      shared ledger
+     */
+    public static synchronized TransactionLedger getInstance() {
+        if (instance == null) {
+            try {
+                instance = new TransactionLedger(Paths.get(System.getProperty("bank.ledger.dir", "ledger")));
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot open transaction ledger", e);
+            }
+        }
+        return instance;
+    }
+
+    TransactionLedger(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        List<Path> segments;
+        try (Stream<Path> files = Files.list(directory)) {
+            segments = files.filter(path -> path.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        for (int i = 0; i < segments.size(); i++) {
+            Segment segment = new Segment(segments.get(i));
+            if (Files.exists(segment.indexPath())) {
+                segment.openIndex();
+                sealed.add(segment);
+                lastTime = Math.max(lastTime, segment.maxTime);
+            } else {
+                active = segment;
+                activeIndex = new HashMap<>();
+                recover();
+                if (i < segments.size() - 1) {
+                    seal();
+                }
+            }
+        }
+        if (active == null) {
+            openNewSegment();
+        }
+    }
+
+    /**
+     * This method rebuilds in-memory index of the current segment and cuts off records
+     * which were not completely written.
+     */
+    private void recover() throws IOException {
+        long size = active.channel.size();
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE);
+        long offset = 0;
+        for (; offset + RECORD_SIZE <= size; offset += RECORD_SIZE) {
+            buffer.clear();
+            active.channel.read(buffer, offset);
+            if (!validRecord(buffer)) {
+                break;
+            }
+            long time = buffer.getLong(0);
+            activeIndex.computeIfAbsent(buffer.getLong(8), k -> new Postings()).add(time, offset);
+            lastTime = Math.max(lastTime, time);
+        }
+        active.channel.truncate(offset);
+        active.channel.position(offset);
+    }
+
+    private boolean validRecord(ByteBuffer buffer) {
+        crc.reset();
+        crc.update(buffer.array(), 0, RECORD_SIZE - Integer.BYTES);
+        return (int) crc.getValue() == buffer.getInt(RECORD_SIZE - Integer.BYTES);
+    }
+
+    private void openNewSegment() throws IOException {
+        int number = 1;
+        if (!sealed.isEmpty()) {
+            String name = sealed.get(sealed.size() - 1).path.getFileName().toString();
+            number = Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length())) + 1;
+        }
+        active = new Segment(directory.resolve(String.format("%06d%s", number, SEGMENT_SUFFIX)));
+        activeIndex = new HashMap<>();
+    }
+
+    /**
+     * This method makes the current segment read-only: it is synced and its index is written next to it.
+     * A new segment has to be opened afterwards.
+     */
+    private void seal() throws IOException {
+        active.channel.force(false);
+        Long[] accountIDs = activeIndex.keySet().toArray(new Long[0]);
+        Arrays.sort(accountIDs);
+        long entries = active.channel.size() / RECORD_SIZE;
+        ByteBuffer index = ByteBuffer.allocate((int) (entries * INDEX_ENTRY_SIZE));
+        for (Long accountID : accountIDs) {
+            Postings postings = activeIndex.get(accountID);
+            for (int i = 0; i < postings.size; i++) {
+                index.putLong(accountID).putLong(postings.times[i]).putLong(postings.offsets[i]);
+            }
+        }
+        index.flip();
+        Path temporary = active.indexPath().resolveSibling(active.indexPath().getFileName() + ".tmp");
+        try (FileChannel indexChannel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (index.hasRemaining()) {
+                indexChannel.write(index);
+            }
+            indexChannel.force(false);
+        }
+        Files.move(temporary, active.indexPath(), StandardCopyOption.ATOMIC_MOVE);
+        active.openIndex();
+        sealed.add(active);
+        active = null;
+    }
+
+    /**
+     * This method appends one operation on an account to the ledger. It has to be called while holding
+     * the lock of the account, so records of the account are in the same order as the changes.
+     * Record is not durable until sync() is called.
+     *
+     * @param accountID         ID of the changed account
+     * @param type              kind of the operation
+     * @param amount            change of the balance in cents, negative if money was taken from the account
+     * @param counterpartyID    ID of the other account of a transfer, ID of the customer for OPENED and CLOSED, 0 otherwise
+     * @param balance           balance of the account in cents after the operation
+     * @throws IOException
+     */
+    public void append(long accountID, Type type, long amount, long counterpartyID, long balance) throws IOException {
+        synchronized (lock) {
+            if (active.channel.position() + RECORD_SIZE > SEGMENT_BYTES) {
+                seal();
+                openNewSegment();
+            }
+            long time = Math.max(System.currentTimeMillis(), lastTime);
+            lastTime = time;
+            long offset = active.channel.position();
+            recordBuffer.clear();
+            recordBuffer.putLong(time).putLong(accountID).putLong(counterpartyID).putLong(amount).putLong(balance)
+                    .put(type.code).put((byte) 0).put((byte) 0).put((byte) 0);
+            recordBuffer.flip();
+            crc.reset();
+            crc.update(recordBuffer);
+            recordBuffer.limit(RECORD_SIZE);
+            recordBuffer.putInt(RECORD_SIZE - Integer.BYTES, (int) crc.getValue());
+            recordBuffer.position(0);
+            while (recordBuffer.hasRemaining()) {
+                active.channel.write(recordBuffer);
+            }
+            activeIndex.computeIfAbsent(accountID, k -> new Postings()).add(time, offset);
+            appended++;
+        }
+    }
+
+    /**
+     * This method makes sure that all records appended before the call are on disk.
+     * If another thread is already syncing, we wait for it and only sync again if its
+     * fsync did not cover our records.
+     *
+     * @throws IOException
+     */
+    public void sync() throws IOException {
+        long target;
+        FileChannel channel;
+        synchronized (lock) {
+            long wanted = appended;
+            while (true) {
+                if (synced >= wanted) {
+                    return;
+                }
+                if (!syncing) {
+                    break;
+                }
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for ledger sync", e);
+                }
+            }
+            syncing = true;
+            target = appended;
+            channel = active.channel;
+        }
+        boolean done = false;
+        try {
+            channel.force(false);
+            done = true;
+        } finally {
+            synchronized (lock) {
+                syncing = false;
+                if (done) {
+                    synced = Math.max(synced, target);
+                }
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * This method returns time which separates records already in the ledger from the ones appended later:
+     * every record appended so far has time not greater than the returned one and every record
+     * appended after the call will have greater time. To be sure no operation is just between
+     * its balance change and its record, locks of the accounts have to be held.
+     *
+     * @return      time in milliseconds since 1970
+     */
+    public long cut() {
+        synchronized (lock) {
+            long time = Math.max(System.currentTimeMillis(), lastTime);
+            lastTime = time + 1;
+            return time;
+        }
+    }
+
+    /**
+     * This method reads all records with time in given range in the order they were written.
+     * Segments which end before the range are skipped and the start of the range is found
+     * with a binary search, so only records in the range are read.
+     *
+     * @param afterMillis   start of the range (exclusive), in milliseconds since 1970
+     * @param toMillis      end of the range (inclusive), in milliseconds since 1970
+     * @param consumer      receiver of the records
+     * @throws IOException
+     */
+    public void scan(long afterMillis, long toMillis, Consumer<Entry> consumer) throws IOException {
+        ArrayList<Segment> segments;
+        long activeEnd;
+        synchronized (lock) {
+            segments = new ArrayList<>(sealed);
+            segments.add(active);
+            activeEnd = active.channel.position();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * 1024);
+        for (int s = 0; s < segments.size(); s++) {
+            Segment segment = segments.get(s);
+            long end = s == segments.size() - 1 ? activeEnd : segment.channel.size() / RECORD_SIZE * RECORD_SIZE;
+            if (s < segments.size() - 1 && (segment.indexEntries == 0 || segment.maxTime <= afterMillis)) {
+                continue;
+            }
+            long low = 0;
+            long high = end / RECORD_SIZE;
+            while (low < high) {
+                long middle = (low + high) >>> 1;
+                if (segment.readTime(middle * RECORD_SIZE) <= afterMillis) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            long offset = low * RECORD_SIZE;
+            while (offset < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - offset));
+                while (buffer.hasRemaining()) {
+                    if (segment.channel.read(buffer, offset + buffer.position()) < 0) {
+                        throw new IOException("Ledger segment " + segment.path + " is shorter than expected");
+                    }
+                }
+                for (int position = 0; position < buffer.limit(); position += RECORD_SIZE) {
+                    Entry entry = entryAt(buffer, position);
+                    if (entry.time > toMillis) {
+                        return;
+                    }
+                    consumer.accept(entry);
+                }
+                offset += buffer.limit();
+            }
+        }
+    }
+
+    /**
+     * This method returns last operations on the account, the newest first.
+     *
+     * @param accountID     ID of the account
+     * @param count         maximal number of operations
+     * @return              found operations
+     * @throws IOException
+     */
+    public List<Entry> last(long accountID, int count) throws IOException {
+        return history(accountID, Long.MIN_VALUE, Long.MAX_VALUE, 0, count);
+    }
+
+    /**
+     * This method returns one page of operations on the account made in given time range, the newest first.
+     * Only the records which are returned or skipped are read.
+     *
+     * @param accountID     ID of the account
+     * @param fromMillis    start of the range (inclusive), in milliseconds since 1970
+     * @param toMillis      end of the range (inclusive), in milliseconds since 1970
+     * @param skip          number of newest operations in the range to skip, e.g. page * pageSize
+     * @param limit         maximal number of returned operations
+     * @return              found operations
+     * @throws IOException
+     */
+    public List<Entry> history(long accountID, long fromMillis, long toMillis, int skip, int limit) throws IOException {
+        long start = System.nanoTime();
+        ArrayList<Entry> result = new ArrayList<>(Math.min(limit, 1024));
+        Segment current;
+        Segment[] full;
+        long[] offsets;
+        int found = 0;
+        synchronized (lock) {
+            current = active;
+            full = sealed.toArray(new Segment[0]);
+            Postings postings = activeIndex.get(accountID);
+            offsets = new long[postings == null ? 0 : Math.min(postings.size, skip + limit)];
+            if (postings != null) {
+                for (int i = postings.size - 1; i >= 0 && found < offsets.length; i--) {
+                    if (postings.times[i] > toMillis) {
+                        continue;
+                    }
+                    if (postings.times[i] < fromMillis) {
+                        break;
+                    }
+                    offsets[found++] = postings.offsets[i];
+                }
+            }
+        }
+        int skipped = Math.min(skip, found);
+        for (int i = skipped; i < found; i++) {
+            result.add(read(current, offsets[i]));
+        }
+        skip -= skipped;
+        for (int s = full.length - 1; s >= 0 && result.size() < limit; s--) {
+            Segment segment = full[s];
+            if (segment.indexEntries == 0) {
+                continue;
+            }
+            if (segment.maxTime < fromMillis) {
+                break;
+            }
+            if (segment.minTime > toMillis) {
+                continue;
+            }
+            int first = lowerBound(segment, accountID, Long.MIN_VALUE);
+            int i = lowerBound(segment, accountID, toMillis == Long.MAX_VALUE ? Long.MAX_VALUE : toMillis + 1) - 1;
+            for (; i >= first && result.size() < limit; i--) {
+                if (segment.entryTime(i) < fromMillis) {
+                    break;
+                }
+                if (skip > 0) {
+                    skip--;
+                } else {
+                    result.add(read(segment, segment.entryOffset(i)));
+                }
+            }
+        }
+        QUERY_LATENCY.recordSince(start);
+        return result;
+    }
+
+    /**
+     * This method finds the first index entry which is not smaller than (accountID, time).
+     */
+    private static int lowerBound(Segment segment, long accountID, long time) {
+        int low = 0;
+        int high = segment.indexEntries;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            long entryAccountID = segment.entryAccountID(middle);
+            if (entryAccountID < accountID || (entryAccountID == accountID && segment.entryTime(middle) < time)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static Entry read(Segment segment, long offset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE);
+        while (buffer.hasRemaining()) {
+            if (segment.channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Ledger record at " + offset + " of " + segment.path + " is missing");
+            }
+        }
+        return entryAt(buffer, 0);
+    }
+
+    private static Entry entryAt(ByteBuffer buffer, int position) {
+        return new Entry(buffer.getLong(position), buffer.getLong(position + 8), Type.of(buffer.get(position + 40)),
+                buffer.getLong(position + 24), buffer.getLong(position + 16), buffer.getLong(position + 32));
+    }
+}
@@ -0,0 +1,235 @@
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Write-behind persistence, turned on with -Dbank.writeBehind=true. Operations only mark what they changed
+ * and return; a background thread writes the changes out every 100 ms (-Dbank.writeBehind.intervalMillis):
+ * <pre>
+ * balance of an account     one journal record (or binary slot write) per dirty account, whatever the number of changes
+ * PIN, account opened/removed  one rewrite of accounts.csv (with sharded account store: of the shard file;
+ *                           with binary account store the slot is written right away and forced later)
+ * password, new customer    one rewrite of customers.csv
+ * </pre>
+ * followed by a single fsync of the journal and the transaction ledger. Repeated changes of the same account
+ * between two flushes become one write.
+ *
+ * Changes which are not flushed yet are lost if the process is killed, so the time a change can wait is limited
+ * by -Dbank.writeBehind.maxLagMillis (1000 ms by default): when the oldest unflushed change is older than that,
+ * the next operation wakes the background thread up to flush at once, without waiting for the disk itself.
+ * Everything is drained on "Exit from the program" and by a shutdown hook when the JVM stops.
+ */
+public class WriteBehind {
+
+    private static final boolean ENABLED = Boolean.getBoolean("bank.writeBehind");
+    private static final long INTERVAL_MILLIS = Math.max(1, Long.getLong("bank.writeBehind.intervalMillis", 100));
+    private static final long MAX_LAG_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("bank.writeBehind.maxLagMillis", 1000));
+    private static final LatencyHistogram FLUSH_LATENCY = Metrics.histogram("writeBehind.flush");
+    private static final LongAdder COALESCED = Metrics.counter("writeBehind.coalesced");
+    private static final LongAdder LAGGED = Metrics.counter("writeBehind.maxLagReached");
+
+    /**
+     * Holder of the only instance, created when a change is marked for the first time.
+     */
+    private static class Holder {
+        private static final WriteBehind INSTANCE = new WriteBehind(CSVReader.getInstance());
+    }
+
+    private final CSVReader reader;
+    private final Object flushLock = new Object();
+    private final ConcurrentHashMap<Account, Long> dirtyBalances = new ConcurrentHashMap<>();
+    private final AtomicBoolean accountsDirty = new AtomicBoolean();
+    private final Set<Integer> dirtyShards = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean customersDirty = new AtomicBoolean();
+    private final AtomicLong oldestChangeNanos = new AtomicLong();
+    private final AtomicBoolean wakeUpQueued = new AtomicBoolean();
+    private final ScheduledExecutorService executor;
+
+    /**
+     * This method checks if write-behind persistence is turned on.
+     *
+     * @return      true if -Dbank.writeBehind=true
+     */
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * This method returns write-behind flusher of the data store, starting its thread on the first call.
+     *
+     * @return      shared flusher
+     */
+    public static WriteBehind getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    private WriteBehind(CSVReader reader) {
+        this.reader = reader;
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "write-behind");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::flushInBackground, INTERVAL_MILLIS, INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                drain();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "write-behind-drain"));
+    }
+
+    /**
+     * This method marks changed balance of the account. It has to be called while holding the lock of the account.
+     *
+     * @param account       account with changed balance
+     * @param delta         amount of money in cents added to (or subtracted from) the account
+     */
+    public void markBalance(Account account, long delta) {
+        if (dirtyBalances.merge(account, delta, Long::sum) != delta) {
+            COALESCED.increment();
+        }
+        changed();
+    }
+
+    /**
+     * This method marks that accounts.csv (or accounts.dat) has to be written again.
+     */
+    public void markAccounts() {
+        accountsDirty.set(true);
+        changed();
+    }
+
+    /**
+     * This method marks that the file of one account shard has to be written again.
+     *
+     * @param shard         index of the shard, see ShardedAccountStore
+     */
+    public void markShard(int shard) {
+        dirtyShards.add(shard);
+        changed();
+    }
+
+    /**
+     * This method marks that slots of the binary account store were written in place and have to be forced to disk.
+     */
+    public void markSlots() {
+        changed();
+    }
+
+    /**
+     * This method marks that customers.csv has to be written again.
+     */
+    public void markCustomers() {
+        customersDirty.set(true);
+        changed();
+    }
+
+    private void changed() {
+        oldestChangeNanos.compareAndSet(0, System.nanoTime());
+    }
+
+    /**
+     * This method wakes the background thread up to flush right away if the oldest unflushed change waits longer
+     * than the maximal lag, e.g. because the disk is slower than the operations. It never waits for the flush,
+     * and only one early flush is queued at a time.
+     */
+    public void checkLag() {
+        long oldest = oldestChangeNanos.get();
+        if (oldest != 0 && System.nanoTime() - oldest > MAX_LAG_NANOS && wakeUpQueued.compareAndSet(false, true)) {
+            LAGGED.increment();
+            executor.execute(this::flushInBackground);
+        }
+    }
+
+    /**
+     * This method flushes on the background thread. Every exception is caught here, because a scheduled task
+     * which throws is never run again; the changes which failed are marked again and retried by the next flush.
+     */
+    private void flushInBackground() {
+        wakeUpQueued.set(false);
+        try {
+            flush();
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * This method writes all changes marked before the call and waits until they are on disk.
+     *
+     * @throws IOException
+     */
+    public void drain() throws IOException {
+        flush();
+    }
+
+    private void flush() throws IOException {
+        synchronized (flushLock) {
+            if (oldestChangeNanos.getAndSet(0) == 0 && dirtyBalances.isEmpty()) {
+                return;
+            }
+            long start = System.nanoTime();
+            try {
+                if (accountsDirty.getAndSet(false)) {
+                    try {
+                        synchronized (reader) {
+                            reader.writeAccountsNow(reader.getAccounts());
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        markAccounts();
+                        throw e;
+                    }
+                }
+                for (Integer shard : dirtyShards) {
+                    dirtyShards.remove(shard);
+                    try {
+                        ShardedAccountStore.getInstance().writeShard(shard);
+                    } catch (IOException | RuntimeException e) {
+                        markShard(shard);
+                        throw e;
+                    }
+                }
+                long seq = 0;
+                for (Map.Entry<Account, Long> entry : dirtyBalances.entrySet()) {
+                    Account account = entry.getKey();
+                    AccountLocks.lock(account.getAccountID());
+                    try {
+                        Long delta = dirtyBalances.remove(account);
+                        if (delta != null && reader.getAccountFromGivenAccountID(account.getAccountID()) == account) {
+                            try {
+                                seq = Math.max(seq, reader.writeBalance(account, delta));
+                            } catch (IOException | RuntimeException e) {
+                                markBalance(account, delta);
+                                throw e;
+                            }
+                        }
+                    } finally {
+                        AccountLocks.unlock(account.getAccountID());
+                    }
+                }
+                if (customersDirty.getAndSet(false)) {
+                    try {
+                        synchronized (reader) {
+                            reader.writeUsersNow(reader.getCustomers());
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        markCustomers();
+                        throw e;
+                    }
+                }
+                reader.syncBalanceChanges(seq);
+            } finally {
+                FLUSH_LATENCY.recordSince(start);
+            }
+        }
+    }
+}